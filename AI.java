@@ -15,7 +15,15 @@
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.awt.EventQueue;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /* A CPU player. */
 public class AI implements Serializable{
@@ -23,209 +31,560 @@ public class AI implements Serializable{
      * Inner class representing one possible way to place a stone
      */
     private class Placement{
-        public int lowestLine;
-        public int nrFilled;
-        public int nrGaps;
-        public int nrLines;
+        public int[] path; /* The actions that lead there, if known */
+        public Polyomino piece; /* Rotated */
         public int rotation;
+        public double score;
         public int x;
+        public int y=-1; /* -1 to drop the piece from the top */
     }
     
-    private static final byte GRID_TRACE_VALUE=127;
+    /* Keep the beam search within half of the fastest drop rate */
+    private static final long DEFAULT_TIME_BUDGET=GameEngine.MINIMUM_RATE/2;
+    private static final int DEFAULT_BEAM_WIDTH=8, DEFAULT_CACHE_SIZE=1<<16;
+    private static final int DEFAULT_THINK_DEPTH=4;
+    /* Nanoseconds, far enough away that a deadline never passes */
+    private static final long UNLIMITED=Long.MAX_VALUE/2;
     
     private static final long serialVersionUID=-6830341963144442684L;
-    private Game game;
+    private static int searchThreads=Integer.getInteger("pentris.ai.threads",1); //$NON-NLS-1$
+    private static ForkJoinPool searchPool;
+    private transient TranspositionCache cache; /* Created on first use */
+    private int cacheSize=DEFAULT_CACHE_SIZE;
+    private Evaluator evaluator=LinearEvaluator.getDefault();
+    private GameEngine game;
+    private int searchDepth=2, beamWidth=DEFAULT_BEAM_WIDTH;
+    private int lookahead=1; /* The number of preview pieces known */
+    private int maxThinkDepth=DEFAULT_THINK_DEPTH;
+    /* Claimed by placeLater on any thread, released on the EDT */
+    private transient volatile Polyomino thinkingAbout;
+    private long timeBudget=DEFAULT_TIME_BUDGET;
     
     /**
      * Initializes the game AI
      * 
      * @param game The game for which this AI will calculate positions.
      */
-    public AI(Game game) {
+    public AI(GameEngine game) {
         this.game=game;
     }
     
     /**
-     * Counts bad gaps on the grid. A gap is defined as any number of empty
-     * squares in a column with a non-empty square above them.
+     * Evaluates one placement of a piece, followed by the best placement of
+     * the preview piece if there is one. The placement is tried on the grid
+     * itself and undone afterwards.
      * 
-     * @param g The 2D array representation of the grid
-     * @return the number of gaps
+     * @param grid The grid on which the piece must be placed, left unchanged
+     * @param c The placement to evaluate, its score is filled in
+     * @param previewP The preview piece
+     * @param lines The number of lines cleared before this placement
+     * @return The placement, or null if the piece does not fit
      */
-    private int countBadGaps(byte[][] g) {
-        int nrOfGaps=0;
-        for (int x=0; x<g.length; x++)
-            nrOfGaps+=gapsInColumn(x,g);
-        return nrOfGaps;
+    private Placement evaluatePlacement(Grid grid,Placement c,
+            Polyomino previewP,int lines) {
+        int y=c.y;
+        if (y<0){
+            if (!grid.canPlacePiece(c.piece,c.x,2))
+                return null;
+            y=grid.dropRow(c.piece,c.x,2);
+        }
+        int mark=grid.mark();
+        grid.place(c.piece,c.x,y);
+        int nrLines=lines+grid.clearCompleteLines();
+        if (previewP!=null)
+            c.score=getBestPos(grid,previewP,null,nrLines,
+                    System.nanoTime()+UNLIMITED).score;
+        else
+            c.score=evaluator.evaluate(grid,nrLines);
+        grid.undo(mark);
+        return c;
     }
     
     /**
-     * Checks for gaps in one column. A gap is defined as any number of empty
-     * squares in a column with a non-empty square above them.
+     * Evaluates placements and picks the best one. When more than one search
+     * thread is configured and there is a preview piece, the placements are
+     * evaluated in parallel. The results are still compared in the same
+     * order, so the choice is the same. The candidates are tried on the grid
+     * itself, every parallel task works on its own copy.
+     * 
+     * Once the deadline has passed no more placements are evaluated, and the
+     * best of those evaluated so far is picked. The first placement is always
+     * evaluated, so there is a choice if anything fits.
      * 
-     * @param x The column in which to loop
-     * @param g The 2D representation of the grid
-     * @return the amount of gaps in a column
+     * @param grid The grid on which the piece must be placed, left unchanged
+     * @param todo The placements to evaluate
+     * @param previewP The preview piece
+     * @param lines The number of lines cleared before this placement
+     * @param deadline The System.nanoTime() by which to stop
+     * @return The best placement, with x -1 if none fits
      */
-    private int gapsInColumn(int x,byte[][] g) {
-        int ret=0;
-        int y=0;
-        boolean placedAbove=false;
-        while (y<g[x].length){
-            if (g[x][y]!=0&&g[x][y]!=GRID_TRACE_VALUE)
-                placedAbove=true;
-            if (g[x][y]!=0)
-                break;
-            y++;
-        }
-        while (y<g[x].length){
-            if (g[x][y]==0){
-                if (y==0||g[x][y-1]!=0)
-                    ret++;
+    private Placement getBest(final Grid grid,Placement[] todo,
+            final Polyomino previewP,final int lines,final long deadline) {
+        Placement[] candidates=new Placement[todo.length];
+        Placement ret=new Placement();
+        ForkJoinPool pool=getSearchPool();
+        if (previewP!=null&&pool!=null){
+            List<Callable<Placement>> tasks=
+                    new ArrayList<Callable<Placement>>(todo.length);
+            for (int i=0; i<todo.length; i++){
+                final Placement c=todo[i];
+                final boolean first=i==0;
+                tasks.add(new Callable<Placement>(){
+                    @Override
+                    public Placement call() {
+                        if (!first&&isPast(deadline))
+                            return null;
+                        return evaluatePlacement(grid.clone(),c,previewP,lines);
+                    }
+                });
+            }
+            List<Future<Placement>> results=pool.invokeAll(tasks);
+            for (int i=0; i<candidates.length; i++){
+                try{
+                    candidates[i]=results.get(i).get();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    candidates[i]=null;
+                }catch (ExecutionException e){
+                    throw new RuntimeException(e.getCause());
+                }
             }
-            y++;
+        }else{
+            for (int i=0; i<todo.length&&(i==0||!isPast(deadline)); i++)
+                candidates[i]=evaluatePlacement(grid,todo[i],previewP,lines);
+        }
+        ret.x=-1;
+        ret.rotation=-1;
+        ret.score=Double.NEGATIVE_INFINITY;
+        for (Placement c : candidates){
+            if (c!=null&&(ret.x<0||c.score>ret.score))
+                ret=c;
         }
-        if (placedAbove)
-            return ret==0 ? 0: ret+1;
         return ret;
     }
     
     /**
-     * Gets the best possible combination of the placement of the current piece
-     * and the next piece
+     * Gets the best possible combination of the placement of a piece dropped
+     * from the top and the next piece. Every combination is scored by the
+     * evaluator on the board it leaves behind.
      * 
-     * @param grid The grid on which the piece must be placed
+     * @param grid The grid on which the piece must be placed, left unchanged
      * @param p The piece to place
      * @param previewP The preview piece
+     * @param lines The number of lines cleared before this placement
+     * @param deadline The System.nanoTime() by which to stop, see getBest
      * @return All information about the best placement found
      */
     /* Why can't JAVA just have normal structures like any other language? */
-    private Placement getBestPos(Grid grid,Polyomino p,Polyomino previewP) {
-        int x, rot, y;
-        int bestX=-1, bestRot=-1, bestFilled=-1;
-        int bestLowest=-1, bestLines=0, bestGaps=10000;
-        int i, j;
+    private Placement getBestPos(Grid grid,Polyomino p,Polyomino previewP,
+            int lines,long deadline) {
         int rotcnt=p.getRotCount();
-        Placement ret=new Placement();
-        for (x=0; x<grid.getLength(); x++){
-            for (rot=0; rot<rotcnt; rot++, p.rotate()){
-                Grid cGrid=grid.clone();
-                byte[][] g=cGrid.getGrid();
-                int nrFilled=0, nrGaps=0, nrLines=0;
-                int lowestLine=-1;
-                if (!cGrid.canPlacePiece(p,x,2)){
-                    continue;
-                }
-                for (y=2; y<1000; y++){
-                    if (!cGrid.canPlacePiece(p,x,y))
-                        break;
-                }
-                for (i=0; i<g.length; i++){
-                    for (j=0; j<g[0].length; j++){
-                        if (g[i][j]!=0)
-                            g[i][j]=GRID_TRACE_VALUE;
-                    }
-                }
-                cGrid.place(p,x,y-1);
-                for (i=0; i<g.length; i++){
-                    j=lowestLine==-1 ? 0: lowestLine;
-                    for (; j<g[0].length; j++){
-                        if (g[i][j]!=0&&g[i][j]!=GRID_TRACE_VALUE){
-                            if (j>lowestLine){
-                                lowestLine=j;
-                                nrFilled=0;
-                            }
-                            if (j==lowestLine)
-                                nrFilled++;
-                        }
-                    }
-                }
-                do{
-                    i=cGrid.hasCompleteLine();
-                    if (i>0){
-                        cGrid.deleteLine(i);
-                        nrLines++;
-                    }
-                }while (i>0);
-                if (previewP!=null){
-                    Grid tmpGrid=cGrid.clone();
-                    byte[][] tmpArray=tmpGrid.getGrid();
-                    for (i=0; i<tmpArray.length; i++){
-                        for (j=0; j<tmpArray[0].length; j++){
-                            if (tmpArray[i][j]!=0)
-                                tmpArray[i][j]=GRID_TRACE_VALUE;
-                        }
-                    }
-                    Placement previewPlacement=getBestPos(cGrid,previewP,null);
-                    if (previewPlacement.x>=0){
-                        if (lowestLine==previewPlacement.lowestLine)
-                            nrFilled+=previewPlacement.nrFilled;
-                        nrLines+=previewPlacement.nrLines;
-                    }else{
-                        nrGaps=g.length*g[0].length;
-                    }
-                }else{
-                    nrGaps=countBadGaps(g);
-                }
-                if (bestGaps>=nrGaps){
-                    if (nrLines>bestLines||lowestLine>bestLowest
-                            ||(lowestLine==bestLowest&&nrFilled>bestFilled)
-                            ||bestGaps>nrGaps){
-                        bestX=x;
-                        bestRot=rot;
-                        bestFilled=nrFilled;
-                        bestLines=nrLines;
-                        bestGaps=nrGaps;
-                        bestLowest=lowestLine;
-                    }
-                }
+        Placement[] todo=new Placement[grid.getLength()*rotcnt];
+        for (int rot=0; rot<rotcnt; rot++){
+            Polyomino rotated=new Polyomino(p.getIndex(),p.getRotation()+rot);
+            for (int x=0; x<grid.getLength(); x++){
+                Placement c=new Placement();
+                c.piece=rotated;
+                c.rotation=rot;
+                c.x=x;
+                todo[x*rotcnt+rot]=c;
             }
         }
-        ret.x=bestX;
-        ret.rotation=bestRot;
-        ret.nrFilled=bestFilled;
-        ret.nrGaps=bestGaps;
-        ret.lowestLine=bestLowest;
-        ret.nrLines=bestLines;
-        return ret;
+        return getBest(grid,todo,previewP,lines,deadline);
+    }
+    
+    /**
+     * Gets the cache of the beam searches, which keeps the averaged scores
+     * of boards from one move to the next
+     * 
+     * @return the cache, or null if caching is switched off
+     */
+    public synchronized TranspositionCache getCache() {
+        if (cache==null&&cacheSize>0)
+            cache=new TranspositionCache(cacheSize);
+        return cache;
+    }
+    
+    /**
+     * Gets the pool used to evaluate placements in parallel
+     * 
+     * @return the pool, or null if the search should run in the calling thread
+     */
+    private static synchronized ForkJoinPool getSearchPool() {
+        if (searchThreads<=1)
+            return null;
+        if (searchPool==null)
+            searchPool=new ForkJoinPool(searchThreads);
+        return searchPool;
+    }
+    
+    /**
+     * Moves the active piece along a path
+     * 
+     * @param path The actions, as made by the MoveGenerator
+     * @return false if a move failed because the game changed under us
+     */
+    private boolean execute(int[] path) {
+        for (int action : path){
+            boolean moved;
+            switch (action){
+            case GameEngine.ACTION_LEFT:
+                moved=game.move(-1,0);
+                break;
+            case GameEngine.ACTION_RIGHT:
+                moved=game.move(1,0);
+                break;
+            case GameEngine.ACTION_ROTATE:
+                moved=game.rotate();
+                break;
+            case GameEngine.ACTION_DOWN:
+                moved=game.move(0,1);
+                break;
+            default:
+                moved=game.move(0,game.dropDistance());
+            }
+            if (!moved&&action!=GameEngine.ACTION_DROP)
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * @param deadline A System.nanoTime()
+     * @return true if the deadline has passed
+     */
+    private static boolean isPast(long deadline) {
+        return System.nanoTime()-deadline>0;
+    }
+    
+    /**
+     * Gets the pieces the searches may plan with
+     * 
+     * @param p The active piece
+     * @param previewP The preview piece, may be null
+     * @return copies of the active piece, the preview piece and as many
+     *         following pieces as the lookahead allows
+     */
+    private Polyomino[] known(Polyomino p,Polyomino previewP) {
+        List<Polyomino> ret=new ArrayList<Polyomino>();
+        ret.add(new Polyomino(p.getIndex(),p.getRotation()));
+        if (previewP!=null){
+            ret.add(new Polyomino(previewP.getIndex(),previewP.getRotation()));
+            Polyomino[] later=game.getPreviewPieces(lookahead);
+            for (int i=1; i<later.length; i++)
+                ret.add(later[i]);
+        }
+        return ret.toArray(new Polyomino[ret.size()]);
     }
     
     /**
      * Compares different placements and calculates which of them is the best
-     * one so far, then places the active pentomino at that point. Also takes
-     * into account combinations with the current preview piece
+     * one so far, then moves the active pentomino there. Only positions the
+     * piece can actually reach are considered, the piece is moved along the
+     * shortest way. Also takes into account combinations with the current
+     * preview piece. With a search depth above 2 a beam search looks further
+     * ahead instead, within the time budget.
      * 
      * @param p The active pentomino
      * @param previewP The preview pentomino
      */
     public void place(Polyomino p,Polyomino previewP) {
-        int x, rotation, i;
-        final Grid tmpGrid=game.getGrid().clone();
-        final byte[][] gridValues=tmpGrid.getGrid();
-        for (i=0; i<gridValues.length; i++){
-            for (int j=0; j<gridValues[0].length; j++){
-                if (gridValues[i][j]!=0)
-                    gridValues[i][j]=GRID_TRACE_VALUE;
+        Grid tmpGrid=game.getGrid().clone();
+        tmpGrid.remove(p,game.getActiveX(),game.getActiveY());
+        Placement[] todo=reachable(tmpGrid,p,game.getActiveX(),
+                game.getActiveY());
+        Placement best;
+        if (searchDepth>2){
+            /* The beam search keeps to the time budget, the quick placement
+             * of the active piece alone is only used if it finds nothing */
+            best=getBest(tmpGrid,todo,null,0,System.nanoTime()+UNLIMITED);
+            best=searchBeam(tmpGrid,known(p,previewP),todo,best,searchDepth,
+                    timeBudget,game.getAllowedPieces(),false);
+        }else
+            best=getBest(tmpGrid,todo,previewP,0,System.nanoTime()+UNLIMITED);
+        if (best.path!=null)
+            execute(best.path);
+    }
+    
+    /**
+     * Searches a placement for the active piece in the background and makes
+     * it on the event dispatch thread once the time is up, so the caller is
+     * never blocked. The search deepens step by step: first the active piece
+     * alone, then together with the preview piece, then beam searches one
+     * piece deeper each time, up to the search depth. Whenever a step
+     * finishes in time its choice becomes the move to make, so there is
+     * always an answer, and the more time there is the deeper it looks.
+     * 
+     * The search works on a copy of the board. If the piece was moved in the
+     * meantime, for example by the drop timer, the way to the chosen
+     * position is searched again from where the piece is now; if it cannot
+     * get there any more a quick placement is made instead. Nothing happens if
+     * the piece was locked in the meantime, or if a search for the same piece
+     * is still running. It may be called on any thread.
+     * 
+     * @param millis The time the search may take, in milliseconds
+     * @param then Called on the event dispatch thread after the piece was
+     *        moved, may be null
+     */
+    public void placeLater(long millis,final Runnable then) {
+        final Polyomino active=game.getActivePiece();
+        if (active==null||game.isGameOver()||!startThinking(active))
+            return;
+        final Grid board=game.getGrid().clone();
+        final int x=game.getActiveX(), y=game.getActiveY();
+        board.remove(active,x,y);
+        final Polyomino[] known=known(active,game.getPreviewPiece());
+        final boolean[] allowed=game.getAllowedPieces().clone();
+        final long deadline=System.nanoTime()+millis*1000000;
+        /* A thread per search, virtual where possible; see Execution */
+        Execution.getTasks().execute(new Runnable(){
+            @Override
+            public void run() {
+                final Placement best=think(board,known,x,y,allowed,deadline);
+                EventQueue.invokeLater(new Runnable(){
+                    @Override
+                    public void run() {
+                        thinkingAbout=null;
+                        if (commit(active,best)&&then!=null)
+                            then.run();
+                    }
+                });
             }
-        }
-        Placement bestPlacement=getBestPos(tmpGrid,p,previewP);
-        x=bestPlacement.x;
-        rotation=bestPlacement.rotation;
-        for (i=0; i<rotation; i++){
-            while (!game.doRotate()){
-                if (!game.move(0,1))
-                    return;
+        });
+    }
+    
+    /**
+     * Moves the active piece to a placement found by an earlier search
+     * 
+     * @param active The piece the search was made for
+     * @param target The placement, in coordinates of the board
+     * @return true if the piece was moved, false if it is not the active
+     *         piece any more
+     */
+    private boolean commit(Polyomino active,Placement target) {
+        if (game.getActivePiece()!=active||game.isGameOver())
+            return false;
+        if (target==null||target.x<0)
+            return true; /* It fits nowhere, let it fall */
+        int x=game.getActiveX(), y=game.getActiveY();
+        Grid tmpGrid=game.getGrid().clone();
+        tmpGrid.remove(active,x,y);
+        for (Placement c : reachable(tmpGrid,active,x,y)){
+            if (sameSquares(c,target)){
+                execute(c.path);
+                return true;
             }
         }
-        if (x<tmpGrid.getLength()/2){
-            int nrMoved=tmpGrid.getLength()/2-x;
-            for (i=0; i<nrMoved; i++)
-                game.moveLeft();
-        }else{
-            int nrMoved=x-tmpGrid.getLength()/2;
-            for (i=0; i<nrMoved; i++)
-                game.moveRight();
+        place(active,game.getPreviewPiece());
+        return true;
+    }
+    
+    /**
+     * Finds every placement a piece can reach from where it is
+     * 
+     * @param grid The grid without the piece
+     * @param p The piece
+     * @param x x-coordinate of the piece
+     * @param y y-coordinate of the piece
+     * @return the placements, with the paths that lead there
+     */
+    private Placement[] reachable(Grid grid,Polyomino p,int x,int y) {
+        List<MoveGenerator.Move> moves=new MoveGenerator(grid).generate(p,x,y);
+        Placement[] ret=new Placement[moves.size()];
+        for (int i=0; i<ret.length; i++){
+            MoveGenerator.Move m=moves.get(i);
+            ret[i]=new Placement();
+            ret[i].piece=new Polyomino(p.getIndex(),m.rotation);
+            ret[i].rotation=m.rotation;
+            ret[i].x=m.x;
+            ret[i].y=m.y;
+            ret[i].path=m.path;
+        }
+        return ret;
+    }
+    
+    /**
+     * Checks if two placements cover the same squares
+     * 
+     * @param a A placement with a known y-coordinate
+     * @param b Another placement with a known y-coordinate
+     * @return true if they cover the same squares
+     */
+    private static boolean sameSquares(Placement a,Placement b) {
+        return a.x+a.piece.getMinX()==b.x+b.piece.getMinX()
+                &&a.y+a.piece.getMinY()==b.y+b.piece.getMinY()
+                &&Arrays.equals(a.piece.getRowMasks(),b.piece.getRowMasks());
+    }
+    
+    /**
+     * Looks further ahead with a beam search and picks the reachable
+     * placement that leads to its choice
+     * 
+     * @param grid The grid without the active piece
+     * @param known The pieces that are known, starting with the active piece
+     * @param reachable The placements the active piece can reach
+     * @param fallback The placement to use if the beam search finds nothing
+     *        reachable
+     * @param depth The number of pieces to look ahead
+     * @param millis The time the beam search may take
+     * @param allowed The kinds of pieces that can appear
+     * @param mustFinish Use the fallback if the search runs out of time,
+     *        instead of the choice of the levels it finished
+     * @return the placement to make
+     */
+    private Placement searchBeam(Grid grid,Polyomino[] known,
+            Placement[] reachable,Placement fallback,int depth,long millis,
+            boolean[] allowed,boolean mustFinish) {
+        BeamSearch search=new BeamSearch(depth,beamWidth,millis,allowed[0],
+                allowed[1],allowed[2],evaluator);
+        search.setCache(getCache());
+        search.search(grid,known);
+        int x=search.getBestX();
+        if (x<0||mustFinish&&!search.isComplete())
+            return fallback;
+        Placement target=new Placement();
+        target.piece=new Polyomino(known[0].getIndex(),
+                known[0].getRotation()+search.getBestRotation());
+        target.x=x;
+        target.y=grid.dropRow(target.piece,x,2);
+        for (Placement c : reachable){
+            if (sameSquares(c,target))
+                return c;
+        }
+        return fallback;
+    }
+    
+    /**
+     * Sets the number of boards the beam search keeps at every level
+     * 
+     * @param width The beam width
+     */
+    public void setBeamWidth(int width) {
+        beamWidth=width;
+    }
+    
+    /**
+     * Sets how many of the coming pieces the AI may plan with. Only searches
+     * deeper than 2 pieces use more than the preview piece.
+     * 
+     * @param pieces The number of pieces after the active piece, at least 1
+     */
+    public void setLookahead(int pieces) {
+        lookahead=Math.max(1,pieces);
+    }
+    
+    /**
+     * Sets the number of board scores remembered by the transposition cache
+     * of the beam searches
+     * 
+     * @param size The number of entries, 0 to switch the cache off
+     */
+    public synchronized void setCacheSize(int size) {
+        cacheSize=size;
+        cache=null;
+    }
+    
+    /**
+     * Sets the heuristic used to score the boards reached by the searches.
+     * Cached scores of the previous heuristic are dropped.
+     * 
+     * @param e The evaluator
+     */
+    public synchronized void setEvaluator(Evaluator e) {
+        evaluator=e;
+        if (cache!=null)
+            cache.clear();
+    }
+    
+    /**
+     * Sets how many pieces the AI looks ahead, including the piece it places.
+     * Up to 2 the active and preview piece are searched exhaustively, deeper
+     * searches use a beam search.
+     * 
+     * @param depth The number of pieces
+     */
+    public void setSearchDepth(int depth) {
+        searchDepth=depth;
+    }
+    
+    /**
+     * Sets the number of threads the AI uses to evaluate placements. The
+     * default is taken from the pentris.ai.threads system property.
+     * 
+     * @param threads The number of threads, 1 or less to search in the thread
+     *        that asks for a placement
+     */
+    public static synchronized void setSearchThreads(int threads) {
+        if (threads==searchThreads)
+            return;
+        if (searchPool!=null)
+            searchPool.shutdown();
+        searchPool=null;
+        searchThreads=threads;
+    }
+    
+    /**
+     * Sets how many pieces placeLater looks ahead at most, if there is time
+     * 
+     * @param depth The number of pieces, including the piece it places
+     */
+    public void setThinkDepth(int depth) {
+        maxThinkDepth=depth;
+    }
+    
+    /**
+     * Sets the time a beam search may take for one move
+     * 
+     * @param millis The time budget in milliseconds
+     */
+    public void setTimeBudget(long millis) {
+        timeBudget=millis;
+    }
+    
+    /**
+     * Claims the search for a piece, unless a search for it is running
+     * 
+     * @param active The piece
+     * @return true if the caller may search for the piece
+     */
+    private synchronized boolean startThinking(Polyomino active) {
+        if (thinkingAbout==active)
+            return false;
+        thinkingAbout=active;
+        return true;
+    }
+    
+    /**
+     * Runs the deepening search of placeLater on a copy of the board
+     * 
+     * @param grid The board without the active piece, used as scratch
+     * @param known The active piece, followed by the preview piece if any
+     * @param x x-coordinate of the active piece
+     * @param y y-coordinate of the active piece
+     * @param allowed The kinds of pieces that can appear
+     * @param deadline The System.nanoTime() by which to stop
+     * @return the best placement found in time, with x -1 if none fits
+     */
+    private Placement think(Grid grid,Polyomino[] known,int x,int y,
+            boolean[] allowed,long deadline) {
+        Placement[] todo=reachable(grid,known[0],x,y);
+        Placement best=getBest(grid,todo,null,0,deadline);
+        if (known.length<2||best.x<0||isPast(deadline))
+            return best;
+        Placement withPreview=getBest(grid,todo,known[1],0,deadline);
+        if (isPast(deadline))
+            return best; /* Not every placement was looked at with the preview */
+        best=withPreview;
+        for (int depth=3; depth<=maxThinkDepth; depth++){
+            long left=(deadline-System.nanoTime())/1000000;
+            if (left<=0)
+                break;
+            Placement deeper=searchBeam(grid,known,todo,null,depth,left,
+                    allowed,true);
+            if (deeper==null)
+                break;
+            best=deeper;
         }
-        while (game.move(0,1)){/* fall down if possible */}
+        return best;
     }
 }
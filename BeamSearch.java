@@ -0,0 +1,292 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A placement search that looks several pieces ahead. For every piece whose
+ * type is known, all placements of all boards in the beam are tried and only
+ * the best ones are kept. Pieces beyond the known ones are averaged over all
+ * piece types that can appear (expectimax). Boards are scored by an
+ * Evaluator. The search stops early when its time budget is used up and then
+ * answers with the deepest level it finished.
+ *
+ * The averages can be kept in a TranspositionCache. The same board comes
+ * back when pieces are placed in another order, and in the search for the
+ * next piece, which looks at the boards of this search one piece later.
+ */
+public class BeamSearch{
+    /**
+     * One board in the beam, with the first move that led to it. Boards are
+     * scored on their parent board and only copied when the node survives.
+     */
+    private static class Node{
+        public int firstRotation;
+        public int firstX;
+        public Grid grid; /* null until board() is called */
+        public int lines;
+        public Grid parent;
+        public Polyomino piece;
+        public double score;
+        public int x;
+    }
+
+    /* Orders nodes best first; the sort is stable, so ties keep their order */
+    private static final Comparator<Node> BEST_FIRST=new Comparator<Node>(){
+        @Override
+        public int compare(Node a,Node b) {
+            return Double.compare(b.score,a.score);
+        }
+    };
+    private static final int PIECE_COUNT=Polyomino.PIECE_COUNT;
+
+    private int beamWidth;
+    private int bestRotation=-1, bestX=-1;
+    private TranspositionCache cache; /* null to search without one */
+    private long deadline;
+    private int depth;
+    private Evaluator evaluator;
+    private double[] pieceWeights;
+    private long settings; /* What else the averages depend on */
+    private boolean timedOut;
+
+    /**
+     * Prepares a search
+     *
+     * @param depth The number of pieces to look ahead, including the piece to
+     *        place
+     * @param beamWidth The number of boards kept at every level
+     * @param timeBudget The number of milliseconds the search may take
+     * @param allowPento Can pieces of 5 blocks appear
+     * @param allowTetro Can pieces of 4 blocks appear
+     * @param allowOther Can pieces with 2 or 3 blocks appear
+     * @param evaluator The heuristic used to score boards
+     */
+    public BeamSearch(int depth,int beamWidth,long timeBudget,
+            boolean allowPento,boolean allowTetro,boolean allowOther,
+            Evaluator evaluator) {
+        this.depth=depth;
+        this.evaluator=evaluator;
+        this.beamWidth=Math.max(1,beamWidth);
+        deadline=System.nanoTime()+timeBudget*1000000;
+        pieceWeights=Polyomino.getChances(allowPento,allowTetro,allowOther);
+        settings=(long) this.beamWidth<<3|(allowPento ? 4: 0)
+                |(allowTetro ? 2: 0)|(allowOther ? 1: 0);
+    }
+
+    /**
+     * Gets the board of a node, making it on first use
+     * 
+     * @param n The node
+     * @return the board after the move of the node
+     */
+    private static Grid board(Node n) {
+        if (n.grid==null){
+            n.grid=n.parent.clone();
+            n.grid.place(n.piece,n.x,n.grid.dropRow(n.piece,n.x,2));
+            n.grid.clearCompleteLines();
+            n.parent=null;
+        }
+        return n.grid;
+    }
+    
+    /**
+     * Calculates the expected score of a board when the next pieces are not
+     * known yet
+     *
+     * @param g The board
+     * @param lines The number of lines cleared to reach this board
+     * @param levels The number of unknown pieces still to place
+     * @return the score averaged over the possible pieces
+     */
+    private double expected(Grid g,int lines,int levels) {
+        if (levels==0||timeUp())
+            return evaluator.evaluate(g,lines);
+        long key=0;
+        if (cache!=null){
+            key=TranspositionCache.mix(g.getHash()^(long) g.getLength()<<48
+                    ^(long) g.getHeight()<<32^lines);
+            key=TranspositionCache.mix(key^settings<<8^levels);
+            double cached=cache.get(key);
+            if (!Double.isNaN(cached))
+                return cached;
+        }
+        double ret=expectedOverPieces(g,lines,levels);
+        if (cache!=null&&!timedOut) /* Cut short results are not kept */
+            cache.put(key,ret);
+        return ret;
+    }
+
+    /**
+     * Averages the score of a board over the pieces that can come next, see
+     * expected
+     *
+     * @param g The board
+     * @param lines The number of lines cleared to reach this board
+     * @param levels The number of unknown pieces still to place, at least 1
+     * @return the score averaged over the possible pieces
+     */
+    private double expectedOverPieces(Grid g,int lines,int levels) {
+        double ret=0;
+        for (int i=0; i<PIECE_COUNT; i++){
+            if (pieceWeights[i]==0)
+                continue;
+            List<Node> children=new ArrayList<Node>();
+            expand(g,lines,new Polyomino(i+1),-1,-1,children);
+            if (children.isEmpty())
+                return Double.NEGATIVE_INFINITY; /* This piece ends the game */
+            Collections.sort(children,BEST_FIRST);
+            double best=Double.NEGATIVE_INFINITY;
+            if (levels==1){
+                best=children.get(0).score;
+            }else{
+                for (int j=0; j<children.size()&&j<beamWidth; j++){
+                    Node c=children.get(j);
+                    best=Math.max(best,expected(board(c),c.lines,levels-1));
+                }
+            }
+            ret+=pieceWeights[i]*best;
+        }
+        return ret;
+    }
+
+    /**
+     * Adds all boards resulting from dropping a piece on a board. The boards
+     * are scored on g and undone again, board() makes them when needed.
+     *
+     * @param g The board, left unchanged
+     * @param lines The number of lines cleared to reach the board
+     * @param p The piece to place
+     * @param firstX The column of the first move, -1 if this is the first move
+     * @param firstRotation The rotation of the first move
+     * @param into The list to add the new nodes to
+     */
+    private void expand(Grid g,int lines,Polyomino p,int firstX,
+            int firstRotation,List<Node> into) {
+        int rotcnt=p.getRotCount();
+        for (int rot=0; rot<rotcnt; rot++){
+            Polyomino r=new Polyomino(p.getIndex(),p.getRotation()+rot);
+            for (int x=0; x<g.getLength(); x++){
+                if (!g.canPlacePiece(r,x,2))
+                    continue;
+                Node n=new Node();
+                int mark=g.mark();
+                g.place(r,x,g.dropRow(r,x,2));
+                n.lines=lines+g.clearCompleteLines();
+                n.score=evaluator.evaluate(g,n.lines);
+                g.undo(mark);
+                n.parent=g;
+                n.piece=r;
+                n.x=x;
+                n.firstX=firstX<0 ? x: firstX;
+                n.firstRotation=firstX<0 ? rot: firstRotation;
+                into.add(n);
+            }
+        }
+    }
+
+    /**
+     * @return the number of rotations of the best first move, or -1
+     */
+    public int getBestRotation() {
+        return bestRotation;
+    }
+
+    /**
+     * @return the column of the best first move, or -1 if the piece does not
+     *         fit anywhere
+     */
+    public int getBestX() {
+        return bestX;
+    }
+
+    /**
+     * @return true if the search looked as deep as it was asked to, false if
+     *         it ran out of time and the best move is from a shallower level
+     */
+    public boolean isComplete() {
+        return !timedOut;
+    }
+
+    /**
+     * Searches the best placement of the first known piece
+     *
+     * @param g The board, not modified
+     * @param known The pieces whose type is known, starting with the piece to
+     *        place
+     */
+    public void search(Grid g,Polyomino[] known) {
+        List<Node> beam=new ArrayList<Node>();
+        expand(g,0,known[0],-1,-1,beam);
+        Collections.sort(beam,BEST_FIRST);
+        if (beam.isEmpty())
+            return;
+        bestX=beam.get(0).firstX;
+        bestRotation=beam.get(0).firstRotation;
+        int level=1;
+        for (; level<depth&&level<known.length; level++){
+            if (beam.size()>beamWidth)
+                beam=beam.subList(0,beamWidth);
+            List<Node> next=new ArrayList<Node>();
+            for (Node n : beam){
+                if (timeUp())
+                    return;
+                expand(board(n),n.lines,known[level],n.firstX,
+                        n.firstRotation,next);
+            }
+            if (next.isEmpty())
+                return;
+            Collections.sort(next,BEST_FIRST);
+            beam=next;
+            bestX=beam.get(0).firstX;
+            bestRotation=beam.get(0).firstRotation;
+        }
+        if (level>=depth)
+            return;
+        if (beam.size()>beamWidth)
+            beam=beam.subList(0,beamWidth);
+        for (Node n : beam){
+            if (timeUp())
+                return;
+            n.score=expected(board(n),n.lines,depth-level);
+        }
+        Collections.sort(beam,BEST_FIRST);
+        bestX=beam.get(0).firstX;
+        bestRotation=beam.get(0).firstRotation;
+    }
+
+    /**
+     * Keeps the averaged scores of boards in a cache, which may be shared
+     * with other searches using the same evaluator
+     *
+     * @param c The cache, null to search without one
+     */
+    public void setCache(TranspositionCache c) {
+        cache=c;
+    }
+
+    /**
+     * @return true if the time budget of this search is used up
+     */
+    private boolean timeUp() {
+        if (System.nanoTime()-deadline>0)
+            timedOut=true;
+        return timedOut;
+    }
+}
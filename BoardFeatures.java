@@ -0,0 +1,120 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ * 
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ * 
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * Extracts the board features used by the AI heuristics. All features are
+ * computed in one pass over the row masks of the grid, plus one pass over the
+ * column tops.
+ */
+public class BoardFeatures{
+    /** Total height of all columns */
+    public static final int AGGREGATE_HEIGHT=1;
+    /** Sum of the height differences of neighbouring columns */
+    public static final int BUMPINESS=2;
+    /** Filled/empty changes between vertical neighbours, the floor is filled */
+    public static final int COLUMN_TRANSITIONS=4;
+    /** The number of features */
+    public static final int COUNT=7;
+    /** Empty squares with a filled square somewhere above them */
+    public static final int HOLES=0;
+    /** Lines cleared on the way to the board */
+    public static final int LINES=6;
+    /** Filled/empty changes between horizontal neighbours, walls are filled */
+    public static final int ROW_TRANSITIONS=3;
+    /** Open squares with filled squares or walls on both sides */
+    public static final int WELLS=5;
+    
+    /**
+     * Computes all features of a board
+     * 
+     * @param g The board
+     * @param lines The number of lines cleared on the way to the board
+     * @param into The array to store the features in, indexed by the feature
+     *        constants, at least COUNT long
+     */
+    public static void extract(Grid g,int lines,int[] into) {
+        extract(g,lines,into,null);
+    }
+    
+    /**
+     * Computes all features of a board, storing them and/or summing them
+     * 
+     * @param g The board
+     * @param lines The number of lines cleared on the way to the board
+     * @param into The array to store the features in, or null
+     * @param weights The weights to sum the features with, or null
+     * @return the weighted sum, 0 without weights
+     */
+    private static double extract(Grid g,int lines,int[] into,
+            double[] weights) {
+        int width=g.getLength();
+        int height=g.getHeight();
+        long full=width>=64 ? -1L: (1L<<width)-1;
+        long rightmost=1L<<width-1;
+        int holes=0, rowTransitions=0, columnTransitions=0, wells=0;
+        long covered=0;
+        long above=0;
+        for (int y=0; y<height; y++){
+            long row=g.getRowMask(y);
+            /* The neighbours of every square, the walls count as filled */
+            long left=row<<1|1, right=row>>>1|rightmost;
+            holes+=Long.bitCount(covered&~row);
+            rowTransitions+=Long.bitCount((row^right)&full)
+                    +((row&1)==0 ? 1: 0);
+            columnTransitions+=Long.bitCount(row^above);
+            wells+=Long.bitCount(~row&left&right&full&~covered);
+            covered|=row;
+            above=row;
+        }
+        columnTransitions+=Long.bitCount(~above&full);
+        int aggregateHeight=0, bumpiness=0;
+        for (int x=0; x<width; x++){
+            int top=g.getColumnTop(x);
+            aggregateHeight+=height-top;
+            if (x>0)
+                bumpiness+=Math.abs(top-g.getColumnTop(x-1));
+        }
+        if (into!=null){
+            into[HOLES]=holes;
+            into[AGGREGATE_HEIGHT]=aggregateHeight;
+            into[BUMPINESS]=bumpiness;
+            into[ROW_TRANSITIONS]=rowTransitions;
+            into[COLUMN_TRANSITIONS]=columnTransitions;
+            into[WELLS]=wells;
+            into[LINES]=lines;
+        }
+        if (weights==null)
+            return 0;
+        return weights[HOLES]*holes+weights[AGGREGATE_HEIGHT]*aggregateHeight
+                +weights[BUMPINESS]*bumpiness
+                +weights[ROW_TRANSITIONS]*rowTransitions
+                +weights[COLUMN_TRANSITIONS]*columnTransitions
+                +weights[WELLS]*wells+weights[LINES]*lines;
+    }
+    
+    /**
+     * Computes the weighted sum of the features of a board, without storing
+     * the features anywhere
+     * 
+     * @param g The board
+     * @param lines The number of lines cleared on the way to the board
+     * @param weights The weights, indexed by the feature constants
+     * @return the sum of every feature times its weight
+     */
+    public static double weigh(Grid g,int lines,double[] weights) {
+        return extract(g,lines,null,weights);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ * 
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ * 
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * Interface for the board heuristics used by the AI searches
+ */
+public interface Evaluator{
+    
+    /**
+     * Scores a board reached by the search. Implementations may be called
+     * from several search threads at once.
+     * 
+     * @param g The board, which must not be modified
+     * @param lines The number of lines cleared on the way to this board
+     * @return the score, higher is better
+     */
+    public double evaluate(Grid g,int lines);
+}
@@ -0,0 +1,147 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the background work of the program: game windows being set up,
+ * network connections being read and AI searches. Each of those gets a
+ * thread of its own. On Java 21 and later these are virtual threads, which
+ * are cheap to create and to block and all share one scheduler with a
+ * carrier thread per core, so one process can serve thousands of
+ * connections and searches without as many operating system threads. On
+ * older versions they are daemon platform threads. The virtual thread API is
+ * looked up by reflection, so the code still compiles and runs on older
+ * versions; running with -Dpentris.threads=platform uses platform threads
+ * anyway.
+ *
+ * Work that repeats every tick, like sending network frames, runs on one
+ * shared scheduler thread instead of a timer thread per connection, so it
+ * must be short.
+ */
+public class Execution{
+    private static final ThreadFactory FACTORY;
+    private static final boolean VIRTUAL;
+    private static ScheduledExecutorService ticker;
+    private static ExecutorService tasks;
+
+    static{
+        ThreadFactory virtual=null;
+        if (!"platform".equals(System.getProperty("pentris.threads"))){ //$NON-NLS-1$ //$NON-NLS-2$
+            try{
+                Object builder=Thread.class.getMethod("ofVirtual").invoke(null); //$NON-NLS-1$
+                virtual=(ThreadFactory) Class.forName("java.lang.Thread$Builder") //$NON-NLS-1$
+                        .getMethod("factory").invoke(builder); //$NON-NLS-1$
+            }catch (Exception e){
+                /* Older Java, or virtual threads are a preview feature */
+            }
+        }
+        VIRTUAL=virtual!=null;
+        FACTORY=VIRTUAL ? virtual: new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t=new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Gets the executor that runs every task on a new thread, for example
+     * AI searches. Without virtual threads, idle threads are reused.
+     *
+     * @return the executor, shared by the whole program
+     */
+    public static synchronized ExecutorService getTasks() {
+        if (tasks==null){
+            if (VIRTUAL){
+                try{
+                    tasks=(ExecutorService) Executors.class.getMethod(
+                            "newThreadPerTaskExecutor",ThreadFactory.class) //$NON-NLS-1$
+                            .invoke(null,FACTORY);
+                }catch (Exception e){
+                    /* Use the pool below */
+                }
+            }
+            if (tasks==null)
+                tasks=Executors.newCachedThreadPool(FACTORY);
+        }
+        return tasks;
+    }
+
+    /**
+     * @return true if threads of this class are virtual threads
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Makes a thread that does not keep the program alive on its own
+     *
+     * @param r What the thread runs
+     * @param name The name of the thread
+     * @return the thread, not started yet
+     */
+    public static Thread newThread(Runnable r,String name) {
+        Thread ret=FACTORY.newThread(r);
+        ret.setName(name);
+        return ret;
+    }
+
+    /**
+     * Runs something every period on the shared scheduler thread
+     *
+     * @param r What to run, it must be short
+     * @param periodMillis The period, in milliseconds
+     * @return the future to cancel it with
+     */
+    public static synchronized ScheduledFuture<?> schedule(Runnable r,
+            long periodMillis) {
+        if (ticker==null){
+            ticker=Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory(){
+                        @Override
+                        public Thread newThread(Runnable task) {
+                            Thread t=new Thread(task,"Pentris ticks"); //$NON-NLS-1$
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return ticker.scheduleAtFixedRate(r,periodMillis,periodMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a thread that does not keep the program alive on its own
+     *
+     * @param r What the thread runs
+     * @param name The name of the thread
+     * @return the started thread
+     */
+    public static Thread start(Runnable r,String name) {
+        Thread ret=newThread(r,name);
+        ret.start();
+        return ret;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ * 
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ * 
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One frame of the network protocol: all messages one side sent during one
+ * tick. On the wire a frame is its length as a varint, followed by the tick
+ * as a varint and the messages. A message is a type byte followed by the
+ * arguments of that type, see NetIO. Numbers are written as varints, 7 bits
+ * per byte with the high bit set on all but the last byte, so small numbers
+ * take one byte; signed longs are zigzag encoded first.
+ * 
+ * A frame is either built with the put methods and then sent with toBytes,
+ * or read from a stream or buffer and then taken apart with the next
+ * methods.
+ */
+public class Frame{
+    /**
+     * Frames larger than this are treated as a protocol error
+     */
+    public static final int MAX_LENGTH=1<<20;
+    
+    private byte[] data;
+    private int length;
+    private int position; /* Of the next byte to read */
+    private int tick;
+    
+    /**
+     * Starts a new frame
+     * 
+     * @param tick The tick of the messages in the frame
+     */
+    public Frame(int tick) {
+        data=new byte[32];
+        this.tick=tick;
+        putVarint(tick);
+    }
+    
+    /**
+     * Wraps a received frame
+     * 
+     * @param payload The bytes after the length
+     * @throws ProtocolException if the tick cannot be read
+     */
+    private Frame(byte[] payload) throws ProtocolException {
+        data=payload;
+        length=payload.length;
+        tick=(int) nextVarint();
+    }
+    
+    /**
+     * @return the tick of the messages in the frame
+     */
+    public int getTick() {
+        return tick;
+    }
+    
+    /**
+     * @return true if there is another message to read
+     */
+    public boolean hasNext() {
+        return position<length;
+    }
+    
+    /**
+     * @return true if no message was put into the frame
+     */
+    public boolean isEmpty() {
+        return length==varintSize(tick);
+    }
+    
+    /**
+     * Reads a byte array that was put with putBytes
+     * 
+     * @return the bytes
+     * @throws ProtocolException if the frame ends too early
+     */
+    public byte[] nextBytes() throws ProtocolException {
+        int n=(int) nextVarint();
+        if (n<0||n>length-position)
+            throw new ProtocolException("Frame too short"); //$NON-NLS-1$
+        byte[] ret=Arrays.copyOfRange(data,position,position+n);
+        position+=n;
+        return ret;
+    }
+    
+    /**
+     * Reads a signed number that was put with putLong
+     * 
+     * @return the number
+     * @throws ProtocolException if the frame ends too early
+     */
+    public long nextLong() throws ProtocolException {
+        long z=nextVarint();
+        return z>>>1^-(z&1);
+    }
+    
+    /**
+     * Reads the type of the next message
+     * 
+     * @return the message type
+     * @throws ProtocolException if the frame ends too early
+     */
+    public int nextType() throws ProtocolException {
+        if (position>=length)
+            throw new ProtocolException("Frame too short"); //$NON-NLS-1$
+        return data[position++]&255;
+    }
+    
+    /**
+     * Reads a varint
+     * 
+     * @return the number
+     * @throws ProtocolException if the frame ends too early or the number is
+     *         too long
+     */
+    public long nextVarint() throws ProtocolException {
+        long ret=0;
+        for (int shift=0; shift<64; shift+=7){
+            if (position>=length)
+                throw new ProtocolException("Frame too short"); //$NON-NLS-1$
+            int b=data[position++];
+            ret|=(long) (b&127)<<shift;
+            if (b>=0)
+                return ret;
+        }
+        throw new ProtocolException("Varint too long"); //$NON-NLS-1$
+    }
+    
+    /**
+     * Adds a byte array, prefixed by its length
+     * 
+     * @param b The bytes
+     * @return this frame
+     */
+    public Frame putBytes(byte[] b) {
+        putVarint(b.length);
+        reserve(b.length);
+        System.arraycopy(b,0,data,length,b.length);
+        length+=b.length;
+        return this;
+    }
+    
+    /**
+     * Adds a signed number, zigzag encoded so small negative numbers are
+     * short too
+     * 
+     * @param v The number
+     * @return this frame
+     */
+    public Frame putLong(long v) {
+        return putVarint(v<<1^v>>63);
+    }
+    
+    /**
+     * Starts a message
+     * 
+     * @param type The message type, from 0 to 255
+     * @return this frame
+     */
+    public Frame putType(int type) {
+        reserve(1);
+        data[length++]=(byte) type;
+        return this;
+    }
+    
+    /**
+     * Adds an unsigned number
+     * 
+     * @param v The number, negative numbers take 10 bytes
+     * @return this frame
+     */
+    public Frame putVarint(long v) {
+        reserve(10);
+        while ((v&~127L)!=0){
+            data[length++]=(byte) (v&127|128);
+            v>>>=7;
+        }
+        data[length++]=(byte) v;
+        return this;
+    }
+    
+    /**
+     * Reads a frame from a stream, blocking until it is complete
+     * 
+     * @param in The stream
+     * @return the frame, or null if the stream ended between frames
+     * @throws IOException if the stream fails, ends within a frame or does
+     *         not hold a valid frame
+     */
+    public static Frame read(InputStream in) throws IOException {
+        int n=0;
+        for (int shift=0;; shift+=7){
+            int b=in.read();
+            if (b<0){
+                if (shift==0)
+                    return null;
+                throw new EOFException();
+            }
+            n|=(b&127)<<shift;
+            if (b<128)
+                break;
+            if (shift>=28)
+                throw new ProtocolException("Frame length too long"); //$NON-NLS-1$
+        }
+        if (n<=0||n>MAX_LENGTH)
+            throw new ProtocolException("Bad frame length "+n); //$NON-NLS-1$
+        byte[] payload=new byte[n];
+        for (int read=0; read<n;){
+            int r=in.read(payload,read,n-read);
+            if (r<0)
+                throw new EOFException();
+            read+=r;
+        }
+        return new Frame(payload);
+    }
+    
+    /**
+     * Takes a frame from a buffer if it holds a complete one
+     * 
+     * @param in The buffer, ready to be read. It is left at the end of the
+     *        frame, or unchanged if the frame is not complete yet.
+     * @return the frame, or null if the buffer does not hold a complete frame
+     * @throws ProtocolException if the buffer does not hold a valid frame
+     */
+    public static Frame read(ByteBuffer in) throws ProtocolException {
+        int start=in.position();
+        int n=0;
+        for (int shift=0;; shift+=7){
+            if (!in.hasRemaining()){
+                in.position(start);
+                return null;
+            }
+            int b=in.get()&255;
+            n|=(b&127)<<shift;
+            if (b<128)
+                break;
+            if (shift>=28)
+                throw new ProtocolException("Frame length too long"); //$NON-NLS-1$
+        }
+        if (n<=0||n>MAX_LENGTH)
+            throw new ProtocolException("Bad frame length "+n); //$NON-NLS-1$
+        if (in.remaining()<n){
+            in.position(start);
+            return null;
+        }
+        byte[] payload=new byte[n];
+        in.get(payload);
+        return new Frame(payload);
+    }
+    
+    /**
+     * Makes room for more bytes
+     * 
+     * @param n The number of bytes that will be added
+     */
+    private void reserve(int n) {
+        if (length+n>data.length)
+            data=Arrays.copyOf(data,Math.max(2*data.length,length+n));
+    }
+    
+    /**
+     * Gets the frame as it is sent
+     * 
+     * @return the length followed by the contents
+     */
+    public byte[] toBytes() {
+        byte[] ret=new byte[varintSize(length)+length];
+        int p=0;
+        for (long v=length; ; v>>>=7){
+            if ((v&~127L)==0){
+                ret[p++]=(byte) v;
+                break;
+            }
+            ret[p++]=(byte) (v&127|128);
+        }
+        System.arraycopy(data,0,ret,p,length);
+        return ret;
+    }
+    
+    /**
+     * @param v An unsigned number
+     * @return the number of bytes of its varint
+     */
+    private static int varintSize(long v) {
+        int ret=1;
+        while ((v&~127L)!=0){
+            v>>>=7;
+            ret++;
+        }
+        return ret;
+    }
+}
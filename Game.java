@@ -22,7 +22,6 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.Random;
 import javax.swing.JFrame;
 import javax.swing.Timer;
 import javax.swing.JOptionPane;
@@ -35,34 +34,30 @@ import javax.swing.JOptionPane;
  * deleted. The game ends if no more pieces can be put on the board without
  * hitting the upper edge
  */
-public class Game implements ActionListener, Runnable, Opponent, Serializable{
-    private static final int BASE_SCORE_PER_LINE=100, INITIAL_RATE=500,
-            MINIMUM_RATE=100, REWARD_SCORE_PER_LINE=50, SCORE_PER_MS_RATE=20;
-    
-    public static final int LARGE_GRID_HEIGHT=33, LARGE_GRID_WIDTH=16,
-            MEDIUM_GRID_HEIGHT=22, MEDIUM_GRID_WIDTH=11, SMALL_GRID_HEIGHT=11,
-            SMALL_GRID_WIDTH=6;
-    
-    private static final long serialVersionUID=-7465802064680301359L;
-    
-    private Polyomino activePentomino, previewPentomino;
-    private int activeX, activeY;
-    private boolean allowPentoes, allowTetroes, allowOtherPieces, cpuPlayer,
-            gameIsOver, veryFunMode, frameIsRight, running=true;
-    private Integer bottomLinesToAdd; /* For multiplayer mode */
-    private long completedLines, score;
+public class Game implements ActionListener, GameListener, Runnable,
+        Opponent, Serializable{
+    public static final int LARGE_GRID_HEIGHT=GameEngine.LARGE_GRID_HEIGHT,
+            LARGE_GRID_WIDTH=GameEngine.LARGE_GRID_WIDTH,
+            MEDIUM_GRID_HEIGHT=GameEngine.MEDIUM_GRID_HEIGHT,
+            MEDIUM_GRID_WIDTH=GameEngine.MEDIUM_GRID_WIDTH,
+            SMALL_GRID_HEIGHT=GameEngine.SMALL_GRID_HEIGHT,
+            SMALL_GRID_WIDTH=GameEngine.SMALL_GRID_WIDTH;
+    
+    /* Changed when the rules moved to GameEngine, older saves are refused */
+    private static final long serialVersionUID=45925917338009417L;
+    
+    private boolean cpuPlayer, gameIsOver, veryFunMode, frameIsRight,
+            running=true;
+    private GameEngine engine; /* The rules, this class is the user interface */
     private JFrame frame;
     private AI gameAI;
-    private Grid grid;
     private MenuSystem menu;
     private Timer moveDownTimer; /* Use synchronized access only */
     private Opponent otherGame; /* For multiplayer mode */
     private GamePanel panel;
-    private PolyominoFactory pFactory;
-    private Random randomGenerator;
-    private int rate; /* Depends on the difficulty */
     private final String SAVEGAME_FILE="savegame"; //$NON-NLS-1$
     private boolean mp_from_menu, noAutoMove;
+    private boolean watchOnly; /* Shows the game of someone else */
     private NetIO relayObject;
     private String frameTitle;
     
@@ -70,15 +65,23 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      * Initializes a game of pentris
      */
     public Game() {
-        allowPentoes=allowTetroes=allowOtherPieces=true;
-        grid=new Grid(MEDIUM_GRID_WIDTH,MEDIUM_GRID_HEIGHT);
+        this(new GameEngine());
+    }
+    
+    /**
+     * Initializes the user interface of a game of pentris
+     * 
+     * @param engine The game to show and control
+     */
+    private Game(GameEngine engine) {
+        this.engine=engine;
+        engine.addListener(this);
         cpuPlayer=false;
         if (cpuPlayer)
-            gameAI=new AI(this);
+            gameAI=new AI(engine);
         veryFunMode=false;
         menu=new MenuSystem(this);
-        pFactory=new PolyominoFactory();
-        moveDownTimer=new Timer(rate,this);
+        moveDownTimer=new Timer(engine.getRate(),this);
         gameInit();
     }
     
@@ -95,16 +98,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      * @param seed The RNG seed using which polyominoes are selected
      */
     public Game(long seed) {
-        allowPentoes=allowTetroes=allowOtherPieces=true;
-        grid=new Grid(MEDIUM_GRID_WIDTH,MEDIUM_GRID_HEIGHT);
-        cpuPlayer=false;
-        if (cpuPlayer)
-            gameAI=new AI(this);
-        veryFunMode=false;
-        menu=new MenuSystem(this);
-        pFactory=new PolyominoFactory(seed);
-        moveDownTimer=new Timer(rate,this);
-        gameInit();
+        this(new GameEngine(seed));
     }
 
     public Game(long seed, String name)
@@ -129,28 +123,8 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      */
     public void addBottomLines(int count) {
 	if (relayObject != null)
-		relayObject.relayAddRubble((byte)count);
-        synchronized (bottomLinesToAdd){
-            bottomLinesToAdd+=count;
-        }
-    }
-    
-    /**
-     * Calculates the score, rewarding multiple lines
-     * 
-     * @param nr Number of lines deleted
-     * @return The score
-     */
-    private long calculateScore(int nr) {
-        int nrLines=nr;
-        long ret=nrLines*BASE_SCORE_PER_LINE;
-        int step=REWARD_SCORE_PER_LINE;
-        while (nrLines>1){
-            ret+=step;
-            step+=REWARD_SCORE_PER_LINE;
-            nrLines--;
-        }
-        return ret;
+		relayObject.relayAddRubble(count);
+        engine.addBottomLines(count);
     }
     
     /*
@@ -168,11 +142,9 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
     @Override
     public void changeGridSize(int width,int height,boolean changeOpponent) {
         frame.setSize(width*20+200,height*20+100);
-        grid=new Grid(width,height);
-        if (cpuPlayer)
-            gameAI=new AI(this);
+        engine.setGridSize(width,height);
         if (frameIsRight)
-            frame.setLocation(grid.getLength()*20+200,0);
+            frame.setLocation(width*20+200,0);
         pauseGame();
         if (otherGame!=null&&changeOpponent){
             otherGame.changeGridSize(width,height,false);
@@ -186,8 +158,14 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      * Let the bot calculate placements
      */
     private void doAI() {
-        if (cpuPlayer&&!isPaused()&&(otherGame==null||otherGame.isCpuPlayer()))
-            gameAI.place(activePentomino,previewPentomino);
+        if (cpuPlayer&&!isPaused()&&(otherGame==null||otherGame.isCpuPlayer())){
+            gameAI.placeLater(engine.getRate()/2,new Runnable(){
+                @Override
+                public void run() {
+                    frame.repaint();
+                }
+            });
+        }
     }
     
     /**
@@ -200,10 +178,16 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
             return false;
 	if (relayObject != null)
 		relayObject.relayMoveDown();
-        if (move(0,1)==false){
-            removeCompleteLines();
-            if (makeNextPolyomino()==false)
-                return false; /* game over */
+        if (lockstep())
+            return true;
+        if (engine.moveDown()==false){
+            if (engine.isGameOver()){
+                gameOver(true, false);
+                return false;
+            }
+            panel.setPreviewPiece(engine.getPreviewPiece());
+            if (relayObject!=null)
+                relayObject.relayPieceLocked(engine);
             if (veryFunMode)
                 panel.rotate();
             if (otherGame!=null)
@@ -227,33 +211,10 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
         boolean ret=false;
 	if (relayObject != null)
 		relayObject.relayRotate();
+        if (lockstep())
+            return false;
         if (!isPaused()&&!gameIsOver){
-            Polyomino tmp=(Polyomino) activePentomino.clone();
-            grid.remove(activePentomino,activeX,activeY);
-            tmp.rotate();
-            if (grid.canPlacePiece(tmp,activeX,activeY)){
-                activePentomino=tmp;
-                ret=true;
-            }else if (grid.canPlacePiece(tmp,activeX-1,activeY)){
-                activePentomino=tmp;
-                activeX--;
-                ret=true;
-            }else if (grid.canPlacePiece(tmp,activeX+1,activeY)){
-                activePentomino=tmp;
-                activeX++;
-                ret=true;
-            }else if (grid.canPlacePiece(tmp,activeX-2,activeY)){
-                activePentomino=tmp;
-                activeX--;
-                activeX--;
-                ret=true;
-            }else if (grid.canPlacePiece(tmp,activeX+2,activeY)){
-                activePentomino=tmp;
-                activeX++;
-                activeX++;
-                ret=true;
-            }
-            grid.place(activePentomino,activeX,activeY);
+            ret=engine.rotate();
             frame.repaint();
         }
         return ret;
@@ -263,32 +224,29 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      * Drops the active piece at the current position as far as it can go
      */
     public void dropDown() {
-        if (!isPaused()){
-            while (doMoveDown(false)&&!gameIsOver){/* drop it! */}
+        if (lockstep()){
+            if (!gameIsOver)
+                relayObject.relayDrop();
+            return;
+        }
+        if (!isPaused()&&!gameIsOver){
+            int distance=engine.dropDistance();
+            if (relayObject!=null){
+                for (int y=0; y<distance; y++)
+                    relayObject.relayMoveDown();
+            }
+            engine.move(0,distance);
+            doMoveDown(false);
         }
     }
     
     /**
-     * Game Initialization
+     * Game Initialization, after the engine has started a new game
      */
-    @SuppressWarnings("boxing")
     private void gameInit() {
         gameIsOver=mp_from_menu=false;
-        rate=INITIAL_RATE;
-        setGameRate(rate);
+        setGameRate(engine.getRate());
         pauseGame();
-        randomGenerator=new Random();
-        activePentomino=
-                pFactory.next(allowPentoes,allowTetroes,allowOtherPieces);
-        previewPentomino=
-                pFactory.next(allowPentoes,allowTetroes,allowOtherPieces);
-        activeX=grid.getLength()/2;
-        activeY=2;
-        while (grid.canPlacePiece(activePentomino,activeX,activeY-1)){
-            activeY-=1;
-        }
-        bottomLinesToAdd=0;
-        score=0;
     }
     
     /*
@@ -298,9 +256,14 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
     @Override
     public void gameOver(boolean showHighScores, boolean hideNoScore) {
         frame.setTitle("G A M E   O V E R");
-        grid.place(activePentomino,activeX,activeY);
+        engine.endGame();
         if (gameIsOver)
             return;
+        if (watchOnly){
+            gameIsOver=true; /* Not our score, and not ours to restart */
+            return;
+        }
+        long score=engine.getScore();
 	if (score != 0 || !hideNoScore) {
 		if (otherGame==null){
 		    if (showHighScores&&score!=0){
@@ -326,6 +289,35 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
         restart(true);
     }
     
+    /*
+     * @see GameListener#gameOver(GameEngine)
+     */
+    @SuppressWarnings("nls")
+    @Override
+    public void gameOver(GameEngine e) {
+        if (e.isReplaying())
+            return;
+        frame.setTitle("G A M E   O V E R");
+    }
+    
+    /**
+     * Gets the pieces allowed
+     * 
+     * @return whether pentominoes, tetrominoes and other pieces are allowed
+     */
+    public boolean[] getAllowedPieces() {
+        return engine.getAllowedPieces();
+    }
+    
+    /**
+     * Gets the engine that plays this game
+     * 
+     * @return the game without its user interface
+     */
+    public GameEngine getEngine() {
+        return engine;
+    }
+    
     /**
      * Get the JFrame in which this game is displayed
      * 
@@ -347,7 +339,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      *         it's current position.
      */
     public Grid getGrid() {
-        return grid;
+        return engine.getGrid();
     }
     
     /**
@@ -356,7 +348,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      * @return number of deleted lines
      */
     public long getLines() {
-        return completedLines;
+        return engine.getLines();
     }
     
     /**
@@ -365,7 +357,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      * @return the score
      */
     public long getScore() {
-        return score;
+        return engine.getScore();
     }
     
     /*
@@ -402,38 +394,21 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
         instream=new ObjectInputStream(reader);
         Game g=(Game) instream.readObject();
         instream.close();
-        changeGridSize(g.grid.getLength(),g.grid.getHeight(),false);
+        Grid loaded=g.engine.getGrid();
+        changeGridSize(loaded.getLength(),loaded.getHeight(),false);
         setGame(g);
         run();
         
     }
     
     /**
-     * Make the preview pentomino the active pentomino and generate a new
-     * preview pentomino.
+     * Are moves played by a Lockstep instead of right away? The moves are
+     * only relayed then, the network game plays them in their tick.
      * 
-     * @return False if the pentomino cannot be placed at the top of the board
-     *         (i.e. game over), true otherwise
+     * @return true in a lockstep network game
      */
-    private boolean makeNextPolyomino() {
-        activePentomino=previewPentomino;
-        
-        previewPentomino=
-                pFactory.next(allowPentoes,allowTetroes,allowOtherPieces);
-        panel.setPreviewPiece(previewPentomino);
-        
-        activeX=grid.getLength()/2;
-        activeY=2;
-        
-        if (!grid.canPlacePiece(activePentomino,activeX,activeY)){
-            gameOver(true, false);
-            return false;
-        }
-        
-        while (grid.canPlacePiece(activePentomino,activeX,activeY-1)){
-            activeY-=1;
-        }
-        return true;
+    private boolean lockstep() {
+        return relayObject!=null&&relayObject.isLockstep();
     }
     
     /**
@@ -446,15 +421,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
     public boolean move(int deltaX,int deltaY) {
         if (gameIsOver)
             return false;
-        grid.remove(activePentomino,activeX,activeY);
-        if (grid.canPlacePiece(activePentomino,activeX+deltaX,activeY+deltaY)){
-            activeY+=deltaY;
-            activeX+=deltaX;
-            grid.place(activePentomino,activeX,activeY);
-            return true;
-        }
-        grid.place(activePentomino,activeX,activeY);
-        return false;
+        return engine.move(deltaX,deltaY);
     }
     
     /**
@@ -471,6 +438,8 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
     public void moveLeft() {
 	if (relayObject != null)
 		relayObject.relayMoveLeft();
+        if (lockstep())
+            return;
         if (!isPaused()&&!gameIsOver){
             move(-1,0);
             frame.repaint();
@@ -483,6 +452,8 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
     public void moveRight() {
 	if (relayObject != null)
 		relayObject.relayMoveRight();
+        if (lockstep())
+            return;
         if (!isPaused()&&!gameIsOver){
             move(1,0);
             frame.repaint();
@@ -495,8 +466,12 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
     @Override
     public void opponentDropped() {
         if (cpuPlayer&&!isPaused()&&!otherGame.isCpuPlayer()&&!gameIsOver){
-            gameAI.place(activePentomino,previewPentomino);
-            doMoveDown(false);
+            gameAI.placeLater(engine.getRate()/2,new Runnable(){
+                @Override
+                public void run() {
+                    doMoveDown(false);
+                }
+            });
         }
     }
     
@@ -516,38 +491,33 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
     }
     
     /**
-     * Remove filled lines, update score and game speed, send rubble to the
-     * opponent if nessecary and add rubble to the bottom of this game if
-     * nessecary.
+     * Update the game speed and send rubble to the opponent if nessecary. The
+     * engine adds rubble to the bottom of this game afterwards.
+     * 
+     * @see GameListener#pieceLocked(GameEngine, int)
      */
-    @SuppressWarnings("boxing")
-    private void removeCompleteLines() {
-        int lineNr;
-        int nrCompletedLines=0;
-        do{
-            lineNr=grid.hasCompleteLine();
-            if (lineNr>=0){
-                nrCompletedLines++;
-                grid.deleteLine(lineNr);
-            }
-        }while (lineNr>=0);
-        completedLines+=nrCompletedLines;
-        score+=calculateScore(nrCompletedLines);
-        rate=(int) (INITIAL_RATE-score/SCORE_PER_MS_RATE);
-        if (rate<MINIMUM_RATE)
-            rate=MINIMUM_RATE;
-        setGameRate(rate);
+    @Override
+    public void pieceLocked(GameEngine e,int nrCompletedLines) {
+        if (e.isReplaying())
+            return; /* Shown by refresh once the game caught up */
+        setGameRate(e.getRate());
         if (otherGame instanceof Game && nrCompletedLines > 1) {
 		Game opponent = (Game) otherGame;
 		opponent.addBottomLines(nrCompletedLines);
 	}
-        synchronized (bottomLinesToAdd){
-            while (bottomLinesToAdd>0){
-                int emptyColumn=randomGenerator.nextInt(grid.getLength());
-                grid.addBottomLine(emptyColumn);
-                bottomLinesToAdd--;
-            }
-        }
+    }
+    
+    /**
+     * Shows the game after its engine was changed from elsewhere, also when
+     * the listener ignored the changes because they were replayed
+     */
+    @SuppressWarnings("nls")
+    public void refresh() {
+        setGameRate(engine.getRate());
+        if (engine.isGameOver())
+            frame.setTitle("G A M E   O V E R");
+        panel.setPreviewPiece(engine.getPreviewPiece());
+        frame.repaint();
     }
     
     /*
@@ -563,9 +533,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
         if (otherGame!=null&&restartOpponent){
             otherGame.restart(false);
         }
-        grid=new Grid(grid.getLength(),grid.getHeight());
-        if (cpuPlayer)
-            gameAI=new AI(this);
+        engine.restart();
         gameInit();
         run();
     }
@@ -583,21 +551,26 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
 			frame.setTitle("Pentris!");
 		else
 			frame.setTitle(frameTitle);
+                Grid grid=engine.getGrid();
                 frame.setSize(grid.getLength()*20+200,grid.getHeight()*20+100);
                 frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
                 frame.setJMenuBar(menu);
                 if (frameIsRight)
                     frame.setLocation(grid.getLength()*20+200,0);
             }
-            rate=INITIAL_RATE;
-            completedLines=0;
-            panel=new GamePanel(this,grid);
-            panel.setPreviewPiece(previewPentomino);
+            panel=new GamePanel(this,engine.getGrid());
+            panel.setPreviewPiece(engine.getPreviewPiece());
             frame.setContentPane(panel);
             frame.setVisible(true);
-            grid.place(activePentomino,activeX,activeY);
+            engine.getGrid().place(engine.getActivePiece(),
+                    engine.getActiveX(),engine.getActiveY());
             if (cpuPlayer&&!isPaused()){
-                gameAI.place(activePentomino,previewPentomino);
+                gameAI.placeLater(engine.getRate()/2,new Runnable(){
+                    @Override
+                    public void run() {
+                        frame.repaint();
+                    }
+                });
             }
             this.notifyAll();
         }
@@ -622,9 +595,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      * @param other Are other pieces (2 and 3-squares) allowed
      */
     public void setAllowedPieces(boolean pents,boolean tets,boolean other) {
-        allowPentoes=pents;
-        allowTetroes=tets;
-        allowOtherPieces=other;
+        engine.setAllowedPieces(pents,tets,other);
     }
     
     /**
@@ -635,7 +606,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
     public void setCpuPlayer(boolean cpu) {
         cpuPlayer=cpu;
         if (cpu){
-            gameAI=new AI(this);
+            gameAI=new AI(engine);
             frame.repaint();
             if (otherGame!=null&&otherGame.isCpuPlayer())
                 setSeed(System.currentTimeMillis());
@@ -648,6 +619,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      */
     public void setFunMode() {
         veryFunMode=false;
+        Grid grid=engine.getGrid();
         frame.setSize(grid.getHeight()*20+200,grid.getHeight()*20+100);
         panel.rotate();
     }
@@ -659,18 +631,9 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      */
     private void setGame(Game g) {
         gameIsOver=false;
-        grid.setGrid(g.grid.getGrid());
-        rate=g.rate;
-        setGameRate(rate);
+        engine.copyFrom(g.engine);
+        setGameRate(engine.getRate());
         pauseGame();
-        randomGenerator=g.randomGenerator;
-        activePentomino=g.activePentomino;
-        previewPentomino=g.previewPentomino;
-        activeX=g.activeX;
-        activeY=g.activeY;
-        bottomLinesToAdd=g.bottomLinesToAdd;
-        score=g.score;
-        completedLines=g.completedLines;
     }
     
     /**
@@ -688,6 +651,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      * Turn off the fun modes
      */
     public void setNoFunMode() {
+        Grid grid=engine.getGrid();
         frame.setSize(grid.getLength()*20+200,grid.getHeight()*20+100);
         panel.setFunRotations(0);
         veryFunMode=false;
@@ -715,10 +679,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      * @param seed The seed for the RNG
      */
     public void setSeed(long seed) {
-        grid=new Grid(MEDIUM_GRID_WIDTH,MEDIUM_GRID_HEIGHT);
-        if (cpuPlayer)
-            gameAI=new AI(this);
-        pFactory=new PolyominoFactory(seed);
+        engine.setSeed(seed);
         gameInit();
         run();
     }
@@ -729,6 +690,7 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
      */
     public void setVeryFunMode() {
         veryFunMode=true;
+        Grid grid=engine.getGrid();
         frame.setSize(grid.getHeight()*20+200,grid.getHeight()*20+100);
     }
     
@@ -779,6 +741,15 @@ public class Game implements ActionListener, Runnable, Opponent, Serializable{
 		    }
     }
 
+    /**
+     * Makes this game show the game of someone else, for example for a
+     * spectator. When it ends it just stops: the score does not go into the
+     * high scores, no message is shown and no new game starts.
+     */
+    public void setWatchOnly() {
+        watchOnly=true;
+    }
+
     public void relayMovements(NetIO relayTarget)
     {
 	    relayObject = relayTarget;
@@ -0,0 +1,768 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The state and rules of one game of pentris, without any user interface. The
+ * game advances only through step() and the methods it is built from, so the
+ * same seed and the same actions always give the same game. Listeners are
+ * told when pieces lock and when the game is over.
+ *
+ * The whole state can be saved and restored cheaply, so network games can go
+ * back a few ticks and play them again; see save and Lockstep.
+ */
+public class GameEngine implements Serializable{
+    /**
+     * A saved state of a game, see save and restore
+     */
+    public static class State{
+        private int activeIndex, activeRotation, previewIndex, previewRotation;
+        private boolean allowPentoes, allowTetroes, allowOtherPieces, over;
+        private long lines, score;
+        private byte[] random; /* Shared with the game and other states */
+        private int rate, rubble, x, y;
+        private byte[][] squares;
+
+        /**
+         * @return true if the game had ended
+         */
+        public boolean isGameOver() {
+            return over;
+        }
+    }
+
+    public static final int ACTION_DOWN=0, ACTION_DROP=1, ACTION_LEFT=2,
+            ACTION_RIGHT=3, ACTION_ROTATE=4;
+
+    public static final int INITIAL_RATE=500, MINIMUM_RATE=100;
+
+    public static final int LARGE_GRID_HEIGHT=33, LARGE_GRID_WIDTH=16,
+            MEDIUM_GRID_HEIGHT=22, MEDIUM_GRID_WIDTH=11, SMALL_GRID_HEIGHT=11,
+            SMALL_GRID_WIDTH=6;
+
+    private static final int BASE_SCORE_PER_LINE=100,
+            REWARD_SCORE_PER_LINE=50, SCORE_PER_MS_RATE=20;
+    private static final int RANDOM_STATE_FORMAT=2;
+
+    private static final long serialVersionUID=2709305385512357617L;
+
+    private Polyomino activePentomino, previewPentomino;
+    private int activeX, activeY;
+    private boolean allowPentoes, allowTetroes, allowOtherPieces, gameIsOver;
+    private int bottomLinesToAdd; /* Use synchronized access only */
+    private long completedLines, score;
+    private Grid grid;
+    private transient List<GameListener> listeners;
+    private PolyominoFactory pFactory;
+    /* Picks the open square of rubble, a SeededRandom, see readObject */
+    private Random randomGenerator;
+    /* The random generators as last encoded by save, null once they were
+     * used after that */
+    private transient byte[] randomState;
+    private int rate; /* Depends on the difficulty */
+    private transient boolean replaying; /* See isReplaying */
+
+    /**
+     * Creates a game on a medium grid with a random seed
+     */
+    public GameEngine() {
+        this(new PolyominoFactory(),new SeededRandom());
+    }
+
+    /**
+     * Creates a game on a medium grid with a specified seed. The seed selects
+     * the polyominoes as well as the open squares in rubble lines.
+     *
+     * @param seed The RNG seed
+     */
+    public GameEngine(long seed) {
+        this(new PolyominoFactory(seed),new SeededRandom(seed));
+    }
+
+    /**
+     * Creates a game on a medium grid with a specified seed and randomizer
+     *
+     * @param seed The RNG seed
+     * @param randomizer One of the PolyominoFactory randomizers
+     */
+    public GameEngine(long seed,int randomizer) {
+        this(new PolyominoFactory(seed,randomizer),new SeededRandom(seed));
+    }
+
+    /**
+     * Creates a game on a medium grid
+     *
+     * @param factory The source of the polyominoes
+     * @param rubbleGenerator The RNG that picks the open square in rubble
+     */
+    private GameEngine(PolyominoFactory factory,Random rubbleGenerator) {
+        allowPentoes=allowTetroes=allowOtherPieces=true;
+        grid=new Grid(MEDIUM_GRID_WIDTH,MEDIUM_GRID_HEIGHT);
+        pFactory=factory;
+        randomGenerator=rubbleGenerator;
+        restart();
+    }
+
+    /**
+     * Queues rubble lines, they are added after the next piece locks
+     *
+     * @param count The number of lines
+     */
+    public synchronized void addBottomLines(int count) {
+        bottomLinesToAdd+=count;
+    }
+
+    /**
+     * Adds a listener
+     *
+     * @param l The listener
+     */
+    public synchronized void addListener(GameListener l) {
+        if (listeners==null)
+            listeners=new ArrayList<GameListener>();
+        listeners.add(l);
+    }
+
+    /**
+     * Calculates the score, rewarding multiple lines
+     *
+     * @param nr Number of lines deleted
+     * @return The score
+     */
+    private static long calculateScore(int nr) {
+        int nrLines=nr;
+        long ret=nrLines*BASE_SCORE_PER_LINE;
+        int step=REWARD_SCORE_PER_LINE;
+        while (nrLines>1){
+            ret+=step;
+            step+=REWARD_SCORE_PER_LINE;
+            nrLines--;
+        }
+        return ret;
+    }
+
+    /**
+     * Sets this game to the state of another game, most likely read from a
+     * saved file. The grid keeps its identity, only its squares are replaced.
+     * Everything is copied, including the random generators, so this game
+     * gets the same pieces and rubble as the other one and moves in this game
+     * do not change the other game.
+     *
+     * @param g The game to copy
+     */
+    public void copyFrom(GameEngine g) {
+        grid.setGrid(g.grid.clone().getGrid());
+        gameIsOver=g.gameIsOver;
+        rate=g.rate;
+        randomGenerator=new SeededRandom((SeededRandom) g.randomGenerator);
+        pFactory=new PolyominoFactory(g.pFactory);
+        randomState=g.randomState;
+        activePentomino=(Polyomino) g.activePentomino.clone();
+        previewPentomino=(Polyomino) g.previewPentomino.clone();
+        activeX=g.activeX;
+        activeY=g.activeY;
+        allowPentoes=g.allowPentoes;
+        allowTetroes=g.allowTetroes;
+        allowOtherPieces=g.allowOtherPieces;
+        synchronized (this){
+            bottomLinesToAdd=g.bottomLinesToAdd;
+        }
+        score=g.score;
+        completedLines=g.completedLines;
+    }
+
+    /**
+     * Gets the number of lines the active piece would fall if dropped
+     *
+     * @return the drop distance
+     */
+    public int dropDistance() {
+        grid.remove(activePentomino,activeX,activeY);
+        int ret=grid.dropRow(activePentomino,activeX,activeY)-activeY;
+        grid.place(activePentomino,activeX,activeY);
+        return ret;
+    }
+
+    /**
+     * Ends the game, leaving the active piece on the grid
+     */
+    public void endGame() {
+        gameIsOver=true;
+        grid.place(activePentomino,activeX,activeY);
+    }
+
+    /**
+     * Tell the listeners a game is over
+     */
+    private void fireGameOver() {
+        GameListener[] l=getListeners();
+        for (int i=0; i<l.length; i++)
+            l[i].gameOver(this);
+    }
+
+    /**
+     * Tell the listeners a piece has locked
+     *
+     * @param lines The number of lines completed by the piece
+     */
+    private void firePieceLocked(int lines) {
+        GameListener[] l=getListeners();
+        for (int i=0; i<l.length; i++)
+            l[i].pieceLocked(this,lines);
+    }
+
+    /**
+     * @return the active piece
+     */
+    public Polyomino getActivePiece() {
+        return activePentomino;
+    }
+
+    /**
+     * @return the x-coordinate of the active piece
+     */
+    public int getActiveX() {
+        return activeX;
+    }
+
+    /**
+     * @return the y-coordinate of the active piece
+     */
+    public int getActiveY() {
+        return activeY;
+    }
+
+    /**
+     * Gets the pieces allowed
+     *
+     * @return whether pentominoes, tetrominoes and other pieces are allowed
+     */
+    public boolean[] getAllowedPieces() {
+        return new boolean[]{allowPentoes, allowTetroes, allowOtherPieces};
+    }
+
+    /**
+     * Gets the grid of this game
+     *
+     * @return the grid, also containing the active piece
+     */
+    public Grid getGrid() {
+        return grid;
+    }
+
+    /**
+     * Get the total number of lines deleted so far
+     *
+     * @return number of deleted lines
+     */
+    public long getLines() {
+        return completedLines;
+    }
+
+    /**
+     * @return a copy of the current listeners, safe to iterate
+     */
+    private synchronized GameListener[] getListeners() {
+        if (listeners==null)
+            return new GameListener[0];
+        return listeners.toArray(new GameListener[listeners.size()]);
+    }
+
+    /**
+     * @return the number of rubble lines that are added after the next piece
+     *         locks
+     */
+    public synchronized int getPendingRubble() {
+        return bottomLinesToAdd;
+    }
+
+    /**
+     * @return the preview piece
+     */
+    public Polyomino getPreviewPiece() {
+        return previewPentomino;
+    }
+
+    /**
+     * Gets the pieces that come after the active piece. The same seed gives
+     * the same pieces whether or not they are looked at in advance.
+     *
+     * @param count The number of pieces
+     * @return the preview piece followed by copies of the pieces after it
+     */
+    public Polyomino[] getPreviewPieces(int count) {
+        Polyomino[] ret=new Polyomino[Math.max(0,count)];
+        for (int i=0; i<ret.length; i++)
+            ret[i]=i==0 ? previewPentomino: pFactory.peek(i-1,allowPentoes,
+                    allowTetroes,allowOtherPieces);
+        return ret;
+    }
+
+    /**
+     * Gets the pace of the game
+     *
+     * @return the number of milliseconds between drops of the piece
+     */
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * Gets the score
+     *
+     * @return the score
+     */
+    public long getScore() {
+        return score;
+    }
+
+    /**
+     * Gets the state of the random generators that pick the pieces and the
+     * open squares of rubble. It is a Frame holding the state of the
+     * PolyominoFactory and of the rubble RNG, field by field.
+     *
+     * @return the state, to be given to setRandomState
+     */
+    public byte[] getRandomState() {
+        Frame f=new Frame(RANDOM_STATE_FORMAT);
+        pFactory.write(f);
+        f.putLong(((SeededRandom) randomGenerator).getState());
+        return f.toBytes();
+    }
+
+    /**
+     * Gets a hash of the state of the game: the squares, the pieces, the
+     * score, the rate and the queued rubble. Two games with the same hash
+     * are in the same state with near certainty.
+     *
+     * @return the hash
+     */
+    public long getStateHash() {
+        long ret=grid.getHash();
+        ret=TranspositionCache.mix(ret^activePentomino.getIndex()<<8
+                ^activePentomino.getRotation()^(long) activeX<<16
+                ^(long) activeY<<32);
+        ret=TranspositionCache.mix(ret^previewPentomino.getIndex()<<8
+                ^previewPentomino.getRotation()^(long) rate<<16
+                ^(long) getPendingRubble()<<40);
+        ret=TranspositionCache.mix(ret^score);
+        ret=TranspositionCache.mix(ret^completedLines^(gameIsOver ? 1L<<63: 0));
+        return ret;
+    }
+
+    /**
+     * Has the game ended
+     *
+     * @return true if a new piece did not fit or endGame() was called
+     */
+    public boolean isGameOver() {
+        return gameIsOver;
+    }
+
+    /**
+     * Is the game playing again moves that were already shown? A Lockstep
+     * does that after a rollback. Listeners that only show the game ignore
+     * the events meanwhile, the game is shown again once it caught up.
+     *
+     * @return true while moves are played again
+     */
+    public boolean isReplaying() {
+        return replaying;
+    }
+
+    /**
+     * Make the preview pentomino the active pentomino and generate a new
+     * preview pentomino.
+     *
+     * @return False if the pentomino cannot be placed at the top of the board
+     *         (i.e. game over), true otherwise
+     */
+    private boolean makeNextPolyomino() {
+        activePentomino=previewPentomino;
+        previewPentomino=
+                pFactory.next(allowPentoes,allowTetroes,allowOtherPieces);
+        randomState=null;
+        activeX=grid.getLength()/2;
+        activeY=2;
+        if (!grid.canPlacePiece(activePentomino,activeX,activeY))
+            return false;
+        while (grid.canPlacePiece(activePentomino,activeX,activeY-1)){
+            activeY-=1;
+        }
+        grid.place(activePentomino,activeX,activeY);
+        return true;
+    }
+
+    /**
+     * Moves the current piece horizontally and/or vertically, if possible
+     *
+     * @param deltaX left/right
+     * @param deltaY up/down
+     * @return true if the pentomino move is not blocked
+     */
+    public boolean move(int deltaX,int deltaY) {
+        if (gameIsOver)
+            return false;
+        grid.remove(activePentomino,activeX,activeY);
+        if (grid.canPlacePiece(activePentomino,activeX+deltaX,activeY+deltaY)){
+            activeY+=deltaY;
+            activeX+=deltaX;
+            grid.place(activePentomino,activeX,activeY);
+            return true;
+        }
+        grid.place(activePentomino,activeX,activeY);
+        return false;
+    }
+
+    /**
+     * Moves the active piece down a line. If it cannot move, it is locked:
+     * full lines are removed, queued rubble is added and the next piece
+     * becomes active.
+     *
+     * @return false if the piece could not move down
+     */
+    public boolean moveDown() {
+        if (gameIsOver)
+            return false;
+        if (move(0,1))
+            return true;
+        removeCompleteLines();
+        if (!makeNextPolyomino()){
+            endGame();
+            fireGameOver();
+        }
+        return false;
+    }
+
+    /**
+     * Makes sure the RNG can be copied after deserialization
+     *
+     * @param in the stream to read from
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        randomGenerator=SeededRandom.of(randomGenerator);
+    }
+
+    /**
+     * Remove filled lines, update score and game speed, tell the listeners
+     * (which may send rubble to an opponent) and add queued rubble to the
+     * bottom of this game.
+     */
+    private void removeCompleteLines() {
+        int nrCompletedLines=grid.clearCompleteLines();
+        completedLines+=nrCompletedLines;
+        score+=calculateScore(nrCompletedLines);
+        rate=(int) (INITIAL_RATE-score/SCORE_PER_MS_RATE);
+        if (rate<MINIMUM_RATE)
+            rate=MINIMUM_RATE;
+        firePieceLocked(nrCompletedLines);
+        int lines;
+        synchronized (this){
+            lines=bottomLinesToAdd;
+            bottomLinesToAdd=0;
+        }
+        if (lines>0)
+            randomState=null;
+        for (; lines>0; lines--)
+            grid.addBottomLine(randomGenerator.nextInt(grid.getLength()));
+    }
+
+    /**
+     * Removes a listener
+     *
+     * @param l The listener
+     */
+    public synchronized void removeListener(GameListener l) {
+        if (listeners!=null)
+            listeners.remove(l);
+    }
+
+    /**
+     * Starts a new game on an empty grid of the same size. The polyomino
+     * sequence continues where it was.
+     */
+    public void restart() {
+        grid=new Grid(grid.getLength(),grid.getHeight());
+        gameIsOver=false;
+        rate=INITIAL_RATE;
+        activePentomino=
+                pFactory.next(allowPentoes,allowTetroes,allowOtherPieces);
+        previewPentomino=
+                pFactory.next(allowPentoes,allowTetroes,allowOtherPieces);
+        randomState=null;
+        activeX=grid.getLength()/2;
+        activeY=2;
+        while (grid.canPlacePiece(activePentomino,activeX,activeY-1)){
+            activeY-=1;
+        }
+        grid.place(activePentomino,activeX,activeY);
+        synchronized (this){
+            bottomLinesToAdd=0;
+        }
+        score=0;
+        completedLines=0;
+    }
+
+    /**
+     * Goes back to a saved state. The grid keeps its identity.
+     *
+     * @param s A state saved by this game, or by a game of the same size
+     *        with the same randomizer
+     */
+    public void restore(State s) {
+        byte[][] squares=new byte[s.squares.length][];
+        for (int x=0; x<squares.length; x++)
+            squares[x]=s.squares[x].clone();
+        if (s.random!=randomState){
+            try{
+                setRandomState(s.random);
+            }catch (IOException e){
+                throw new IllegalStateException(e); /* We wrote it */
+            }
+            randomState=s.random;
+        }
+        grid.setGrid(squares);
+        activePentomino=new Polyomino(s.activeIndex,s.activeRotation);
+        previewPentomino=new Polyomino(s.previewIndex,s.previewRotation);
+        activeX=s.x;
+        activeY=s.y;
+        allowPentoes=s.allowPentoes;
+        allowTetroes=s.allowTetroes;
+        allowOtherPieces=s.allowOtherPieces;
+        synchronized (this){
+            bottomLinesToAdd=s.rubble;
+        }
+        score=s.score;
+        completedLines=s.lines;
+        rate=s.rate;
+        gameIsOver=s.over;
+    }
+
+    /**
+     * Rotates the current piece. If it is at the border, it will move away.
+     *
+     * @return false if the piece can't be rotated
+     */
+    public boolean rotate() {
+        boolean ret=false;
+        if (gameIsOver)
+            return false;
+        grid.remove(activePentomino,activeX,activeY);
+        activePentomino.rotate();
+        if (grid.canPlacePiece(activePentomino,activeX,activeY)){
+            ret=true;
+        }else if (grid.canPlacePiece(activePentomino,activeX-1,activeY)){
+            activeX--;
+            ret=true;
+        }else if (grid.canPlacePiece(activePentomino,activeX+1,activeY)){
+            activeX++;
+            ret=true;
+        }else if (grid.canPlacePiece(activePentomino,activeX-2,activeY)){
+            activeX--;
+            activeX--;
+            ret=true;
+        }else if (grid.canPlacePiece(activePentomino,activeX+2,activeY)){
+            activeX++;
+            activeX++;
+            ret=true;
+        }else{
+            activePentomino.rotateBack();
+        }
+        grid.place(activePentomino,activeX,activeY);
+        return ret;
+    }
+
+    /**
+     * Saves the state of the game, to go back to it with restore. This is
+     * cheap enough to do every tick: the squares are copied, but the random
+     * generators are only encoded again after pieces were drawn.
+     *
+     * @param into A state to reuse, or null for a new one
+     * @return the state
+     */
+    public State save(State into) {
+        State s=into==null ? new State(): into;
+        byte[][] squares=grid.getGrid();
+        if (s.squares==null||s.squares.length!=squares.length
+                ||s.squares[0].length!=squares[0].length)
+            s.squares=new byte[squares.length][squares[0].length];
+        for (int x=0; x<squares.length; x++)
+            System.arraycopy(squares[x],0,s.squares[x],0,squares[x].length);
+        if (randomState==null)
+            randomState=getRandomState();
+        s.random=randomState;
+        s.activeIndex=activePentomino.getIndex();
+        s.activeRotation=activePentomino.getRotation();
+        s.previewIndex=previewPentomino.getIndex();
+        s.previewRotation=previewPentomino.getRotation();
+        s.x=activeX;
+        s.y=activeY;
+        s.allowPentoes=allowPentoes;
+        s.allowTetroes=allowTetroes;
+        s.allowOtherPieces=allowOtherPieces;
+        s.rubble=getPendingRubble();
+        s.score=score;
+        s.lines=completedLines;
+        s.rate=rate;
+        s.over=gameIsOver;
+        return s;
+    }
+
+    /**
+     * Set the pieces allowed, starting with the next piece generated
+     *
+     * @param pents Are pentominoes (5-squares) allowed
+     * @param tets Are tetrominoes (4-squares) allowed
+     * @param other Are other pieces (2 and 3-squares) allowed
+     */
+    public void setAllowedPieces(boolean pents,boolean tets,boolean other) {
+        allowPentoes=pents;
+        allowTetroes=tets;
+        allowOtherPieces=other;
+    }
+
+    /**
+     * Changes the size of the grid, the caller should restart the game
+     *
+     * @param width The new width of the field in squares
+     * @param height The new height of the field in squares
+     */
+    public void setGridSize(int width,int height) {
+        grid=new Grid(width,height);
+    }
+
+    /**
+     * Chooses how the following pieces are picked. Both players of a network
+     * game must use the same randomizer to get the same pieces.
+     *
+     * @param randomizer One of the PolyominoFactory randomizers
+     */
+    public void setRandomizer(int randomizer) {
+        pFactory.setRandomizer(randomizer);
+        randomState=null;
+    }
+
+    /**
+     * Sets the random generators to a state from getRandomState. The state
+     * is checked completely before anything changes, so it may come from
+     * another computer.
+     *
+     * @param state The state
+     * @throws IOException if the state is not valid
+     */
+    public void setRandomState(byte[] state) throws IOException {
+        Frame f=Frame.read(ByteBuffer.wrap(state));
+        if (f==null||f.getTick()!=RANDOM_STATE_FORMAT)
+            throw new ProtocolException("Bad random state"); //$NON-NLS-1$
+        PolyominoFactory factory=PolyominoFactory.read(f);
+        long rubble=f.nextLong();
+        pFactory=factory;
+        randomGenerator=new SeededRandom(0);
+        ((SeededRandom) randomGenerator).setState(rubble);
+        randomState=null;
+    }
+
+    /**
+     * Marks the moves that follow as played again, see isReplaying
+     *
+     * @param replaying Are moves played again
+     */
+    public void setReplaying(boolean replaying) {
+        this.replaying=replaying;
+    }
+
+    /**
+     * Starts a new game on a medium grid with a new seed
+     *
+     * @param seed The seed for the polyomino and rubble RNGs
+     */
+    public void setSeed(long seed) {
+        grid=new Grid(MEDIUM_GRID_WIDTH,MEDIUM_GRID_HEIGHT);
+        pFactory=new PolyominoFactory(seed,pFactory.getRandomizer());
+        randomGenerator=new SeededRandom(seed);
+        randomState=null;
+        restart();
+    }
+
+    /**
+     * Sets everything but the squares and the random generators, for example
+     * to the state of the same game on another computer. The squares must
+     * already include the active piece.
+     *
+     * @param active The active piece
+     * @param x x-coordinate of the active piece
+     * @param y y-coordinate of the active piece
+     * @param preview The preview piece
+     * @param newScore The score
+     * @param lines The number of lines cleared
+     * @param newRate The time between two steps down in milliseconds
+     * @param rubble The number of rubble lines that are still to be added
+     * @param over Has the game ended
+     */
+    public void setState(Polyomino active,int x,int y,Polyomino preview,
+            long newScore,long lines,int newRate,int rubble,boolean over) {
+        activePentomino=active;
+        activeX=x;
+        activeY=y;
+        previewPentomino=preview;
+        score=newScore;
+        completedLines=lines;
+        rate=newRate;
+        synchronized (this){
+            bottomLinesToAdd=rubble;
+        }
+        gameIsOver=over;
+    }
+
+    /**
+     * Performs one player action
+     *
+     * @param action One of the ACTION_ constants
+     * @return false if the action was blocked, for ACTION_DOWN and
+     *         ACTION_DROP if the piece locked
+     */
+    public boolean step(int action) {
+        switch (action){
+        case ACTION_DOWN:
+            return moveDown();
+        case ACTION_DROP:
+            if (gameIsOver)
+                return false;
+            move(0,dropDistance());
+            return moveDown();
+        case ACTION_LEFT:
+            return move(-1,0);
+        case ACTION_RIGHT:
+            return move(1,0);
+        case ACTION_ROTATE:
+            return rotate();
+        default:
+            throw new IllegalArgumentException("Unknown action "+action); //$NON-NLS-1$
+        }
+    }
+}
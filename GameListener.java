@@ -0,0 +1,38 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * Interface for objects that want to follow the progress of a GameEngine
+ */
+public interface GameListener{
+
+    /**
+     * Called when the active piece of a game reached the bottom and has been
+     * locked into the grid. Full lines are already removed and scored, rubble
+     * for this game has not been added yet.
+     *
+     * @param engine The game
+     * @param lines The number of lines the piece completed
+     */
+    public void pieceLocked(GameEngine engine,int lines);
+
+    /**
+     * Called when a new piece does not fit on the grid anymore
+     *
+     * @param engine The game that has ended
+     */
+    public void gameOver(GameEngine engine);
+}
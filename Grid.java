@@ -14,21 +14,62 @@
  * details. You should have received a copy of the GNU General Public License
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * Grid class: A 2D representation of the 'pentris' playing field
+ * 
+ * The squares are stored column-major as piece colors. Next to that every row
+ * keeps a bitmask of its occupied squares (bit x set for column x), which is
+ * what the collision and full-line checks work on. The field can therefore be
+ * at most 64 squares wide.
+ * 
+ * Searches can try moves on one grid instead of on copies: after mark() every
+ * changed square is written to a journal, and undo() puts the grid back the
+ * way it was at the mark.
+ * 
+ * The grid also keeps a Zobrist hash of its occupied squares, so searches can
+ * recognize boards they have seen before.
  */
 public class Grid implements Cloneable, Serializable{
     
     private static final long serialVersionUID=-6819543666007073886L;
+    /* Zobrist keys of the squares, indexed by x*64+y */
+    private static final long[] ZOBRIST=new long[64*64];
+    
+    static{
+        Random r=new Random(0x5EED5EEDL);
+        for (int i=0; i<ZOBRIST.length; i++)
+            ZOBRIST[i]=r.nextLong();
+    }
+    
     private byte[][] grid;
+    private transient long[] rowMask; /* Occupied squares, per row */
+    private transient long fullRow; /* The mask of a complete row */
+    private transient long hash; /* Zobrist hash of the occupied squares */
+    private transient int[] columnTop; /* Highest occupied row, per column */
+    /* Scratch space for performGravity, indexed by x*height+y */
+    private transient int[] gravityLabels, gravityQueue;
+    private transient byte[] gravityColors;
+    /* Changed squares (x*height+y) and their old colors since the first mark */
+    private transient int[] journalCells;
+    private transient byte[] journalColors;
+    private transient int journalSize, marks;
+    /* Row masks and column tops saved by every open mark */
+    private transient long[] savedHashes;
+    private transient long[][] savedRowMasks;
+    private transient int[][] savedColumnTops;
+    private transient int[] savedJournalSizes;
     
     /**
      * Default constructor
      */
     public Grid() {
-        grid=new byte[12][30];
+        this(12,30);
     }
     
     /**
@@ -39,6 +80,7 @@ public class Grid implements Cloneable, Serializable{
      */
     public Grid(int x,int y) {
         grid=new byte[x][y];
+        rebuildRowMasks();
     }
     
     /**
@@ -47,39 +89,31 @@ public class Grid implements Cloneable, Serializable{
      * @param openSquare The square to leave open
      */
     public void addBottomLine(int openSquare) {
+        int bottom=grid[0].length-1;
         for (int i=0; i<grid.length; i++){
-            for (int j=0; j<grid[i].length-1; j++){
-                grid[i][j]=grid[i][j+1];
+            for (int j=0; j<bottom; j++){
+                write(i,j,grid[i][j+1]);
             }
         }
         for (int i=0; i<grid.length; i++){
             if (i!=openSquare)
-                grid[i][grid[i].length-1]=1;
+                write(i,bottom,(byte) 1);
             else
-                grid[i][grid[i].length-1]=0;
+                write(i,bottom,(byte) 0);
         }
+        System.arraycopy(rowMask,1,rowMask,0,bottom);
+        rowMask[bottom]=fullRow&~bit(openSquare);
         performGravity();
     }
     
     /**
-     * Check if a block can move down a line.
+     * The row mask bit of a column
      * 
-     * @param mark The mark value of the block
-     * @param g
-     * @return true if the current block can move down a line
+     * @param x the column
+     * @return the bit for column x, or 0 if x is not on the field
      */
-    private boolean blockCanMoveDown(byte mark,byte[][] g) {
-        for (int i=0; i<g.length; i++){
-            for (int j=0; j<g[0].length; j++){
-                if (g[i][j]==mark){
-                    if (j+1>=g[i].length)
-                        return false;
-                    if (g[i][j+1]!=0&&g[i][j+1]!=mark)
-                        return false;
-                }
-            }
-        }
-        return true;
+    private static long bit(int x) {
+        return x>=0&&x<64 ? 1L<<x: 0;
     }
     
     /**
@@ -91,20 +125,53 @@ public class Grid implements Cloneable, Serializable{
      * @return true if the current piece can be placed at position x/y
      */
     public boolean canPlacePiece(Polyomino p,int x,int y) {
-        byte[][] positions=p.getPositions();
-        try{
-            for (int i=0; i<positions.length; i++){
-                if (positions[i][1]+y>=grid[0].length
-                        ||positions[i][0]+x>=grid.length||positions[i][0]+x<0
-                        ||grid[positions[i][0]+x][positions[i][1]+y]!=0)
-                    return false;
-            }
-        }catch (ArrayIndexOutOfBoundsException e){
+        int left=x+p.getMinX();
+        int top=y+p.getMinY();
+        if (left<0||x+p.getMaxX()>=grid.length||top<0
+                ||y+p.getMaxY()>=rowMask.length)
             return false;
+        int[] masks=p.getRowMasks();
+        for (int i=0; i<masks.length; i++){
+            if ((rowMask[top+i]&(long) masks[i]<<left)!=0)
+                return false;
         }
         return true;
     }
     
+    /**
+     * Removes all full lines from the playing field. The remaining rows are
+     * compacted in a single pass and gravity is applied once afterwards. If
+     * falling squares complete new lines, those are removed as well.
+     * 
+     * @return the number of lines removed
+     */
+    public int clearCompleteLines() {
+        int cleared=0;
+        int height=rowMask.length;
+        while (hasCompleteLine()>=0){
+            int to=height-1;
+            for (int from=height-1; from>=0; from--){
+                if (rowMask[from]==fullRow){
+                    cleared++;
+                    continue;
+                }
+                if (to!=from){
+                    for (int i=0; i<grid.length; i++)
+                        write(i,to,grid[i][from]);
+                    rowMask[to]=rowMask[from];
+                }
+                to--;
+            }
+            for (; to>=0; to--){
+                for (int i=0; i<grid.length; i++)
+                    write(i,to,(byte) 0);
+                rowMask[to]=0;
+            }
+            performGravity();
+        }
+        return cleared;
+    }
+    
     /*
      * Creates a copy of the grid.
      * 
@@ -115,10 +182,26 @@ public class Grid implements Cloneable, Serializable{
     @Override
     public Grid clone() {
         int i;
-        Grid g=new Grid();
+        Grid g;
+        try{
+            g=(Grid) super.clone();
+        }catch (CloneNotSupportedException e){
+            throw new InternalError(e);
+        }
         g.grid=grid.clone();
         for (i=0; i<g.grid.length; i++)
             g.grid[i]=grid[i].clone();
+        g.rowMask=rowMask.clone();
+        g.columnTop=columnTop.clone();
+        g.gravityLabels=g.gravityQueue=null;
+        g.gravityColors=null;
+        g.journalCells=null;
+        g.journalColors=null;
+        g.journalSize=g.marks=0;
+        g.savedHashes=null;
+        g.savedRowMasks=null;
+        g.savedColumnTops=null;
+        g.savedJournalSizes=null;
         return g;
     }
     
@@ -129,16 +212,85 @@ public class Grid implements Cloneable, Serializable{
      */
     public void deleteLine(int l) {
         for (int i=0; i<grid.length; i++){
-            grid[i][l]=0;
+            write(i,l,(byte) 0);
         }
         for (int j=l; j>0; j--){
             for (int k=0; k<grid.length; k++){
-                grid[k][j]=grid[k][j-1];
+                write(k,j,grid[k][j-1]);
             }
         }
+        if (l>0)
+            System.arraycopy(rowMask,0,rowMask,1,l);
+        else
+            rowMask[0]=0;
         performGravity();
     }
     
+    /**
+     * Calculates how far a labeled group of squares can fall. Only squares
+     * without a square of the same group directly below them can be blocked.
+     * 
+     * @param mark The label of the group
+     * @param count The number of squares in the group, as stored in the queue
+     * @return the number of lines the group can move down
+     */
+    private int dropDistance(int mark,int count) {
+        int height=rowMask.length;
+        int drop=height;
+        for (int k=0; k<count; k++){
+            int cell=gravityQueue[k];
+            int x=cell/height;
+            int y=cell%height;
+            if (y+1<height&&gravityLabels[cell+1]==mark)
+                continue;
+            int d=0;
+            y++;
+            while (y<height&&grid[x][y]==0&&d<drop){
+                y++;
+                d++;
+            }
+            if (y<height&&gravityLabels[x*height+y]==mark)
+                continue; /* Resting on its own group, which is checked anyway */
+            if (d<drop)
+                drop=d;
+        }
+        return drop;
+    }
+    
+    /**
+     * Calculates where a piece ends up when it is dropped. Usually the column
+     * tops below the piece decide this, only when the piece is already below
+     * the top of a column is it moved down line by line.
+     * 
+     * @param p the piece, which must fit at x/y
+     * @param x x-coordinate of the piece on the board
+     * @param y y-coordinate from which the piece falls
+     * @return the lowest y-coordinate the piece can fall to
+     */
+    public int dropRow(Polyomino p,int x,int y) {
+        int[] bottom=p.getBottomProfile();
+        int left=x+p.getMinX();
+        int landing=Integer.MAX_VALUE;
+        for (int i=0; i<bottom.length; i++)
+            landing=Math.min(landing,columnTop[left+i]-1-bottom[i]);
+        if (landing>=y)
+            return landing;
+        while (canPlacePiece(p,x,y+1))
+            y++;
+        return y;
+    }
+    
+    /**
+     * Get the highest occupied square of a column
+     * 
+     * @param x the column
+     * @return the y-coordinate of the top square, or the height of the
+     *         playing field if the column is empty
+     */
+    public int getColumnTop(int x) {
+        return columnTop[x];
+    }
+    
     /**
      * Returns the grid as 2d array of byte
      * 
@@ -148,6 +300,16 @@ public class Grid implements Cloneable, Serializable{
         return grid;
     }
     
+    /**
+     * Gets a hash of the occupied squares, which is the same for grids of the
+     * same size with the same squares occupied, whatever their colors
+     * 
+     * @return the Zobrist hash of the playing field
+     */
+    public long getHash() {
+        return hash;
+    }
+    
     /**
      * Get the height of the playing field
      * 
@@ -166,88 +328,159 @@ public class Grid implements Cloneable, Serializable{
         return grid.length;
     }
     
+    /**
+     * Get the occupied squares of a row
+     * 
+     * @param y the row
+     * @return the row mask, bit x is set if column x is occupied
+     */
+    public long getRowMask(int y) {
+        return rowMask[y];
+    }
+    
     /**
      * Checks the whole playing field for full rows
      * 
      * @return the line that is complete, or -1 when no line is complete
      */
     public int hasCompleteLine() {
-        int line=-2;
-        for (int i=0; i<grid[0].length; i++){
-            line=-2;
-            for (int j=0; j<grid.length; j++){
-                if (grid[j][i]==0){
-                    line=-1;
-                }else if (line!=-1){
-                    line=i;
-                }
-            }
-            if (line>=0)
-                return line;
+        for (int i=0; i<rowMask.length; i++){
+            if (rowMask[i]==fullRow)
+                return i;
         }
         return -1;
     }
     
     /**
-     * Attaches marks to connected squares
+     * Gets the Zobrist key of a square
+     * 
+     * @param x the column
+     * @param y the row
+     * @return the key that is part of the hash when the square is occupied
+     */
+    private static long key(int x,int y) {
+        if (y<64)
+            return ZOBRIST[x<<6|y];
+        long z=((long) x<<32|y)*0x9E3779B97F4A7C15L; /* Very high grids */
+        z=(z^(z>>>30))*0xBF58476D1CE4E5B9L;
+        return z^(z>>>31);
+    }
+    
+    /**
+     * Starts recording changes, so they can be undone. Marks can be nested,
+     * but must be undone in the reverse order in which they were made.
      * 
-     * @param mark The mark value of the block
-     * @param g
-     * @param x
-     * @param y
+     * @return the mark to pass to undo()
      */
-    private void markConnectedSquares(byte mark,byte[][] g,int x,int y) {
-        if (g[x][y]>0){
-            g[x][y]=mark;
-            if (x+1<g.length)
-                markConnectedSquares(mark,g,x+1,y);
-            if (x>0)
-                markConnectedSquares(mark,g,x-1,y);
-            if (y+1<g[0].length)
-                markConnectedSquares(mark,g,x,y+1);
-            if (y>0)
-                markConnectedSquares(mark,g,x,y-1);
+    public int mark() {
+        if (savedRowMasks==null){
+            savedHashes=new long[4];
+            savedRowMasks=new long[4][];
+            savedColumnTops=new int[4][];
+            savedJournalSizes=new int[4];
+            journalCells=new int[64];
+            journalColors=new byte[64];
+        }else if (marks==savedRowMasks.length){
+            savedHashes=Arrays.copyOf(savedHashes,marks*2);
+            savedRowMasks=Arrays.copyOf(savedRowMasks,marks*2);
+            savedColumnTops=Arrays.copyOf(savedColumnTops,marks*2);
+            savedJournalSizes=Arrays.copyOf(savedJournalSizes,marks*2);
         }
+        if (savedRowMasks[marks]==null
+                ||savedRowMasks[marks].length!=rowMask.length){
+            savedRowMasks[marks]=new long[rowMask.length];
+            savedColumnTops[marks]=new int[columnTop.length];
+        }
+        System.arraycopy(rowMask,0,savedRowMasks[marks],0,rowMask.length);
+        System.arraycopy(columnTop,0,savedColumnTops[marks],0,
+                columnTop.length);
+        savedJournalSizes[marks]=journalSize;
+        savedHashes[marks]=hash;
+        return marks++;
     }
     
     /**
-     * Drop a marked block a line
+     * Moves a labeled group of squares down, keeping its label
      * 
-     * @param mark The mark value of the block to move
-     * @param markedGrid The grid with the block marked
+     * @param mark The label of the group
+     * @param count The number of squares in the group, as stored in the queue
+     * @param drop The number of lines to move down
      */
-    private void moveDownBlockMarked(byte mark,byte[][] markedGrid) {
-        for (int i=0; i<grid.length; i++){
-            for (int j=grid[0].length-1; j>=0; j--){
-                if (markedGrid[i][j]==mark){
-                    grid[i][j+1]=grid[i][j];
-                    grid[i][j]=0;
-                    markedGrid[i][j+1]=mark;
-                    markedGrid[i][j]=0;
-                }
-            }
+    private void moveDownBlock(int mark,int count,int drop) {
+        int height=rowMask.length;
+        for (int k=0; k<count; k++){
+            int cell=gravityQueue[k];
+            int x=cell/height;
+            int y=cell%height;
+            gravityColors[k]=grid[x][y];
+            write(x,y,(byte) 0);
+            gravityLabels[cell]=0;
+            rowMask[y]&=~(1L<<x);
+        }
+        for (int k=0; k<count; k++){
+            int cell=gravityQueue[k]+drop;
+            int x=cell/height;
+            int y=cell%height;
+            write(x,y,gravityColors[k]);
+            gravityLabels[cell]=mark;
+            rowMask[y]|=1L<<x;
         }
     }
     
     /**
-     * Let unsupported squares fall down
+     * Let unsupported squares fall down. Groups of connected squares are
+     * found in column-major order and each group falls as far as it can before
+     * the next one is looked at. The groups are labeled using an explicit work
+     * queue, the scratch arrays are kept for the next call.
      */
     private void performGravity() {
-        byte[][] tmpGrid=grid.clone();
-        byte mark=-1;
-        for (int i=0; i<grid.length; i++)
-            tmpGrid[i]=grid[i].clone();
-        for (int i=0; i<grid.length; i++){
-            for (int j=0; j<grid[i].length; j++){
-                if (tmpGrid[i][j]>0){
-                    markConnectedSquares(mark,tmpGrid,i,j);
-                    while (blockCanMoveDown(mark,tmpGrid))
-                        moveDownBlockMarked(mark,tmpGrid);
-                    mark--;
+        int width=grid.length;
+        int height=rowMask.length;
+        int size=width*height;
+        int mark=0;
+        if (gravityLabels==null||gravityLabels.length!=size){
+            gravityLabels=new int[size];
+            gravityQueue=new int[size];
+            gravityColors=new byte[size];
+        }else{
+            Arrays.fill(gravityLabels,0);
+        }
+        int[] labels=gravityLabels;
+        int[] queue=gravityQueue;
+        for (int i=0; i<width; i++){
+            for (int j=0; j<height; j++){
+                if (grid[i][j]==0||labels[i*height+j]!=0)
+                    continue;
+                int count=0;
+                mark++;
+                labels[i*height+j]=mark;
+                queue[count++]=i*height+j;
+                for (int k=0; k<count; k++){
+                    int x=queue[k]/height;
+                    int y=queue[k]%height;
+                    if (x+1<width&&grid[x+1][y]!=0&&labels[queue[k]+height]==0){
+                        labels[queue[k]+height]=mark;
+                        queue[count++]=queue[k]+height;
+                    }
+                    if (x>0&&grid[x-1][y]!=0&&labels[queue[k]-height]==0){
+                        labels[queue[k]-height]=mark;
+                        queue[count++]=queue[k]-height;
+                    }
+                    if (y+1<height&&grid[x][y+1]!=0&&labels[queue[k]+1]==0){
+                        labels[queue[k]+1]=mark;
+                        queue[count++]=queue[k]+1;
+                    }
+                    if (y>0&&grid[x][y-1]!=0&&labels[queue[k]-1]==0){
+                        labels[queue[k]-1]=mark;
+                        queue[count++]=queue[k]-1;
+                    }
                 }
+                int drop=dropDistance(mark,count);
+                if (drop>0)
+                    moveDownBlock(mark,count,drop);
             }
         }
-        removeMarks();
+        rebuildColumnTops();
     }
     
     /**
@@ -260,8 +493,67 @@ public class Grid implements Cloneable, Serializable{
     public void place(Polyomino p,int x,int y) {
         byte index=(byte) p.getIndex();
         byte[][] positions=p.getPositions();
-        for (int i=0; i<positions.length; i++)
-            grid[positions[i][0]+x][positions[i][1]+y]=index;
+        for (int i=0; i<positions.length; i++){
+            int sx=positions[i][0]+x;
+            int sy=positions[i][1]+y;
+            write(sx,sy,index);
+            rowMask[sy]|=1L<<sx;
+            if (sy<columnTop[sx])
+                columnTop[sx]=sy;
+        }
+    }
+    
+    /**
+     * Restores the row masks after deserialization
+     * 
+     * @param in the stream to read from
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        rebuildRowMasks();
+    }
+    
+    /**
+     * Recalculates the column tops from the row masks
+     */
+    private void rebuildColumnTops() {
+        if (columnTop==null||columnTop.length!=grid.length)
+            columnTop=new int[grid.length];
+        Arrays.fill(columnTop,rowMask.length);
+        long remaining=fullRow;
+        for (int j=0; j<rowMask.length&&remaining!=0; j++){
+            long found=rowMask[j]&remaining;
+            remaining&=~found;
+            while (found!=0){
+                columnTop[Long.numberOfTrailingZeros(found)]=j;
+                found&=found-1;
+            }
+        }
+    }
+    
+    /**
+     * Recalculates the row masks and the hash from the squares
+     */
+    private void rebuildRowMasks() {
+        int height=grid.length==0 ? 0: grid[0].length;
+        if (rowMask==null||rowMask.length!=height)
+            rowMask=new long[height];
+        fullRow=grid.length>=64 ? -1L: (1L<<grid.length)-1;
+        hash=0;
+        for (int j=0; j<height; j++){
+            long mask=0;
+            for (int i=0; i<grid.length; i++){
+                if (grid[i][j]!=0){
+                    mask|=1L<<i;
+                    hash^=key(i,j);
+                }
+            }
+            rowMask[j]=mask;
+        }
+        rebuildColumnTops();
     }
     
     /**
@@ -273,18 +565,15 @@ public class Grid implements Cloneable, Serializable{
      */
     public void remove(Polyomino p,int x,int y) {
         byte[][] positions=p.getPositions();
-        for (int i=0; i<positions.length; i++)
-            grid[positions[i][0]+x][positions[i][1]+y]=0;
-    }
-    
-    /**
-     * Remove marks from all blocks
-     */
-    private void removeMarks() {
-        for (int i=0; i<grid.length; i++){
-            for (int j=0; j<grid[i].length; j++){
-                if (grid[i][j]<0)
-                    grid[i][j]=(byte) -grid[i][j];
+        for (int i=0; i<positions.length; i++){
+            int sx=positions[i][0]+x;
+            int sy=positions[i][1]+y;
+            write(sx,sy,(byte) 0);
+            rowMask[sy]&=~(1L<<sx);
+            if (sy==columnTop[sx]){
+                while (sy<rowMask.length&&grid[sx][sy]==0)
+                    sy++;
+                columnTop[sx]=sy;
             }
         }
     }
@@ -301,6 +590,8 @@ public class Grid implements Cloneable, Serializable{
             }
         }
         grid=newGrid;
+        marks=journalSize=0;
+        rebuildRowMasks();
     }
     
     /**
@@ -310,5 +601,49 @@ public class Grid implements Cloneable, Serializable{
      */
     public void setGrid(byte[][] g) {
         grid=g;
+        marks=journalSize=0;
+        rebuildRowMasks();
+    }
+    
+    /**
+     * Puts the grid back in the state it had when a mark was made, and ends
+     * that mark and all marks made after it
+     * 
+     * @param mark The value returned by mark()
+     */
+    public void undo(int mark) {
+        int height=rowMask.length;
+        int start=savedJournalSizes[mark];
+        for (int k=journalSize-1; k>=start; k--){
+            int cell=journalCells[k];
+            grid[cell/height][cell%height]=journalColors[k];
+        }
+        journalSize=start;
+        hash=savedHashes[mark];
+        System.arraycopy(savedRowMasks[mark],0,rowMask,0,rowMask.length);
+        System.arraycopy(savedColumnTops[mark],0,columnTop,0,columnTop.length);
+        marks=mark;
+    }
+    
+    /**
+     * Changes a square and the hash, recording its old color while a mark is
+     * open
+     * 
+     * @param x the column
+     * @param y the row
+     * @param color the new color, 0 for an empty square
+     */
+    private void write(int x,int y,byte color) {
+        if (marks>0){
+            if (journalSize==journalCells.length){
+                journalCells=Arrays.copyOf(journalCells,journalSize*2);
+                journalColors=Arrays.copyOf(journalColors,journalSize*2);
+            }
+            journalCells[journalSize]=x*rowMask.length+y;
+            journalColors[journalSize++]=grid[x][y];
+        }
+        if ((grid[x][y]==0)!=(color==0))
+            hash^=key(x,y);
+        grid[x][y]=color;
     }
 }
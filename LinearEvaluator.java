@@ -0,0 +1,131 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ * 
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ * 
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * A heuristic that scores a board as a weighted sum of its BoardFeatures. The
+ * weights used by the CPU players are read from a text file when it exists,
+ * for instance one written by the Tuner.
+ */
+public class LinearEvaluator implements Evaluator, Serializable{
+    
+    public static final String WEIGHTS_FILE="weights.txt"; //$NON-NLS-1$
+    
+    /* Indexed by the BoardFeatures constants */
+    private static final double[] DEFAULT_WEIGHTS=
+            {-7.9, -0.5, -0.2, -3.2, -9.3, -3.4, 3.4};
+    private static final long serialVersionUID=4417609224153322071L;
+    private static LinearEvaluator defaultEvaluator;
+    private double[] weights;
+    
+    /**
+     * Creates an evaluator with the default weights
+     */
+    public LinearEvaluator() {
+        this(DEFAULT_WEIGHTS);
+    }
+    
+    /**
+     * Creates an evaluator with the given weights
+     * 
+     * @param w The weights, indexed by the BoardFeatures constants
+     */
+    public LinearEvaluator(double[] w) {
+        weights=new double[BoardFeatures.COUNT];
+        System.arraycopy(w,0,weights,0,BoardFeatures.COUNT);
+    }
+    
+    /*
+     * @see Evaluator#evaluate(Grid, int)
+     */
+    @Override
+    public double evaluate(Grid g,int lines) {
+        return BoardFeatures.weigh(g,lines,weights);
+    }
+    
+    /**
+     * Gets the evaluator used by CPU players, with the weights from the
+     * weights file if it can be read, the built in weights otherwise. The
+     * file is only read once.
+     * 
+     * @return the evaluator
+     */
+    public static synchronized LinearEvaluator getDefault() {
+        if (defaultEvaluator==null)
+            defaultEvaluator=readWeights(WEIGHTS_FILE);
+        return defaultEvaluator;
+    }
+    
+    /**
+     * Gets the weights of this evaluator
+     * 
+     * @return a copy of the weights, indexed by the BoardFeatures constants
+     */
+    public double[] getWeights() {
+        return weights.clone();
+    }
+    
+    /**
+     * Reads weights from a text file, one number per feature in the order of
+     * the BoardFeatures constants
+     * 
+     * @param fileName The file to read
+     * @return an evaluator with the weights from the file, or with the built
+     *         in weights if the file is missing or incomplete
+     */
+    public static LinearEvaluator readWeights(String fileName) {
+        double[] w=new double[BoardFeatures.COUNT];
+        Scanner in;
+        try{
+            in=new Scanner(new FileReader(fileName));
+        }catch (FileNotFoundException e){
+            return new LinearEvaluator();
+        }
+        in.useLocale(Locale.ROOT);
+        try{
+            for (int i=0; i<w.length; i++)
+                w[i]=in.nextDouble();
+        }catch (NoSuchElementException e){
+            return new LinearEvaluator();
+        }finally{
+            in.close();
+        }
+        return new LinearEvaluator(w);
+    }
+    
+    /**
+     * Writes the weights to a text file that readWeights() understands
+     * 
+     * @param fileName The file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeWeights(String fileName) throws IOException {
+        PrintWriter out=new PrintWriter(fileName);
+        for (double w : weights)
+            out.println(w);
+        out.close();
+        if (out.checkError())
+            throw new IOException("Cannot write "+fileName); //$NON-NLS-1$
+    }
+}
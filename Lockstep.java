@@ -0,0 +1,315 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Arrays;
+
+/**
+ * Plays both games of a network match in ticks, so both computers see the
+ * same thing happen at the same tick. Every player action is an input
+ * stamped with the tick in which it takes effect: local inputs are delayed
+ * by a fixed number of ticks, which gives the inputs of the other player
+ * time to arrive before they are due. In every tick the inputs of the
+ * first player are played before those of the second, and clearing more
+ * than one line sends rubble to the other game right away, so the outcome
+ * only depends on the inputs and their ticks.
+ *
+ * A tick only ends once it is played, so a computer that is ahead waits for
+ * the other one and local inputs go to a later tick meanwhile. Without
+ * rollback a tick is played once all inputs of the other player for it are
+ * known, which takes an input delay of at least one tick. With rollback the
+ * games go on and predict that the other player does nothing; the state of
+ * both games is saved every tick, and when inputs arrive for a tick that was
+ * already played, the games go back to the tick before and play the ticks
+ * again. The games are replaying meanwhile, so their listeners do not show
+ * the ticks twice. Games never run more than a window of ticks ahead of the
+ * inputs of the other player.
+ *
+ * A Lockstep must only be used by one thread at a time.
+ */
+public class Lockstep{
+    /**
+     * The inputs of one player, by tick
+     */
+    private static class Inputs{
+        private byte[][] actions=new byte[RING][];
+        private int[] counts=new int[RING];
+        private int[] ticks=new int[RING];
+
+        public Inputs() {
+            Arrays.fill(ticks,-1);
+        }
+
+        /**
+         * Adds an input
+         *
+         * @param tick The tick in which it takes effect
+         * @param action One of the GameEngine ACTION_ constants
+         */
+        public void add(int tick,int action) {
+            int slot=tick&RING-1;
+            if (ticks[slot]!=tick){
+                ticks[slot]=tick;
+                counts[slot]=0;
+            }
+            if (actions[slot]==null)
+                actions[slot]=new byte[4];
+            else if (counts[slot]==actions[slot].length)
+                actions[slot]=Arrays.copyOf(actions[slot],2*counts[slot]);
+            actions[slot][counts[slot]++]=(byte) action;
+        }
+
+        /**
+         * Plays the inputs of a tick
+         *
+         * @param tick The tick
+         * @param g The game of the player
+         * @return true if there were inputs
+         */
+        public boolean play(int tick,GameEngine g) {
+            int slot=tick&RING-1;
+            if (ticks[slot]!=tick)
+                return false;
+            for (int i=0; i<counts[slot]; i++)
+                g.step(actions[slot][i]);
+            return counts[slot]>0;
+        }
+    }
+
+    /**
+     * The number of ticks the games may run ahead of the other player
+     */
+    public static final int WINDOW=32;
+    private static final int RING=1024; /* Ticks of inputs kept, power of 2 */
+
+    private int confirmed; /* The last tick with all remote inputs known */
+    private int delay;
+    private GameEngine first, second; /* Played in this order every tick */
+    private GameEngine local, remote;
+    private Inputs localInputs=new Inputs(), remoteInputs=new Inputs();
+    private int mispredicted=Integer.MAX_VALUE; /* First tick to play again */
+    private int now; /* The tick being played, local inputs are given in */
+    private boolean rollback;
+    private int rollbacks, stalls;
+    private int played=-1; /* The last tick played */
+    /* The states of both games after every tick in the window, by tick */
+    private GameEngine.State[][] states;
+
+    /**
+     * Starts playing two games in ticks, from tick 0
+     *
+     * @param local The game of this computer
+     * @param remote The copy of the game of the other computer
+     * @param localFirst Are the local inputs played first in every tick,
+     *        which must be true on exactly one of the computers
+     * @param delay The number of ticks local inputs are delayed, at least 1
+     *        without rollback
+     * @param rollback Predict the other player instead of waiting for it
+     */
+    public Lockstep(GameEngine local,GameEngine remote,boolean localFirst,
+            int delay,boolean rollback) {
+        this.local=local;
+        this.remote=remote;
+        first=localFirst ? local: remote;
+        second=localFirst ? remote: local;
+        this.delay=Math.max(rollback ? 0: 1,delay);
+        this.rollback=rollback;
+        confirmed=this.delay-1; /* Nothing can arrive for earlier ticks */
+        GameListener rubble=new GameListener(){
+            @Override
+            public void gameOver(GameEngine engine) {/* Not needed */}
+
+            @Override
+            public void pieceLocked(GameEngine engine,int lines) {
+                if (lines>1)
+                    (engine==first ? second: first).addBottomLines(lines);
+            }
+        };
+        local.addListener(rubble);
+        remote.addListener(rubble);
+        if (rollback){
+            states=new GameEngine.State[WINDOW+1][2];
+            save(-1);
+        }
+    }
+
+    /**
+     * Plays the ticks that can be played, up to the current tick. If the
+     * current tick was played the next one starts, see getTick.
+     *
+     * @return true if the games changed
+     */
+    public boolean advance() {
+        boolean changed=false;
+        int shown=played; /* Ticks up to here are played again quietly */
+        if (mispredicted<=played){
+            restore(mispredicted-1);
+            played=mispredicted-1;
+            rollbacks++;
+            changed=true;
+            setReplaying(true);
+        }
+        mispredicted=Integer.MAX_VALUE;
+        int limit=Math.min(now,rollback ? confirmed+WINDOW: confirmed);
+        while (played<limit){
+            if (played==shown)
+                setReplaying(false);
+            played++;
+            changed|=(first==local ? localInputs: remoteInputs).play(played,
+                    first);
+            changed|=(second==local ? localInputs: remoteInputs).play(played,
+                    second);
+            if (rollback)
+                save(played);
+        }
+        setReplaying(false);
+        if (played==now)
+            now++;
+        else
+            stalls++;
+        return changed;
+    }
+
+    /**
+     * Takes the inputs of the other player for a tick as complete. Ticks
+     * are those of the other computer, the inputs take effect delay ticks
+     * later.
+     *
+     * @param tick The tick of the other computer
+     */
+    public void confirm(int tick) {
+        confirmed=Math.max(confirmed,tick+delay);
+    }
+
+    /**
+     * @return the number of ticks local inputs are delayed
+     */
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * @return the number of times the games went back to play ticks again
+     */
+    public int getRollbacks() {
+        return rollbacks;
+    }
+
+    /**
+     * @return the number of times the games had to wait for the other player
+     */
+    public int getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Gets the current tick. Local inputs given now take effect delay ticks
+     * later, and all inputs given before the tick started belong to the
+     * ticks before.
+     *
+     * @return the tick being played
+     */
+    public int getTick() {
+        return now;
+    }
+
+    /**
+     * Adds an input of the local player, it takes effect delay ticks from now
+     *
+     * @param action One of the GameEngine ACTION_ constants
+     */
+    public void input(int action) {
+        localInputs.add(now+delay,action);
+    }
+
+    /**
+     * Has a game ended, in a tick for which all inputs are known
+     *
+     * @param ofLocal The local game, or the remote one
+     * @return true if the game has ended for sure
+     */
+    public boolean isOver(boolean ofLocal) {
+        if (!rollback||played<=confirmed)
+            return (ofLocal ? local: remote).isGameOver();
+        return states[slot(confirmed)][ofLocal ? 0: 1].isGameOver();
+    }
+
+    /**
+     * @return true if the other player is predicted instead of waited for
+     */
+    public boolean isRollback() {
+        return rollback;
+    }
+
+    /**
+     * Adds an input of the other player
+     *
+     * @param tick The tick of the other computer in which it was given, it
+     *        takes effect delay ticks later
+     * @param action One of the GameEngine ACTION_ constants
+     * @throws IllegalArgumentException if the tick is too far away from the
+     *         ticks being played
+     */
+    public void receive(int tick,int action) {
+        int at=tick+delay;
+        if (at<=confirmed||at-played>=RING-WINDOW)
+            throw new IllegalArgumentException("Input for tick "+at //$NON-NLS-1$
+                    +" while at tick "+played); //$NON-NLS-1$
+        remoteInputs.add(at,action);
+        if (at<=played)
+            mispredicted=Math.min(mispredicted,at);
+    }
+
+    /**
+     * Puts both games back in the state after a tick
+     *
+     * @param tick The tick, at most WINDOW ticks back
+     */
+    private void restore(int tick) {
+        GameEngine.State[] s=states[slot(tick)];
+        local.restore(s[0]);
+        remote.restore(s[1]);
+    }
+
+    /**
+     * Saves the state of both games after a tick
+     *
+     * @param tick The tick
+     */
+    private void save(int tick) {
+        GameEngine.State[] s=states[slot(tick)];
+        s[0]=local.save(s[0]);
+        s[1]=remote.save(s[1]);
+    }
+
+    /**
+     * Tells both games whether they play ticks again, see
+     * GameEngine.isReplaying. The rubble still goes from one to the other.
+     *
+     * @param replaying Are ticks played again
+     */
+    private void setReplaying(boolean replaying) {
+        local.setReplaying(replaying);
+        remote.setReplaying(replaying);
+    }
+
+    /**
+     * @param tick A tick, may be -1
+     * @return the index of its states
+     */
+    private static int slot(int tick) {
+        return (tick+WINDOW+1)%(WINDOW+1);
+    }
+}
@@ -18,6 +18,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -44,7 +45,7 @@ public class Main{
     @SuppressWarnings("nls")
     public static void main(String[] notUsed) {
         game=new Game();
-        gameThread=new Thread(game,"Game");
+        gameThread=Execution.newThread(game,"Game");
         gameThread.start();
         synchronized (game){
             try{
@@ -67,11 +68,11 @@ public class Main{
     private static void MultiMain() {
         long seed=System.currentTimeMillis();
         game=new Game(seed);
-        gameThread=new Thread(game,"Game 1");
+        gameThread=Execution.newThread(game,"Game 1");
         Game tmp=new Game(seed);
         game2=tmp;
         tmp.moveFrameRight();
-        opponentThread=new Thread(tmp,"Game 2");
+        opponentThread=Execution.newThread(tmp,"Game 2");
         game.setOpponentGame(game2);
         game2.setOpponentGame(game);
         gameThread.start();
@@ -135,6 +136,18 @@ public class Main{
         final JTextField serverField=new JTextField(10);
         serverPanel.add(serverField);
         panel.add(serverPanel);
+        /* Lockstep settings, the server decides them for both */
+        final JPanel delayPanel=new JPanel();
+        final JLabel delayLabel=new JLabel("Input delay (ticks, 0 = off): ");
+        delayPanel.add(delayLabel);
+        final JTextField delayField=new JTextField(3);
+        delayPanel.add(delayField);
+        delayField.setText("0");
+        delayField.setEnabled(false);
+        panel.add(delayPanel);
+        final JCheckBox rollbackBox=new JCheckBox("Rollback");
+        rollbackBox.setEnabled(false);
+        panel.add(rollbackBox);
         final JPanel buttonPanel=new JPanel();
         final JButton OKButton=new JButton("OK");
         buttonPanel.add(OKButton);
@@ -167,7 +180,8 @@ public class Main{
                 case TYPE_OKBUTTON:
                     startNet(serverButton.isSelected(),Integer
                             .parseInt(portField.getText()),serverField
-                            .getText());
+                            .getText(),Integer.parseInt(delayField.getText()),
+                            rollbackBox.isSelected());
                     frame.setVisible(false);
                     frame.dispose();
                     break;
@@ -180,6 +194,8 @@ public class Main{
                         serverField.setEnabled(false);
                     else
                         serverField.setEnabled(true);
+                    delayField.setEnabled(serverButton.isSelected());
+                    rollbackBox.setEnabled(serverButton.isSelected());
                 }
             }
         }
@@ -191,7 +207,7 @@ public class Main{
                 netDialogListener.TYPE_OKBUTTON));
         cancelButton.addActionListener(new netDialogListener(
                 netDialogListener.TYPE_CANCEL));
-        frame.setSize(200,240);
+        frame.setSize(240,320);
         frame.setContentPane(panel);
         frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
         frame.setVisible(true);
@@ -216,23 +232,30 @@ public class Main{
      * @param port The port number on which to listen/connect
      * @param serverName The hostname/address of the server on which to connect
      *        (only useful for clients)
+     * @param delay The input delay in ticks of a lockstep game, 0 for a normal
+     *        game unless rollback is set (only useful for servers)
+     * @param rollback Play a lockstep game with rollback (only useful for
+     *        servers)
      */
     @SuppressWarnings("nls")
-    static void startNet(boolean server,int port,String serverName) {
+    static void startNet(boolean server,int port,String serverName,int delay,
+            boolean rollback) {
         long seed=System.currentTimeMillis();
         game.gameOver(true, true);
         game.stop();
         if (game2!=null)
             game2.stop();
         game=new Game(seed);
-        gameThread=new Thread(game,"Game");
+        gameThread=Execution.newThread(game,"Game");
         NetIO net;
-        if (server)
+        if (server){
             net=new NetIO(game,port,seed);
-        else
+            if (delay>0||rollback)
+                net.setLockstep(delay,rollback);
+        }else
             net=new NetIO(game,port,serverName);
         game.setOpponentGame(net);
-        opponentThread=new Thread(net,"Net");
+        opponentThread=Execution.newThread(net,"Net");
         game2=net;
         gameThread.start();
         synchronized (game){
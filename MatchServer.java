@@ -0,0 +1,847 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ * 
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ * 
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Hosts many network games in one process. Players connect with the normal
+ * network client; every two players that connect are paired into a match and
+ * both get the seed of their match, as if the other one was the server. The
+ * moves of each player are relayed to the other one and also played on a
+ * headless copy of the player's game, so the server always knows the state
+ * of every match.
+ * 
+ * All connections are handled by one thread with a selector. An error in one
+ * match, like a player sending garbage or disconnecting, only ends that match.
+ * Relayed messages keep the tick of the player that sent them, and everything
+ * queued for a player is written at once every tick. The state hashes the
+ * players send are checked against the copies on the server too, and a
+ * player whose copy differs is asked for a snapshot.
+ * 
+ * Spectators connect the same way but say so in their HELLO and then pick a
+ * match to watch. The messages of both players of a match are encoded once
+ * per tick, tagged with the player they are about, and the same buffer is
+ * queued for every spectator of the match. A spectator that cannot keep up
+ * is not sent more and more: what was queued for it is dropped and once it
+ * has read the rest it gets snapshots of both games made from the copies on
+ * the server, and continues from there.
+ * 
+ * Every player gets a session token, see Session. A player whose connection
+ * breaks stays in its match for a while: what is relayed to it is kept, and
+ * when it connects again with RESUME it gets what it missed and the match
+ * goes on. Only if it does not come back in time does the match end.
+ * 
+ * Usage: java MatchServer [-port n]
+ */
+public class MatchServer implements Runnable{
+    /**
+     * One connected player or spectator
+     */
+    private static class Connection{
+        public SocketChannel channel;
+        public boolean closing; /* Close as soon as the output is sent */
+        public ArrayDeque<Frame> frames=new ArrayDeque<Frame>(); /* To send */
+        public boolean hello; /* The player sent a compatible HELLO */
+        public ByteBuffer input=ByteBuffer.allocate(INPUT_SIZE);
+        public boolean lagging; /* A spectator that needs snapshots */
+        public int lostAt=-1; /* The tick its connection broke, -1 if none */
+        public Match match; /* Of a player */
+        public GameEngine mirror; /* The player's game, null until paired */
+        public Snapshot received=new Snapshot(); /* Of the mirror */
+        public boolean resyncRequested;
+        public Connection opponent;
+        public ArrayDeque<ByteBuffer> output=new ArrayDeque<ByteBuffer>();
+        public boolean pairing; /* A player that said HELLO, not paired yet */
+        public int player; /* 1 or 2 */
+        public Connection resumed; /* The player this connection resumed */
+        public Session session=new Session(0); /* Of a player */
+        public boolean spectator;
+        public Match watching; /* Of a spectator */
+    }
+    
+    /**
+     * Two players playing with the same seed
+     */
+    private static class Match{
+        public Frame broadcast; /* This tick's messages for the spectators */
+        public int broadcastPlayer; /* The player the last one was about */
+        public boolean dirty; /* The spectators need a flush */
+        public int id;
+        public boolean over;
+        public Connection[] players;
+        public long seed;
+        public ArrayList<Connection> spectators=new ArrayList<Connection>();
+    }
+    
+    private static final int BACKLOG=1024; /* Players may come all at once */
+    private static final int DEFAULT_PORT=30011;
+    private static final int INPUT_SIZE=1024;
+    private static final int RESUME_TICKS=Session.RESUME_MILLIS
+            /NetIO.TICK_MILLIS;
+    /* Bytes queued for a spectator before it only gets snapshots */
+    private static final int SPECTATOR_BACKLOG=64*1024;
+    
+    private ArrayList<Connection> dirty=new ArrayList<Connection>(); /* With frames */
+    private ArrayList<Match> dirtyMatches=new ArrayList<Match>();
+    private ArrayList<Connection> lost=new ArrayList<Connection>(); /* Players */
+    private int matches; /* The number of matches started */
+    private int port;
+    private Random random=new Random();
+    private HashMap<Integer,Match> running=new HashMap<Integer,Match>();
+    private Selector selector;
+    private HashMap<Long,Connection> sessions=new HashMap<Long,Connection>();
+    private int tick;
+    private Connection waiting; /* Waits for an opponent */
+    
+    /**
+     * Prepares a server
+     * 
+     * @param port The port on which to listen
+     */
+    public MatchServer(int port) {
+        this.port=port;
+    }
+    
+    /**
+     * Accepts a new connection. It is paired with another player, or becomes
+     * a spectator, once its HELLO arrives.
+     * 
+     * @param server The listening channel
+     * @throws IOException if the connection cannot be set up
+     */
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel=server.accept();
+        if (channel==null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection c=new Connection();
+        c.channel=channel;
+        channel.register(selector,SelectionKey.OP_READ,c);
+    }
+    
+    /**
+     * Tells the players how many of their frames arrived, so they can forget
+     * them. The acknowledgements are frames of their own, which are not
+     * counted, see Session.
+     */
+    private void acknowledge() {
+        for (Match m : running.values()){
+            for (Connection p : m.players){
+                long received=p.session.acknowledge();
+                if (received>=0)
+                    send(p,ByteBuffer.wrap(new Frame(tick)
+                            .putType(NetIO.MSG_ACK).putVarint(received)
+                            .toBytes()));
+            }
+        }
+    }
+    
+    /**
+     * Queues a message of a player for the spectators of its match, in the
+     * frame of this tick
+     * 
+     * @param from The player the message is about
+     * @param msg The message type
+     * @return the frame, to add the arguments of the message to
+     */
+    private Frame broadcast(Connection from,int msg) {
+        Match m=from.match;
+        if (m.broadcast==null){
+            m.broadcast=new Frame(tick);
+            m.broadcastPlayer=0;
+            markDirty(m);
+        }
+        if (m.broadcastPlayer!=from.player){
+            m.broadcast.putType(NetIO.MSG_PLAYER).putVarint(from.player);
+            m.broadcastPlayer=from.player;
+        }
+        return m.broadcast.putType(msg);
+    }
+    
+    /**
+     * Queues a snapshot of the game of a player for the spectators of its
+     * match. Snapshots for spectators hold all rows, so they can be applied
+     * without knowing any earlier snapshot.
+     * 
+     * @param p The player
+     */
+    private void broadcastSnapshot(Connection p) {
+        if (!p.match.spectators.isEmpty())
+            broadcast(p,NetIO.MSG_SNAPSHOT).putBytes(
+                    new Snapshot().write(p.mirror));
+    }
+    
+    /**
+     * Closes a connection right away
+     * 
+     * @param c The connection
+     */
+    private void close(Connection c) {
+        if (waiting==c)
+            waiting=null;
+        if (c.watching!=null)
+            c.watching.spectators.remove(c);
+        try{
+            c.channel.close();
+        }catch (IOException e){
+            /* It is gone either way */
+        }
+    }
+    
+    /**
+     * Ends a match. Both players get what was still queued for them and are
+     * disconnected after that.
+     * 
+     * @param m The match
+     * @param reason Why the match ended, for the log
+     */
+    @SuppressWarnings("nls")
+    private void endMatch(Match m,String reason) {
+        if (m.over)
+            return;
+        flushSpectators(m);
+        m.over=true;
+        running.remove(Integer.valueOf(m.id));
+        for (Connection p : m.players){
+            sessions.remove(Long.valueOf(p.session.getToken()));
+            lost.remove(p);
+        }
+        System.out.println("Match "+m.id+" ended, "+reason+", scores "
+                +m.players[0].mirror.getScore()+" - "
+                +m.players[1].mirror.getScore());
+        ByteBuffer bye=ByteBuffer.wrap(new Frame(tick).putType(NetIO.MSG_BYE)
+                .toBytes()).asReadOnlyBuffer();
+        ArrayList<Connection> leaving=new ArrayList<Connection>(m.spectators);
+        for (Connection c : leaving)
+            send(c,bye.duplicate());
+        for (Connection c : m.players)
+            leaving.add(c);
+        for (Connection c : leaving){
+            flush(c);
+            c.closing=true;
+            if (c.output.isEmpty())
+                close(c);
+        }
+    }
+    
+    /**
+     * Handles an error on a connection by ending only its own match, or
+     * dropping only the spectator
+     * 
+     * @param c The connection
+     * @param e The error
+     */
+    @SuppressWarnings("nls")
+    private void fail(Connection c,Exception e) {
+        if (c.match==null){
+            close(c);
+            return;
+        }
+        if (e instanceof IOException&&!(e instanceof ProtocolException)
+                &&!c.match.over){
+            lose(c);
+            return;
+        }
+        sendNow(c.opponent,new Frame(0).putType(NetIO.MSG_BYE));
+        close(c);
+        endMatch(c.match,"error of player "+c.player+": "+e);
+    }
+    
+    /**
+     * Handles the messages of a frame of a player
+     * 
+     * @param c The player
+     * @param frame The frame
+     * @throws IOException if the frame holds an invalid message
+     */
+    @SuppressWarnings("nls")
+    private void handle(Connection c,Frame frame) throws IOException {
+        boolean counted=false;
+        while (frame.hasNext()){
+            int msg=frame.nextType();
+            if (!counted&&msg!=NetIO.MSG_ACK&&c.session!=null){
+                counted=true;
+                c.session.received();
+            }
+            if (msg==NetIO.MSG_HELLO&&!c.hello){
+                long version=frame.nextVarint();
+                if (version!=NetIO.PROTOCOL_VERSION)
+                    throw new ProtocolException("Protocol version "+version);
+                long role=frame.nextVarint();
+                c.hello=true;
+                if (role==NetIO.ROLE_SPECTATOR){
+                    c.spectator=true;
+                    c.session=null;
+                }else if (role!=NetIO.ROLE_PLAYER)
+                    throw new ProtocolException("Role "+role);
+                else
+                    c.pairing=true; /* Unless it resumes */
+                continue;
+            }
+            if (!c.hello)
+                throw new ProtocolException("No HELLO");
+            if (c.pairing){
+                if (msg==NetIO.MSG_RESUME){
+                    resume(c,frame);
+                    return;
+                }
+                pair(c);
+            }
+            if (c.spectator){
+                spectate(c,msg,frame);
+                continue;
+            }
+            if (c.match==null||c.match.over)
+                return; /* Nobody to tell */
+            GameEngine g=c.mirror;
+            long arg=0;
+            switch (msg){
+            case NetIO.MSG_NOP:
+                continue;
+            case NetIO.MSG_ACK:
+                c.session.acknowledged(frame.nextVarint());
+                continue;
+            case NetIO.MSG_MOVEDOWN:
+                g.moveDown();
+                break;
+            case NetIO.MSG_MOVELEFT:
+                g.move(-1,0);
+                break;
+            case NetIO.MSG_MOVERIGHT:
+                g.move(1,0);
+                break;
+            case NetIO.MSG_MOVEROTATE:
+                g.rotate();
+                break;
+            case NetIO.MSG_OPPONENT_MARKED_RUBBLE:
+                arg=frame.nextVarint();
+                if (arg<0||arg>Integer.MAX_VALUE)
+                    throw new ProtocolException("Rubble "+arg);
+                g.addBottomLines((int) arg);
+                break;
+            case NetIO.MSG_RESTART:
+                c.mirror.restart();
+                c.opponent.mirror.restart();
+                relay(c,frame.getTick(),msg);
+                broadcastSnapshot(c);
+                broadcastSnapshot(c.opponent);
+                continue;
+            case NetIO.MSG_GAMEOVER:
+            case NetIO.MSG_BYE:
+                relay(c,frame.getTick(),msg);
+                broadcast(c,msg);
+                endMatch(c.match,"player "+c.player
+                        +(msg==NetIO.MSG_BYE ? " left": " lost"));
+                return;
+            case NetIO.MSG_HASH:
+                long pieces=frame.nextVarint(), hash=frame.nextLong();
+                if (hash!=g.getStateHash()&&!c.resyncRequested){
+                    System.out.println("Match "+c.match.id+": player "
+                            +c.player+" differs after "+pieces
+                            +" pieces, asking for a snapshot");
+                    c.resyncRequested=true;
+                    sendNow(c,new Frame(0).putType(NetIO.MSG_RESYNC));
+                }
+                relay(c,frame.getTick(),msg).putVarint(pieces).putLong(hash);
+                broadcast(c,msg).putVarint(pieces).putLong(hash);
+                continue;
+            case NetIO.MSG_RESYNC:
+                relay(c,frame.getTick(),msg);
+                continue;
+            case NetIO.MSG_SNAPSHOT:
+                byte[] snapshot=frame.nextBytes();
+                c.received.read(snapshot,g);
+                c.resyncRequested=false;
+                relay(c,frame.getTick(),msg).putBytes(snapshot);
+                broadcastSnapshot(c);
+                continue;
+            default:
+                throw new ProtocolException("Unknown command "+msg);
+            }
+            Frame f=relay(c,frame.getTick(),msg), b=broadcast(c,msg);
+            if (msg==NetIO.MSG_OPPONENT_MARKED_RUBBLE){
+                f.putVarint(arg);
+                b.putVarint(arg);
+            }
+        }
+        if (c.pairing)
+            pair(c);
+    }
+    
+    /**
+     * Keeps a player whose connection broke in its match, so it can connect
+     * again and resume. What is relayed to it meanwhile is kept by its
+     * session.
+     * 
+     * @param p The player
+     */
+    @SuppressWarnings("nls")
+    private void lose(Connection p) {
+        close(p);
+        p.output.clear();
+        p.lostAt=tick;
+        lost.add(p);
+        System.out.println("Match "+p.match.id+": player "+p.player
+                +" lost its connection");
+    }
+    
+    /**
+     * Makes sure the spectators of a match are flushed at the end of the tick
+     * 
+     * @param m The match
+     */
+    private void markDirty(Match m) {
+        if (!m.dirty){
+            m.dirty=true;
+            dirtyMatches.add(m);
+        }
+    }
+    
+    /**
+     * Starts a server
+     * 
+     * @param args Command line parameters, see the class description
+     */
+    @SuppressWarnings("nls")
+    public static void main(String[] args) {
+        int port=DEFAULT_PORT;
+        try{
+            for (int i=0; i<args.length; i++){
+                if (args[i].equals("-port"))
+                    port=Integer.parseInt(args[++i]);
+                else
+                    throw new IllegalArgumentException(args[i]);
+            }
+        }catch (RuntimeException e){
+            System.err.println("Usage: java MatchServer [-port n]");
+            System.exit(1);
+        }
+        new MatchServer(port).run();
+    }
+    
+    /**
+     * Pairs a player with the one waiting for an opponent, or lets it wait
+     * 
+     * @param c The player, after its HELLO
+     */
+    private void pair(Connection c) {
+        c.pairing=false;
+        if (waiting==null)
+            waiting=c;
+        else{
+            startMatch(waiting,c);
+            waiting=null;
+        }
+    }
+    
+    /**
+     * Reads what a player sent and handles all complete frames
+     * 
+     * @param c The player
+     * @throws IOException if the connection failed or the player sent
+     *         something invalid
+     */
+    @SuppressWarnings("nls")
+    private void read(Connection c) throws IOException {
+        int n=c.channel.read(c.input);
+        if (n<0){
+            if (c.match!=null&&!c.match.over)
+                lose(c);
+            else
+                close(c);
+            return;
+        }
+        c.input.flip();
+        Frame frame;
+        while (c.channel.isOpen()&&(frame=Frame.read(c.input))!=null){
+            handle(c,frame);
+            if (c.resumed!=null){ /* The rest is from the resumed player */
+                c.resumed.input=c.input;
+                c=c.resumed;
+            }
+        }
+        c.input.compact();
+        if (!c.input.hasRemaining()){ /* A frame larger than the buffer */
+            ByteBuffer grown=ByteBuffer.allocate(2*c.input.capacity());
+            c.input.flip();
+            grown.put(c.input);
+            c.input=grown;
+        }
+    }
+    
+    /**
+     * Queues a message for the opponent of a player, in the frame of its tick
+     * 
+     * @param from The player that sent the message
+     * @param tick The tick in which it was sent
+     * @param msg The message type
+     * @return the frame, to add the arguments of the message to
+     */
+    private Frame relay(Connection from,int tick,int msg) {
+        Connection to=from.opponent;
+        Frame f=to.frames.peekLast();
+        if (f==null||f.getTick()!=tick){
+            f=new Frame(tick);
+            if (to.frames.isEmpty())
+                dirty.add(to);
+            to.frames.add(f);
+        }
+        return f.putType(msg);
+    }
+    
+    /**
+     * Lets a new connection take the place of a player whose connection
+     * broke. The server answers with RESUME and the number of frames it got
+     * from the player, and sends again what the player missed; the player
+     * does the same.
+     * 
+     * @param c The new connection, after its HELLO
+     * @param frame The frame, positioned at the arguments of RESUME
+     * @throws ProtocolException if the arguments cannot be read
+     */
+    @SuppressWarnings("nls")
+    private void resume(Connection c,Frame frame) throws ProtocolException {
+        long token=frame.nextLong(), count=frame.nextVarint();
+        c.pairing=false;
+        Connection p=sessions.get(Long.valueOf(token));
+        if (p==null||!p.session.canResume(count)){
+            sendNow(c,new Frame(tick).putType(NetIO.MSG_BYE));
+            c.closing=true;
+            return;
+        }
+        if (p.lostAt<0) /* The old connection did not notice yet */
+            lose(p);
+        lost.remove(p);
+        p.lostAt=-1;
+        p.channel=c.channel;
+        p.channel.keyFor(selector).attach(p);
+        p.session.acknowledged(count);
+        send(p,ByteBuffer.wrap(new Frame(tick).putType(NetIO.MSG_RESUME)
+                .putLong(token).putVarint(p.session.getReceived()).toBytes()));
+        for (byte[] missed : p.session.resend(count))
+            send(p,ByteBuffer.wrap(missed));
+        c.resumed=p;
+        System.out.println("Match "+p.match.id+": player "+p.player
+                +" resumed");
+    }
+    
+    /*
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    @SuppressWarnings("nls")
+    public void run() {
+        try{
+            selector=Selector.open();
+            ServerSocketChannel server=ServerSocketChannel.open();
+            server.configureBlocking(false);
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port),BACKLOG);
+            server.register(selector,SelectionKey.OP_ACCEPT);
+            System.out.println("Waiting for players on port "+port+".");
+        }catch (IOException e){
+            System.out.println("Could not listen on port "+port+".");
+            return;
+        }
+        long nextTick=System.nanoTime();
+        while (selector.isOpen()){
+            try{
+                long wait=(nextTick-System.nanoTime())/1000000;
+                if (wait>0)
+                    selector.select(wait);
+                else
+                    selector.selectNow();
+            }catch (IOException e){
+                System.out.println("Selector failed: "+e);
+                return;
+            }
+            Iterator<SelectionKey> keys=selector.selectedKeys().iterator();
+            while (keys.hasNext()){
+                SelectionKey key=keys.next();
+                keys.remove();
+                if (key.isValid()&&key.isAcceptable()){
+                    try{
+                        accept((ServerSocketChannel) key.channel());
+                    }catch (IOException e){
+                        System.out.println("Could not accept a player: "+e);
+                    }
+                    continue;
+                }
+                Connection c=(Connection) key.attachment();
+                try{
+                    if (key.isValid()&&key.isReadable())
+                        read(c);
+                    if (key.isValid()&&key.isWritable())
+                        write(c);
+                }catch (IOException e){
+                    fail(c,e);
+                }catch (RuntimeException e){
+                    fail(c,e);
+                }
+            }
+            if (System.nanoTime()-nextTick>=0){
+                if (tick%Session.ACK_INTERVAL==0)
+                    acknowledge();
+                for (int i=lost.size()-1; i>=0; i--){
+                    Connection p=lost.get(i);
+                    if (tick-p.lostAt>=RESUME_TICKS){
+                        sendNow(p.opponent,new Frame(0)
+                                .putType(NetIO.MSG_BYE));
+                        endMatch(p.match,"player "+p.player
+                                +" disconnected");
+                    }
+                }
+                for (Connection c : dirty)
+                    flush(c);
+                dirty.clear();
+                ArrayList<Match> ticking=dirtyMatches;
+                dirtyMatches=new ArrayList<Match>();
+                for (Match m : ticking)
+                    flushSpectators(m);
+                tick++;
+                nextTick=System.nanoTime()+NetIO.TICK_MILLIS*1000000L;
+            }
+        }
+    }
+    
+    /**
+     * Writes all frames queued for a player in one buffer
+     * 
+     * @param c The player
+     */
+    private void flush(Connection c) {
+        if (c.frames.isEmpty())
+            return;
+        byte[][] frames=new byte[c.frames.size()][];
+        int size=0;
+        for (int i=0; i<frames.length; i++){
+            frames[i]=c.frames.poll().toBytes();
+            size+=frames[i].length;
+            if (c.session!=null)
+                c.session.sent(frames[i]);
+        }
+        ByteBuffer b=ByteBuffer.allocate(size);
+        for (byte[] f : frames)
+            b.put(f);
+        b.flip();
+        send(c,b);
+    }
+    
+    /**
+     * Sends the messages of this tick to the spectators of a match. They are
+     * encoded once and every spectator gets a view of the same buffer.
+     * Spectators that fell behind get snapshots of both games instead, as
+     * soon as they have read what was queued for them before.
+     * 
+     * @param m The match
+     */
+    private void flushSpectators(Match m) {
+        m.dirty=false;
+        if (m.over)
+            return;
+        ByteBuffer shared=null, snapshots=null;
+        if (m.broadcast!=null&&!m.broadcast.isEmpty()
+                &&!m.spectators.isEmpty())
+            shared=ByteBuffer.wrap(m.broadcast.toBytes()).asReadOnlyBuffer();
+        m.broadcast=null;
+        for (Connection s : m.spectators){
+            if (!s.lagging&&queued(s)>SPECTATOR_BACKLOG){
+                /* The first buffer may be partly written, keep it whole */
+                ByteBuffer first=s.output.poll();
+                s.output.clear();
+                if (first!=null)
+                    s.output.add(first);
+                s.lagging=true;
+            }
+            if (!s.lagging){
+                if (shared!=null)
+                    send(s,shared.duplicate());
+            }else if (s.output.isEmpty()){
+                if (snapshots==null){
+                    Frame f=new Frame(tick);
+                    for (Connection p : m.players){
+                        f.putType(NetIO.MSG_PLAYER).putVarint(p.player);
+                        f.putType(NetIO.MSG_SNAPSHOT).putBytes(
+                                new Snapshot().write(p.mirror));
+                    }
+                    snapshots=ByteBuffer.wrap(f.toBytes()).asReadOnlyBuffer();
+                }
+                send(s,snapshots.duplicate());
+                s.lagging=false;
+            }else
+                markDirty(m); /* Check again next tick */
+        }
+    }
+    
+    /**
+     * Gets the number of bytes queued for a connection
+     * 
+     * @param c The connection
+     * @return the bytes not written yet
+     */
+    private static long queued(Connection c) {
+        long ret=0;
+        for (ByteBuffer b : c.output)
+            ret+=b.remaining();
+        return ret;
+    }
+    
+    /**
+     * Queues data for a player and makes sure the selector writes it
+     * 
+     * @param c The player
+     * @param data The data
+     */
+    private void send(Connection c,ByteBuffer data) {
+        if (!c.channel.isOpen())
+            return;
+        c.output.add(data);
+        c.channel.keyFor(selector).interestOps(
+                SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+    }
+    
+    /**
+     * Sends a frame to a player right away, after the frames queued before
+     * 
+     * @param c The player
+     * @param f The frame
+     */
+    private void sendNow(Connection c,Frame f) {
+        flush(c);
+        byte[] b=f.toBytes();
+        if (c.session!=null)
+            c.session.sent(b);
+        send(c,ByteBuffer.wrap(b));
+    }
+    
+    /**
+     * Handles a message of a spectator. Spectators pick a match to watch with
+     * WATCH and may ask for new snapshots with RESYNC.
+     * 
+     * @param c The spectator
+     * @param msg The message type
+     * @param frame The frame, positioned at the arguments of the message
+     * @throws ProtocolException if the message is not one of a spectator
+     */
+    @SuppressWarnings("nls")
+    private void spectate(Connection c,int msg,Frame frame)
+            throws ProtocolException {
+        switch (msg){
+        case NetIO.MSG_NOP:
+            break;
+        case NetIO.MSG_WATCH:
+            int id=(int) frame.nextVarint();
+            Match m=running.get(Integer.valueOf(id));
+            if (id==0){
+                for (Match r : running.values())
+                    if (m==null||r.id>m.id)
+                        m=r;
+            }
+            if (c.watching!=null)
+                c.watching.spectators.remove(c);
+            c.watching=m;
+            if (m==null){
+                sendNow(c,new Frame(tick).putType(NetIO.MSG_BYE));
+                c.closing=true;
+                break;
+            }
+            m.spectators.add(c);
+            c.lagging=true;
+            markDirty(m);
+            System.out.println("Match "+m.id+" has "+m.spectators.size()
+                    +" spectators");
+            break;
+        case NetIO.MSG_RESYNC:
+            if (c.watching!=null){
+                c.lagging=true;
+                markDirty(c.watching);
+            }
+            break;
+        case NetIO.MSG_BYE:
+            c.closing=true;
+            if (c.output.isEmpty())
+                close(c);
+            break;
+        default:
+            throw new ProtocolException("Spectators cannot send "+msg);
+        }
+    }
+    
+    /**
+     * Pairs two players and sends both the seed of their match
+     * 
+     * @param first The player that waited
+     * @param second The player that just connected
+     */
+    @SuppressWarnings("nls")
+    private void startMatch(Connection first,Connection second) {
+        Match m=new Match();
+        m.id=++matches;
+        m.seed=random.nextLong();
+        m.players=new Connection[]{first, second};
+        first.opponent=second;
+        second.opponent=first;
+        running.put(Integer.valueOf(m.id),m);
+        for (int i=0; i<2; i++){
+            Connection c=m.players[i];
+            c.match=m;
+            c.player=i+1;
+            c.mirror=new GameEngine(m.seed);
+            long token=NetIO.newToken();
+            c.session.setToken(token);
+            sessions.put(Long.valueOf(token),c);
+            sendNow(c,new Frame(0).putType(NetIO.MSG_HELLO)
+                    .putVarint(NetIO.PROTOCOL_VERSION)
+                    .putVarint(NetIO.ROLE_PLAYER)
+                    .putType(NetIO.MSG_IAMSERVER).putLong(m.seed)
+                    .putType(NetIO.MSG_SESSION).putLong(token));
+        }
+        System.out.println("Match "+m.id+" started with seed "+m.seed);
+    }
+    
+    /**
+     * Writes as much of the queued data to a player as the connection takes
+     * 
+     * @param c The player
+     * @throws IOException if the connection failed
+     */
+    private void write(Connection c) throws IOException {
+        while (!c.output.isEmpty()){
+            ByteBuffer b=c.output.peek();
+            c.channel.write(b);
+            if (b.hasRemaining())
+                return;
+            c.output.poll();
+        }
+        if (c.closing)
+            close(c);
+        else
+            c.channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+    }
+}
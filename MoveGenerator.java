@@ -0,0 +1,177 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds every position where a piece can come to rest, together with the
+ * shortest sequence of player actions that brings it there. The positions
+ * reachable from the start are searched breadth first, using the same moves
+ * and rotation kicks as GameEngine, so pieces can also be slid under
+ * overhangs or rotated into gaps.
+ */
+public class MoveGenerator{
+    /**
+     * A resting position of a piece and how to get there
+     */
+    public static class Move{
+        /* The actions, GameEngine.ACTION_DROP means falling to the landing */
+        public int[] path;
+        public int rotation, x, y;
+    }
+
+    private static final int MARGIN=4; /* Pieces reach 2 squares out of bounds */
+    private static final int[] KICKS={0, -1, 1, -2, 2}; /* As GameEngine */
+
+    private byte[] action; /* The action that reached every state */
+    private int count; /* The number of queued states */
+    private Grid grid;
+    private int height, width; /* Of the state space, including margins */
+    private int[] parent; /* The state every state was reached from */
+    private Polyomino[] pieces; /* The piece in every rotation */
+    private int[] queue;
+
+    /**
+     * Prepares to search moves on a board. A generator must only be used by
+     * one thread at a time.
+     *
+     * @param grid The board, without the piece that is moved
+     */
+    public MoveGenerator(Grid grid) {
+        this.grid=grid;
+    }
+
+    /**
+     * Finds all resting positions of a piece. Positions with the same squares
+     * occupied are only returned once, with the shortest path.
+     *
+     * @param p The piece, in its current rotation
+     * @param x x-coordinate of the piece
+     * @param y y-coordinate of the piece
+     * @return the moves in order of path length, empty if the piece does not
+     *         fit at x/y
+     */
+    public List<Move> generate(Polyomino p,int x,int y) {
+        List<Move> ret=new ArrayList<Move>();
+        if (!grid.canPlacePiece(p,x,y))
+            return ret;
+        width=grid.getLength()+2*MARGIN;
+        height=grid.getHeight()+2*MARGIN;
+        int rotations=1;
+        Polyomino r=new Polyomino(p.getIndex(),p.getRotation()+1);
+        while (r.getRotation()!=p.getRotation()){
+            rotations++;
+            r.rotate();
+        }
+        pieces=new Polyomino[rotations];
+        int[] shapes=new int[rotations]; /* First rotation of the same shape */
+        for (int i=0; i<rotations; i++){
+            pieces[i]=new Polyomino(p.getIndex(),p.getRotation()+i);
+            shapes[i]=i;
+            for (int j=0; j<i; j++){
+                if (Arrays.equals(pieces[i].getRowMasks(),
+                        pieces[j].getRowMasks())){
+                    shapes[i]=j;
+                    break;
+                }
+            }
+        }
+        int states=rotations*width*height;
+        parent=new int[states];
+        action=new byte[states];
+        queue=new int[states];
+        Arrays.fill(parent,-2);
+        boolean[] landed=new boolean[states]; /* By shape and squares */
+        count=0;
+        int start=(x+MARGIN)*height+y+MARGIN;
+        parent[start]=-1;
+        queue[count++]=start;
+        for (int k=0; k<count; k++){
+            int s=queue[k];
+            int rot=s/(width*height);
+            int sx=s/height%width-MARGIN;
+            int sy=s%height-MARGIN;
+            Polyomino piece=pieces[rot];
+            int below=grid.canPlacePiece(piece,sx,sy+1) ? -1
+                    : shapes[rot]*width*height+(sx+piece.getMinX()+MARGIN)
+                            *height+sy+piece.getMinY()+MARGIN;
+            if (below>=0&&!landed[below]){
+                landed[below]=true;
+                ret.add(path(s));
+            }
+            visit(s,rot,sx-1,sy,GameEngine.ACTION_LEFT);
+            visit(s,rot,sx+1,sy,GameEngine.ACTION_RIGHT);
+            int next=(rot+1)%rotations;
+            for (int kick : KICKS){
+                if (grid.canPlacePiece(pieces[next],sx+kick,sy)){
+                    visit(s,next,sx+kick,sy,GameEngine.ACTION_ROTATE);
+                    break;
+                }
+            }
+            if (below<0){
+                visit(s,rot,sx,sy+1,GameEngine.ACTION_DOWN);
+                visit(s,rot,sx,grid.dropRow(piece,sx,sy),
+                        GameEngine.ACTION_DROP);
+            }
+        }
+        pieces=null;
+        parent=queue=null;
+        action=null;
+        return ret;
+    }
+
+    /**
+     * Builds the move that ends in a state
+     *
+     * @param s The state
+     * @return the move
+     */
+    private Move path(int s) {
+        Move m=new Move();
+        m.rotation=pieces[s/(width*height)].getRotation();
+        m.x=s/height%width-MARGIN;
+        m.y=s%height-MARGIN;
+        int length=0;
+        for (int t=s; parent[t]>=0; t=parent[t])
+            length++;
+        m.path=new int[length];
+        for (int t=s; parent[t]>=0; t=parent[t])
+            m.path[--length]=action[t];
+        return m;
+    }
+
+    /**
+     * Queues a state if the piece fits there and it was not seen before
+     *
+     * @param from The state the action is taken in
+     * @param rot The rotation of the piece after the action
+     * @param x The x-coordinate after the action
+     * @param y The y-coordinate after the action
+     * @param a The action
+     */
+    private void visit(int from,int rot,int x,int y,int a) {
+        if (x+MARGIN<0||x+MARGIN>=width||y+MARGIN<0||y+MARGIN>=height)
+            return;
+        int s=rot*width*height+(x+MARGIN)*height+y+MARGIN;
+        if (parent[s]!=-2||!grid.canPlacePiece(pieces[rot],x,y))
+            return;
+        parent[s]=from;
+        action[s]=(byte) a;
+        queue[count++]=s;
+    }
+}
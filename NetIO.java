@@ -14,41 +14,122 @@
  * details. You should have received a copy of the GNU General Public License
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
+import java.awt.EventQueue;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.concurrent.ScheduledFuture;
 import javax.swing.JOptionPane;
 
 /**
  * Network Multiplayer support. This implementation of the Opponent interface in
  * this class basically behaves as if it's methods are called on the connecting
  * computer's game.
+ * 
+ * Messages are collected into a Frame and sent once per tick, so the moves of
+ * a piece dropped by the AI go out in one packet. Both sides start with a
+ * HELLO message carrying the protocol version and their role, and drop the
+ * connection if the versions differ.
+ * 
+ * Every few pieces a hash of the game state is sent along. If the copy of
+ * the game on the other side has a different hash it asks for a snapshot,
+ * which brings the copy back in line; see Snapshot.
+ * 
+ * The server can also ask for a lockstep game, see Lockstep. Both games are
+ * then played in ticks on the event dispatch thread, and the flusher sends
+ * the frame of a tick once the tick is played. Every frame is sent even if
+ * it is empty, and the moves in a frame take effect in its tick plus the
+ * input delay. Both computers play the same inputs in the same ticks, so
+ * neither hashes nor rubble are sent.
+ * 
+ * The server hands out a session token, see Session. When the connection
+ * breaks the client connects again with a RESUME message and the server
+ * accepts it, both sides send again the frames the other side missed, and
+ * the game goes on. The local game waits meanwhile, and the program only
+ * ends if the connection does not come back in time.
  */
 public class NetIO implements Runnable, Opponent{
     private static final int IPTOS_LOWDELAY=0x10; /* See RFC 1349 */
-    private static final byte MSG_BITS=4;
-    private static final char MSG_BYE=4;
-    private static final char MSG_GAMEOVER=1;
-    private static final char MSG_IAMSERVER=5;
-    /* IAMSERVER is always followed by 8 bytes of the RNG seed */
-    private static final char MSG_NOP=0;
-    private static final char MSG_RESTART=3;
-    private static final char MSG_MOVEDOWN = 6;
-    private static final char MSG_MOVERIGHT = 7;
-    private static final char MSG_MOVELEFT = 8;
-    private static final char MSG_MOVEROTATE = 9;
-    private static final char MSG_OPPONENT_MARKED_RUBBLE = 10;
+    /**
+     * The version of the protocol, sent in the HELLO message
+     */
+    static final int PROTOCOL_VERSION=5;
+    /**
+     * The roles sent in the HELLO message: a player, or a spectator that
+     * watches a match on a MatchServer
+     */
+    static final int ROLE_PLAYER=0, ROLE_SPECTATOR=1;
+    /**
+     * The time between two frames, in milliseconds
+     */
+    static final int TICK_MILLIS=16;
+    static final char MSG_BYE=4;
+    static final char MSG_GAMEOVER=1;
+    static final char MSG_HELLO=11; /* Followed by the version and the role */
+    static final char MSG_IAMSERVER=5; /* Followed by the RNG seed as a long */
+    static final char MSG_NOP=0;
+    static final char MSG_RESTART=3;
+    static final char MSG_MOVEDOWN = 6;
+    static final char MSG_MOVERIGHT = 7;
+    static final char MSG_MOVELEFT = 8;
+    static final char MSG_MOVEROTATE = 9;
+    static final char MSG_OPPONENT_MARKED_RUBBLE = 10; /* Followed by count */
+    /* Followed by the number of pieces locked and the state hash as a long */
+    static final char MSG_HASH=12;
+    static final char MSG_RESYNC=13; /* Asks for a snapshot */
+    static final char MSG_SNAPSHOT=14; /* Followed by the snapshot bytes */
+    /* To spectators, followed by the player the next messages are about */
+    static final char MSG_PLAYER=15;
+    /* From spectators, followed by the match id, 0 for the newest match */
+    static final char MSG_WATCH=16;
+    /* Followed by the input delay and 1 for rollback, answered by the client */
+    static final char MSG_LOCKSTEP=17;
+    static final char MSG_MOVEDROP=18; /* Lockstep games only */
+    static final char MSG_SESSION=19; /* Followed by the token as a long */
+    static final char MSG_ACK=20; /* Followed by the number of frames received */
+    /* Followed by the token and the number of frames received, see Session */
+    static final char MSG_RESUME=21;
+    private static final int RETRY_MILLIS=500; /* Between two reconnects */
+    private static final SecureRandom TOKENS=new SecureRandom();
+    private static final int HASH_INTERVAL=4; /* Pieces */
+    private volatile boolean ended; /* We sent GAMEOVER, the other side leaves */
+    private ScheduledFuture<?> flusher; /* Sends the pending frame every tick */
     private Game game;
     private boolean isServer;
+    private volatile Lockstep lockstep;
+    private int lockstepDelay=-1; /* -1 if not asked for */
+    private boolean lockstepOver; /* Our game over was shown */
+    private boolean lockstepRollback;
+    /* The frame being handled is stamped with a lockstep tick */
+    private boolean lockstepTicks;
+    private boolean remoteLockstep; /* The other side plays in ticks */
+    private int piecesLocked;
+    private Snapshot received=new Snapshot(), sent=new Snapshot();
+    private volatile boolean resuming; /* The connection broke */
+    private volatile boolean resyncRequested;
+    private OutputStream netout;
+    private Frame pending; /* The messages of the current tick */
     private int port;
     private long seed; /* Only used if we are server */
     private String serverName;
     private Socket socket;
     private ServerSocket serv;
+    private Session session;
     private Game opponentState;
     private Thread opponentThread;
+    private volatile boolean stopped; /* The user left the network game */
+    private int tick;
+    /* Held while a frame is taken and written, taken before the monitor so
+     * frames go out in order while moves can still be queued */
+    private final Object writeLock=new Object();
     
     /**
      * Prepares a network multiplayer game in server mode
@@ -86,7 +167,7 @@ public class NetIO implements Runnable, Opponent{
      */
     @Override
     public boolean canPause() {
-        return false;
+        return resuming; /* Only to wait for the connection */
     }
     
     public boolean isPaused() {
@@ -107,7 +188,12 @@ public class NetIO implements Runnable, Opponent{
      * Terminates network connection
      */
     private void closeConnection() {
+        leaveLockstep();
         sendWithoutExceptions(MSG_BYE);
+        flush();
+        if (flusher!=null)
+            flusher.cancel(false);
+        stopped=true;
         try{
             socket.close();
         }catch (Exception e){
@@ -116,6 +202,79 @@ public class NetIO implements Runnable, Opponent{
         socket=null;
     }
     
+    /**
+     * Takes all moves of the other player for a tick as received
+     * 
+     * @param frameTick The tick of the frame that was handled
+     */
+    private synchronized void confirmed(int frameTick) {
+        if (lockstep!=null)
+            lockstep.confirm(frameTick);
+    }
+    
+    /**
+     * Waits for the client to connect again
+     * 
+     * @param timeout The longest time to wait, in milliseconds
+     * @return the new connection
+     * @throws IOException if nobody connected in time
+     */
+    private Socket acceptAgain(int timeout) throws IOException {
+        if (serv==null){
+            serv=new ServerSocket();
+            serv.setReuseAddress(true);
+            serv.bind(new InetSocketAddress(port));
+        }
+        serv.setSoTimeout(timeout);
+        return serv.accept();
+    }
+    
+    /**
+     * Sets up a new connection and starts sending a frame every tick
+     * 
+     * @throws IOException if the connection is already broken
+     */
+    private void connected() throws IOException {
+        try{
+            socket.setTcpNoDelay(true);
+            socket.setTrafficClass(IPTOS_LOWDELAY);
+        }catch (Exception e){
+            /* We really don't care */
+        }
+        synchronized (this){
+            netout=socket.getOutputStream();
+            session=new Session(isServer ? newToken(): 0);
+            pending=new Frame(tick);
+            pending.putType(MSG_HELLO).putVarint(PROTOCOL_VERSION)
+                    .putVarint(ROLE_PLAYER);
+        }
+        flusher=Execution.schedule(new Runnable(){
+            @Override
+            public void run() {
+                if (lockstep!=null)
+                    playLockstep();
+                flush();
+            }
+        },TICK_MILLIS);
+    }
+    
+    /**
+     * Sends the messages of this tick in one write and starts the next tick.
+     * The write happens outside the monitor, so a slow connection does not
+     * hold up the moves of the local player.
+     */
+    private void flush() {
+        synchronized (writeLock){
+            byte[] frame;
+            OutputStream out;
+            synchronized (this){
+                frame=nextFrame();
+                out=netout;
+            }
+            write(frame,out);
+        }
+    }
+    
     /*
      * @see nl.unimaas.micc.group5.pentris.Opponent#gameOver(boolean)
      */
@@ -130,7 +289,10 @@ public class NetIO implements Runnable, Opponent{
 		}
 		return;
 	} else {
+		leaveLockstep();
+		ended=true;
 		sendWithoutExceptions(MSG_GAMEOVER);
+		flush();
 	}
     }
     
@@ -142,6 +304,15 @@ public class NetIO implements Runnable, Opponent{
         return false;
     }
     
+    /**
+     * Are both games played in ticks by a Lockstep?
+     * 
+     * @return true once a lockstep game has started
+     */
+    public boolean isLockstep() {
+        return lockstep!=null;
+    }
+    
     /*
      * @see nl.unimaas.micc.group5.pentris.Opponent#isReady()
      */
@@ -150,16 +321,125 @@ public class NetIO implements Runnable, Opponent{
         return socket!=null;
     }
     
+    /**
+     * Stops playing in ticks, so the last messages are sent right away
+     */
+    private synchronized void leaveLockstep() {
+        lockstep=null;
+    }
+    
     /*
      * @see nl.unimaas.micc.group5.pentris.Opponent#opponentDropped()
      */
     @Override
     public void opponentDropped() {/* not needed here */}
     
+    /**
+     * Makes a token for a new session
+     * 
+     * @return a random token, never 0
+     */
+    static long newToken() {
+        long ret;
+        do
+            ret=TOKENS.nextLong();
+        while (ret==0);
+        return ret;
+    }
+    
+    /**
+     * Takes the messages of this tick and starts the next tick. Must be
+     * called holding the monitor.
+     * 
+     * @return the frame to send, or null if there is none
+     */
+    private byte[] nextFrame() {
+        if (pending==null)
+            return null;
+        if (lockstep!=null&&lockstep.getTick()<=tick)
+            return null; /* Inputs keep going to this tick until it is played */
+        tick++;
+        boolean counted=!pending.isEmpty();
+        if (tick%Session.ACK_INTERVAL==0){
+            long received=session.acknowledge();
+            if (received>=0)
+                pending.putType(MSG_ACK).putVarint(received);
+        }
+        if (pending.isEmpty()&&lockstep==null){
+            pending=new Frame(tick);
+            return null;
+        }
+        byte[] frame=pending.toBytes();
+        pending=new Frame(tick);
+        if (counted)
+            session.sent(frame); /* Sent again if the connection breaks */
+        return frame;
+    }
+    
+    /**
+     * Runs work on the event dispatch thread, where the engines are painted
+     * and the lockstep games played, and waits until it is done
+     * 
+     * @param work The work
+     * @throws InterruptedIOException if the wait was interrupted
+     */
+    private static void onEventThread(Runnable work)
+            throws InterruptedIOException {
+        try{
+            EventQueue.invokeAndWait(work);
+        }catch (InterruptedException e){
+            throw new InterruptedIOException();
+        }catch (InvocationTargetException e){
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    /**
+     * Plays the lockstep games as far as the inputs allow and shows them. The
+     * engines are only changed on the event dispatch thread, where the games
+     * are painted and the keys of the player handled, and the caller waits
+     * until that is done.
+     */
+    private void playLockstep() {
+        try{
+            EventQueue.invokeAndWait(new Runnable(){
+                @Override
+                public void run() {
+                    boolean changed, over;
+                    synchronized (NetIO.this){
+                        if (lockstep==null)
+                            return;
+                        changed=lockstep.advance();
+                        over=!lockstepOver&&lockstep.isOver(true);
+                        if (over)
+                            lockstepOver=true;
+                    }
+                    if (changed){
+                        game.refresh();
+                        opponentState.refresh();
+                    }
+                    if (over){
+                        EventQueue.invokeLater(new Runnable(){
+                            @Override
+                            public void run() {
+                                game.gameOver(true,false); /* Shows dialogs */
+                            }
+                        });
+                    }
+                }
+            });
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt(); /* Cancelled */
+        }catch (InvocationTargetException e){
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
     /**
      * Listens to the connected game and responds to the commands it sends.
-     * Note: this function will never return, it will exit the program on errors
-     * or when the connected computer exits.
+     * When the connection breaks it is resumed, see reconnect. Note: this
+     * function will only return when the user leaves the network game, it
+     * will exit the program on errors or when the connected computer exits.
      */
     @SuppressWarnings({"nls", "null"})
     public void readloop() {
@@ -171,58 +451,179 @@ public class NetIO implements Runnable, Opponent{
             System.exit(1);
         }
         while (true){
-            int c=-2;
+            Frame frame=null;
             try{
-                c=netin.read();
+                frame=Frame.read(netin);
+            }catch (ProtocolException e){
+                System.out.println("Bad data from remote: "+e.getMessage());
+                System.exit(1);
             }catch (EOFException e){
                 System.out.println("Unexpected end of stream.");
-                System.exit(1); /* This can probably be recovered from */
             }catch (IOException e){
                 System.out.println("Connection error.");
-                System.exit(1); /* Why not retry to connect? */
             }
-            if (c==-1){
-                JOptionPane.showMessageDialog(null,"Opponent game over",
-                        "Pentris!",JOptionPane.INFORMATION_MESSAGE);
+            if (frame==null){
+                if (stopped)
+                    return;
+                netin=reconnect();
+                if (netin==null){
+                    JOptionPane.showMessageDialog(null,"Opponent game over",
+                            "Pentris!",JOptionPane.INFORMATION_MESSAGE);
+                    System.exit(1);
+                }
+                continue;
+            }
+            try{
+                lockstepTicks=lockstep!=null&&remoteLockstep;
+                boolean counted=false;
+                while (frame.hasNext()){
+                    int c=frame.nextType();
+                    counted|=c!=MSG_ACK;
+                    handle(c,frame);
+                }
+                if (counted)
+                    session.received();
+                if (lockstepTicks)
+                    confirmed(frame.getTick());
+            }catch (IOException e){
+                System.out.println("Bad data from remote: "+e.getMessage());
                 System.exit(1);
             }
-            switch (c%(1<<MSG_BITS)){
-            case MSG_GAMEOVER:
-                game.gameOver(true, false);
-                System.exit(0);
-                break;
-            case MSG_RESTART:
-                game.restart(false);
-                break;
-            case MSG_BYE:
-                JOptionPane.showMessageDialog(null,"Opponent game over",
-                        "Pentris!",JOptionPane.INFORMATION_MESSAGE);
-                game.gameOver(true, false);
-                System.exit(0);
-                break;
-            case MSG_NOP:
-                break;
-            case MSG_IAMSERVER:
-                if (isServer){
-                    System.out.println("Opponent claims to also be server,"
-                            +" ignoring.");
-                }else{
-                    try{
-                        long seed=0;
-                        for (int i=0; i<8; i++){
-                            c=netin.read();
-                            if (c==-1)
-                                throw new EOFException();
-                            seed=seed*256+c;
-                        }
-                        System.out.println("Got seed "+seed);
-                        game.setSeed(seed);
+        }
+    }
+    
+    /**
+     * Gets the connection back after it broke. The client connects again and
+     * sends HELLO and RESUME with the token of the session and the number of
+     * frames it received; the server waits for that and answers with RESUME
+     * and its own count. Both then send the frames the other side missed.
+     * The local game waits until then.
+     * 
+     * @return the stream of the new connection, or null if the session could
+     *         not be resumed in time
+     */
+    @SuppressWarnings("nls")
+    private InputStream reconnect() {
+        synchronized (this){
+            netout=null;
+        }
+        try{
+            socket.close();
+        }catch (IOException e){
+            /* It is broken anyway */
+        }
+        if (ended||session.getToken()==0)
+            return null; /* Over, or the server did not hand out a token yet */
+        System.out.println("Connection lost, trying to resume the game.");
+        resuming=true;
+        game.pauseGame();
+        long deadline=System.currentTimeMillis()+Session.RESUME_MILLIS;
+        try{
+            while (!stopped){
+                int left=(int) (deadline-System.currentTimeMillis());
+                if (left<=0)
+                    return null;
+                Socket s=null;
+                try{
+                    if (isServer)
+                        s=acceptAgain(left);
+                    else{
+                        s=new Socket();
+                        s.connect(new InetSocketAddress(serverName,port),left);
+                    }
+                    s.setTcpNoDelay(true);
+                    s.setSoTimeout(left);
+                    InputStream in=s.getInputStream();
+                    if (!resume(s,in)){
+                        s.close();
+                        return null;
+                    }
+                    System.out.println("Connection resumed.");
+                    resuming=false;
+                    game.unPauseGame();
+                    return in;
+                }catch (IOException e){
+                    if (s!=null)
+                        s.close();
+                    if (!isServer)
+                        Thread.sleep(RETRY_MILLIS);
+                }
+            }
+        }catch (IOException e){
+            /* Closing failed, give up */
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }finally{
+            resuming=false;
+            if (serv!=null){
+                try{
+                    serv.close();
+                }catch (IOException e){
+                    /* We are done with it */
+                }
+                serv=null;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Responds to one message of the connected game
+     * 
+     * @param c The message type
+     * @param frame The frame, positioned at the arguments of the message
+     * @throws IOException if the arguments cannot be read
+     */
+    @SuppressWarnings({"nls", "null"})
+    private void handle(int c,Frame frame) throws IOException {
+        switch (c){
+        case MSG_HELLO:
+            int version=(int) frame.nextVarint();
+            if (version!=PROTOCOL_VERSION){
+                System.out.println("Opponent uses protocol version "
+                        +version+", we use "+PROTOCOL_VERSION+".");
+                closeConnection();
+                System.exit(1);
+            }
+            frame.nextVarint(); /* The role, the other side always plays */
+            break;
+        case MSG_GAMEOVER:
+            game.gameOver(true, false);
+            System.exit(0);
+            break;
+        case MSG_RESTART:
+            game.restart(false);
+            break;
+        case MSG_BYE:
+            JOptionPane.showMessageDialog(null,"Opponent game over",
+                    "Pentris!",JOptionPane.INFORMATION_MESSAGE);
+            game.gameOver(true, false);
+            System.exit(0);
+            break;
+        case MSG_NOP:
+            break;
+        case MSG_SESSION:
+            long token=frame.nextLong();
+            if (!isServer)
+                session.setToken(token);
+            break;
+        case MSG_ACK:
+            session.acknowledged(frame.nextVarint());
+            break;
+        case MSG_IAMSERVER:
+            long seed=frame.nextLong();
+            if (isServer){
+                System.out.println("Opponent claims to also be server,"
+                        +" ignoring.");
+            }else{
+                    System.out.println("Got seed "+seed);
+                    game.setSeed(seed);
 			opponentState = new Game(seed, "Opponent game");
-			opponentThread = new Thread(opponentState, "Opponent visualisation thread");
+			opponentThread = Execution.newThread(opponentState, "Opponent visualisation thread");
 			opponentState.moveFrameRight();
-			opponentState.setOpponentGame(game);
+			if (lockstepDelay<0)
+				opponentState.setOpponentGame(game);
 			opponentState.setNoAutoMove(true);
-			game.relayMovements(this);
 			opponentThread.start();
 			synchronized (opponentState) {
 				try {
@@ -232,45 +633,131 @@ public class NetIO implements Runnable, Opponent{
 					System.exit(1);
 				}
 			}
+			if (lockstepDelay>=0)
+				startLockstep();
+			game.relayMovements(this);
 			opponentState.unPauseGame();
-                    }catch (EOFException e){
-                        System.out.println("Unexpected end of stream.");
-                        System.exit(1); // This can probably be recovered from
-                    }catch (IOException e){
-                        System.out.println("Connection error.");
-                        System.exit(1);/* Why not retry to connect? */
-                    }
-                }
-                game.unPauseGame();
-                break;
+            }
+            game.unPauseGame();
+            break;
 	    case MSG_MOVEDOWN:
-		opponentState.doMoveDown(false);
+		if (!received(frame,GameEngine.ACTION_DOWN))
+			opponentState.doMoveDown(false);
 		break;
 	    case MSG_MOVERIGHT:
-		opponentState.moveRight();
+		if (!received(frame,GameEngine.ACTION_RIGHT))
+			opponentState.moveRight();
 		break;
 	    case MSG_MOVELEFT:
-		opponentState.moveLeft();
+		if (!received(frame,GameEngine.ACTION_LEFT))
+			opponentState.moveLeft();
 		break;
 	    case MSG_MOVEROTATE:
-		opponentState.doRotate();
+		if (!received(frame,GameEngine.ACTION_ROTATE))
+			opponentState.doRotate();
+		break;
+	    case MSG_MOVEDROP:
+		if (!received(frame,GameEngine.ACTION_DROP))
+			opponentState.dropDown();
+		break;
+	    case MSG_LOCKSTEP:
+		int delay=(int) frame.nextVarint();
+		boolean rollback=frame.nextVarint()!=0;
+		synchronized (this) {
+			if (!isServer) {
+				lockstepDelay=delay;
+				lockstepRollback=rollback;
+			}
+			remoteLockstep=true; /* From the next frame on */
+		}
 		break;
 	    case MSG_OPPONENT_MARKED_RUBBLE:
-		System.out.format("Opponent marked %d lines\n", c >> MSG_BITS);
-		opponentState.addBottomLines(c >> MSG_BITS);
+		int count=(int) frame.nextVarint();
+		System.out.format("Opponent marked %d lines\n", count);
+		opponentState.addBottomLines(count);
 		break;
-            default:
-                System.out.println("Unknown command from remote: "+c);
+        case MSG_HASH:
+            int pieces=(int) frame.nextVarint();
+            final long hash=frame.nextLong();
+            final boolean[] differs=new boolean[1];
+            onEventThread(new Runnable(){
+                @Override
+                public void run() {
+                    differs[0]=hash!=opponentState.getEngine().getStateHash();
+                }
+            });
+            if (differs[0]&&!resyncRequested){
+                System.out.println("Opponent game differs after "+pieces
+                        +" pieces, asking for a snapshot.");
+                resyncRequested=true;
+                sendWithoutExceptions(MSG_RESYNC);
             }
+            break;
+        case MSG_RESYNC:
+            EventQueue.invokeLater(new Runnable(){
+                @Override
+                public void run() {
+                    synchronized (NetIO.this){
+                        if (pending!=null)
+                            pending.putType(MSG_SNAPSHOT).putBytes(
+                                    sent.write(game.getEngine()));
+                    }
+                }
+            });
+            break;
+        case MSG_SNAPSHOT:
+            final byte[] snapshot=frame.nextBytes();
+            final IOException[] bad=new IOException[1];
+            onEventThread(new Runnable(){
+                @Override
+                public void run() {
+                    try{
+                        received.read(snapshot,opponentState.getEngine());
+                        opponentState.getFrame().repaint();
+                    }catch (IOException e){
+                        bad[0]=e; /* Nothing changed */
+                    }
+                }
+            });
+            if (bad[0]!=null)
+                throw bad[0];
+            resyncRequested=false;
+            break;
+        default:
+            throw new IOException("Unknown command "+c);
         }
     }
     
+    /**
+     * Passes a move of the other player to the lockstep game
+     * 
+     * @param frame The frame with the move
+     * @param action One of the GameEngine ACTION_ constants
+     * @return false if this is no lockstep game, so the move must be played
+     *         on the copy of the game right away
+     * @throws ProtocolException if the tick of the frame does not fit
+     */
+    private synchronized boolean received(Frame frame,int action)
+            throws ProtocolException {
+        if (lockstep==null)
+            return false;
+        if (lockstepTicks){ /* Moves sent before the start are dropped */
+            try{
+                lockstep.receive(frame.getTick(),action);
+            }catch (IllegalArgumentException e){
+                throw new ProtocolException(e.getMessage());
+            }
+        }
+        return true;
+    }
+    
     /*
      * @see nl.unimaas.micc.group5.pentris.Opponent#restart(boolean)
      */
     @Override
     public void restart(boolean restartOpponent) {
         sendWithoutExceptions(MSG_RESTART);
+        flush();
     }
     
     /*
@@ -285,20 +772,92 @@ public class NetIO implements Runnable, Opponent{
     }
     
     /**
-     * Send some character to the connected computer, exiting the program if any
-     * errors occur.
+     * Resumes the session over a new connection, see reconnect
      * 
-     * @param c The character to send
+     * @param s The new connection
+     * @param in Its stream
+     * @return false if the other side cannot resume the session
+     * @throws IOException if the connection failed or the other side is not
+     *         part of this session
      */
     @SuppressWarnings("nls")
-    private void sendWithoutExceptions(int c) {
-        try{
-            socket.getOutputStream().write(c);
-        }catch (Exception e){
-            System.out.println("Unexpected error sending data to remote.");
-	    if (c != MSG_GAMEOVER && c != MSG_BYE && c != MSG_RESTART)
-		    System.exit(1);
+    private boolean resume(Socket s,InputStream in) throws IOException {
+        OutputStream out=s.getOutputStream();
+        long token=session.getToken();
+        if (!isServer)
+            out.write(new Frame(tick).putType(MSG_HELLO)
+                    .putVarint(PROTOCOL_VERSION).putVarint(ROLE_PLAYER)
+                    .putType(MSG_RESUME).putLong(token)
+                    .putVarint(session.getReceived()).toBytes());
+        Frame frame=Frame.read(in);
+        if (frame==null)
+            throw new EOFException();
+        int c=frame.nextType();
+        if (c==MSG_BYE)
+            return false;
+        if (c==MSG_HELLO){
+            if (frame.nextVarint()!=PROTOCOL_VERSION)
+                throw new ProtocolException("Other protocol version");
+            frame.nextVarint(); /* The role */
+            c=frame.nextType();
+        }
+        if (c!=MSG_RESUME||frame.nextLong()!=token)
+            throw new ProtocolException("Not our session");
+        long count=frame.nextVarint();
+        synchronized (this){
+            if (!session.canResume(count)){
+                out.write(new Frame(tick).putType(MSG_BYE).toBytes());
+                return false;
+            }
+            if (isServer)
+                out.write(new Frame(tick).putType(MSG_RESUME).putLong(token)
+                        .putVarint(session.getReceived()).toBytes());
+            session.acknowledged(count);
+            for (byte[] missed : session.resend(count))
+                out.write(missed);
+            socket=s;
+            netout=out;
         }
+        s.setSoTimeout(0);
+        return true;
+    }
+    
+    /**
+     * Queues a move of the local player. In lockstep games the move is also
+     * given to the Lockstep, which plays it in the same tick as the other
+     * computer does.
+     * 
+     * @param c The message type
+     * @param action One of the GameEngine ACTION_ constants
+     */
+    private synchronized void relay(int c,int action) {
+        if (pending==null)
+            return;
+        pending.putType(c);
+        if (lockstep!=null)
+            lockstep.input(action);
+    }
+    
+    /**
+     * Queues a message for the connected computer, it is sent with the other
+     * messages of this tick. Errors are reported when the frame is sent.
+     * 
+     * @param c The message type
+     */
+    private synchronized void sendWithoutExceptions(int c) {
+        if (pending!=null)
+            pending.putType(c);
+    }
+    
+    /**
+     * Queues a message with an argument for the connected computer
+     * 
+     * @param c The message type
+     * @param arg The argument, sent as a varint
+     */
+    private synchronized void sendWithoutExceptions(int c,long arg) {
+        if (pending!=null)
+            pending.putType(c).putVarint(arg);
     }
     
     /*
@@ -311,6 +870,18 @@ public class NetIO implements Runnable, Opponent{
         game=(Game) o;
     }
     
+    /**
+     * Asks the client for a lockstep game, see Lockstep. Only the server
+     * decides this, before the connection is made.
+     * 
+     * @param delay The number of ticks moves are delayed
+     * @param rollback Predict the other player instead of waiting for it
+     */
+    public synchronized void setLockstep(int delay,boolean rollback) {
+        lockstepDelay=Math.max(0,delay);
+        lockstepRollback=rollback;
+    }
+    
     /**
      * Starts a client connection. Note: this method will never return, it will
      * exit the program when done.
@@ -318,18 +889,31 @@ public class NetIO implements Runnable, Opponent{
     @SuppressWarnings("nls")
     public void startClient() {
         if (!(serverName==null)){
+            long deadline=System.currentTimeMillis()+Session.RESUME_MILLIS;
+            while (socket==null){
+                try{
+                    socket=new Socket(serverName,port);
+                }catch (IOException e){
+                    if (stopped)
+                        return;
+                    if (System.currentTimeMillis()>=deadline){
+                        System.out.println("Could not connect to "+serverName
+                                +":"+port);
+                        System.exit(1);
+                    }
+                    try{
+                        Thread.sleep(RETRY_MILLIS);
+                    }catch (InterruptedException x){
+                        return;
+                    }
+                }
+            }
             try{
-                socket=new Socket(serverName,port);
+                connected();
             }catch (IOException e){
-                System.out.println("Could not connect to "+serverName+":"+port);
+                System.out.println("Connection error.");
                 System.exit(1);
             }
-            try{
-                socket.setTcpNoDelay(true);
-                socket.setTrafficClass(IPTOS_LOWDELAY);
-            }catch (Exception e){
-                /* We really don't care */
-            }
             /* No unpause, that will be done when we hear from the server */
             readloop();
         }
@@ -347,15 +931,15 @@ public class NetIO implements Runnable, Opponent{
             System.out.println("Waiting for connection on port "+port+".");
             socket=serv.accept();
             serv.close();
-            sendWithoutExceptions(MSG_IAMSERVER);
-            sendWithoutExceptions((int) ((seed>>56)&255));
-            sendWithoutExceptions((int) ((seed>>48)&255));
-            sendWithoutExceptions((int) ((seed>>40)&255));
-            sendWithoutExceptions((int) ((seed>>32)&255));
-            sendWithoutExceptions((int) ((seed>>24)&255));
-            sendWithoutExceptions((int) ((seed>>16)&255));
-            sendWithoutExceptions((int) ((seed>>8)&255));
-            sendWithoutExceptions((int) (seed&255));
+            connected();
+            synchronized (this){
+                if (lockstepDelay>=0)
+                    pending.putType(MSG_LOCKSTEP).putVarint(lockstepDelay)
+                            .putVarint(lockstepRollback ? 1: 0);
+                pending.putType(MSG_IAMSERVER).putLong(seed);
+                pending.putType(MSG_SESSION).putLong(session.getToken());
+            }
+            flush();
             System.out.println("Sent seed "+seed);
         }catch (Exception e){
 	    if (serv == null) { /* The user switched out of network mode */
@@ -364,19 +948,12 @@ public class NetIO implements Runnable, Opponent{
             System.out.println("Could not listen on port "+port+".");
             System.exit(1);
         }
-        try{
-            socket.setTcpNoDelay(true);
-            socket.setTrafficClass(IPTOS_LOWDELAY);
-        }catch (Exception e){
-            /* We really don't care */
-        }
-        game.unPauseGame();
 	opponentState = new Game(seed, "Opponent game");
-	opponentThread = new Thread(opponentState, "Opponent visualisation thread");
+	opponentThread = Execution.newThread(opponentState, "Opponent visualisation thread");
 	opponentState.moveFrameRight();
-	opponentState.setOpponentGame(game);
+	if (lockstepDelay<0)
+		opponentState.setOpponentGame(game);
 	opponentState.setNoAutoMove(true);
-	game.relayMovements(this);
 	opponentThread.start();
 	synchronized (opponentState) {
 		try {
@@ -386,16 +963,61 @@ public class NetIO implements Runnable, Opponent{
 			System.exit(1);
 		}
 	}
+	if (lockstepDelay>=0)
+		startLockstep();
+	game.relayMovements(this);
+        game.unPauseGame();
 	opponentState.unPauseGame();
         readloop();
     }
     
+    /**
+     * Starts playing both games in ticks, from tick 0. The client first tells
+     * the server that its frames are stamped with lockstep ticks from now on.
+     */
+    @SuppressWarnings("nls")
+    private void startLockstep() {
+        synchronized (writeLock){
+            byte[] frame;
+            OutputStream out;
+            synchronized (this){
+                if (!isServer)
+                    pending.putType(MSG_LOCKSTEP).putVarint(lockstepDelay)
+                            .putVarint(lockstepRollback ? 1: 0);
+                frame=nextFrame();
+                out=netout;
+                tick=0;
+                pending=new Frame(tick);
+                lockstep=new Lockstep(game.getEngine(),
+                        opponentState.getEngine(),isServer,lockstepDelay,
+                        lockstepRollback);
+                System.out.println("Lockstep game with an input delay of "
+                        +lockstep.getDelay()+" ticks"
+                        +(lockstep.isRollback() ? " and rollback": ""));
+            }
+            write(frame,out);
+        }
+    }
+    
     /*
      * @see nl.unimaas.micc.group5.pentris.Opponent#stop()
      */
     @Override
     public void stop() {
+        leaveLockstep();
         sendWithoutExceptions(MSG_BYE);
+        flush();
+        if (flusher!=null)
+            flusher.cancel(false);
+        stopped=true;
+        ServerSocket listening=serv;
+        if (listening!=null&&socket!=null){ /* Waiting for a resume */
+            try{
+                listening.close();
+            }catch (IOException e){
+                /* We are leaving anyway */
+            }
+        }
 	if (socket != null) {
 		try {
 			socket.close();
@@ -404,29 +1026,73 @@ public class NetIO implements Runnable, Opponent{
 	}
     }
 
+    /**
+     * Writes a frame. Must be called holding the write lock but not the
+     * monitor, the frame and the stream are taken together under both.
+     * 
+     * @param frame The frame, may be null
+     * @param out The stream of the connection, null while it is broken
+     */
+    private void write(byte[] frame,OutputStream out) {
+        if (frame==null||out==null)
+            return; /* Sent again once the connection is resumed */
+        try{
+            out.write(frame);
+        }catch (Exception e){
+            System.out.println("Unexpected error sending data to remote."); //$NON-NLS-1$
+            synchronized (this){
+                if (netout!=out)
+                    return; /* Resumed meanwhile */
+                netout=null;
+                try{
+                    socket.close(); /* The read loop reconnects */
+                }catch (IOException x){
+                    /* It is broken anyway */
+                }
+            }
+        }
+    }
+    
+    /**
+     * Tells the connected computer that a piece locked, every few pieces
+     * followed by the state hash of the game
+     * 
+     * @param engine The local game, after the next piece appeared
+     */
+    public synchronized void relayPieceLocked(GameEngine engine) {
+        piecesLocked++;
+        if (pending!=null&&piecesLocked%HASH_INTERVAL==0)
+            pending.putType(MSG_HASH).putVarint(piecesLocked)
+                    .putLong(engine.getStateHash());
+    }
+
     public void relayMoveDown()
     {
-	    sendWithoutExceptions(MSG_MOVEDOWN);
+	    relay(MSG_MOVEDOWN, GameEngine.ACTION_DOWN);
     }
 
     public void relayRotate()
     {
-	    sendWithoutExceptions(MSG_MOVEROTATE);
+	    relay(MSG_MOVEROTATE, GameEngine.ACTION_ROTATE);
     }
 
     public void relayMoveLeft()
     {
-	    sendWithoutExceptions(MSG_MOVELEFT);
+	    relay(MSG_MOVELEFT, GameEngine.ACTION_LEFT);
     }
 
     public void relayMoveRight()
     {
-	    sendWithoutExceptions(MSG_MOVERIGHT);
+	    relay(MSG_MOVERIGHT, GameEngine.ACTION_RIGHT);
+    }
+
+    public void relayDrop()
+    {
+	    relay(MSG_MOVEDROP, GameEngine.ACTION_DROP);
     }
 
-    public void relayAddRubble(byte count)
+    public void relayAddRubble(int count)
     {
-	    sendWithoutExceptions(MSG_OPPONENT_MARKED_RUBBLE +
-			          (count << MSG_BITS));
+	    sendWithoutExceptions(MSG_OPPONENT_MARKED_RUBBLE, count);
     }
 }
@@ -15,18 +15,27 @@
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
  * The definitions of all 28 pieces used in the game
+ * 
+ * A polyomino is only a piece number and a rotation. The squares of every
+ * rotation, together with their bounding box, bottom profile and row masks,
+ * are calculated once for all pieces and shared by all instances, so those
+ * arrays must not be modified.
  */
 public class Polyomino implements Cloneable, Serializable{
     
+    /**
+     * The number of different pieces
+     */
+    public static final int PIECE_COUNT=28;
     private static final double pento_chance=0.4;
-    private static final long serialVersionUID=-1160170678090733195L;
-    private byte[][] currentP;
-    private int index;
-    private byte[][][] polyomino={
+    /* Changed when the squares moved to ROTATIONS, older saves are refused */
+    private static final long serialVersionUID=4356817302145854961L;
+    private static final byte[][][] SHAPES={
 
     // The 'Minoes':
             
@@ -62,6 +71,66 @@ public class Polyomino implements Cloneable, Serializable{
             {{0, 0}, {-1, 0}, {0, 1}, {0, -1}, {0, 2}}, // Y-flip
             {{0, 0}, {0, 1}, {0, -1}, {1, 1}, {-1, -1}}, // S
     };
+    /* All rotations, indexed by piece number-1 and rotation */
+    private static final byte[][][][] ROTATIONS;
+    private static final int[][] MIN_X, MAX_X, MIN_Y, MAX_Y;
+    private static final int[][][] BOTTOM_PROFILES, ROW_MASKS;
+    
+    static{
+        ROTATIONS=new byte[SHAPES.length][][][];
+        MIN_X=new int[SHAPES.length][];
+        MAX_X=new int[SHAPES.length][];
+        MIN_Y=new int[SHAPES.length][];
+        MAX_Y=new int[SHAPES.length][];
+        BOTTOM_PROFILES=new int[SHAPES.length][][];
+        ROW_MASKS=new int[SHAPES.length][][];
+        for (int p=0; p<SHAPES.length; p++){
+            byte[][][] states=new byte[4][][];
+            int count=0;
+            states[count++]=SHAPES[p];
+            while (count<4){
+                byte[][] next=rotate(p+1,states[count-1]);
+                if (Arrays.deepEquals(next,SHAPES[p]))
+                    break;
+                states[count++]=next;
+            }
+            ROTATIONS[p]=Arrays.copyOf(states,count);
+            MIN_X[p]=new int[count];
+            MAX_X[p]=new int[count];
+            MIN_Y[p]=new int[count];
+            MAX_Y[p]=new int[count];
+            BOTTOM_PROFILES[p]=new int[count][];
+            ROW_MASKS[p]=new int[count][];
+            for (int r=0; r<count; r++){
+                byte[][] squares=ROTATIONS[p][r];
+                int minX=Integer.MAX_VALUE, maxX=Integer.MIN_VALUE;
+                int minY=Integer.MAX_VALUE, maxY=Integer.MIN_VALUE;
+                for (int i=0; i<squares.length; i++){
+                    minX=Math.min(minX,squares[i][0]);
+                    maxX=Math.max(maxX,squares[i][0]);
+                    minY=Math.min(minY,squares[i][1]);
+                    maxY=Math.max(maxY,squares[i][1]);
+                }
+                int[] bottom=new int[maxX-minX+1];
+                int[] masks=new int[maxY-minY+1];
+                Arrays.fill(bottom,Integer.MIN_VALUE);
+                for (int i=0; i<squares.length; i++){
+                    int column=squares[i][0]-minX;
+                    bottom[column]=Math.max(bottom[column],squares[i][1]);
+                    masks[squares[i][1]-minY]|=1<<column;
+                }
+                MIN_X[p][r]=minX;
+                MAX_X[p][r]=maxX;
+                MIN_Y[p][r]=minY;
+                MAX_Y[p][r]=maxY;
+                BOTTOM_PROFILES[p][r]=bottom;
+                ROW_MASKS[p][r]=masks;
+            }
+        }
+    }
+    
+    private int index;
+    private int rotation;
     
     /**
      * Creates a random polyomino, using a provided RNG
@@ -73,10 +142,10 @@ public class Polyomino implements Cloneable, Serializable{
      */
     public Polyomino(boolean allowPento,boolean allowTetro,boolean allowOther,
             Random randomGenerator) {
-        currentP=null;
+        byte[][] currentP=null;
         while (currentP==null){
-            int nr=randomGenerator.nextInt(polyomino.length);
-            currentP=polyomino[nr];
+            int nr=randomGenerator.nextInt(SHAPES.length);
+            currentP=SHAPES[nr];
             if (currentP.length==5&&!allowPento){
                 currentP=null;
                 continue;
@@ -96,6 +165,7 @@ public class Polyomino implements Cloneable, Serializable{
             }
             index=nr+1;
         }
+        rotation=0;
     }
     
     /**
@@ -104,8 +174,18 @@ public class Polyomino implements Cloneable, Serializable{
      * @param p piece number
      */
     public Polyomino(int p) {
-        currentP=polyomino[p-1];
+        this(p,0);
+    }
+    
+    /**
+     * Constructor for a rotated piece
+     * 
+     * @param p piece number
+     * @param rotation the number of times the piece has been rotated
+     */
+    public Polyomino(int p,int rotation) {
         index=p;
+        this.rotation=rotation%ROTATIONS[p-1].length;
     }
     
     /*
@@ -115,9 +195,45 @@ public class Polyomino implements Cloneable, Serializable{
      */
     @Override
     public Object clone() {
-        Polyomino tmp=new Polyomino(index);
-        tmp.currentP=currentP.clone();
-        return tmp;
+        return new Polyomino(index,rotation);
+    }
+    
+    /**
+     * Gets how likely every piece is to be created by the random constructor
+     * 
+     * @param allowPento Allow the creation of a piece of 5 blocks
+     * @param allowTetro Allow the creation of a piece of 4 blocks
+     * @param allowOther Allow the creation of a piece with 2 or 3 blocks
+     * @return the chance of every piece, indexed by piece number-1, all 0 if
+     *         no piece is allowed
+     */
+    public static double[] getChances(boolean allowPento,boolean allowTetro,
+            boolean allowOther) {
+        double[] ret=new double[SHAPES.length];
+        double total=0;
+        for (int i=0; i<SHAPES.length; i++){
+            int size=SHAPES[i].length;
+            if (size==5)
+                ret[i]=!allowPento ? 0: allowTetro ? pento_chance: 1;
+            else if (size==4)
+                ret[i]=allowTetro ? 1: 0;
+            else
+                ret[i]=allowOther ? 1: 0;
+            total+=ret[i];
+        }
+        for (int i=0; total>0&&i<SHAPES.length; i++)
+            ret[i]/=total;
+        return ret;
+    }
+    
+    /**
+     * Gets the lowest square of every column of the current rotation, from
+     * getMinX() to getMaxX()
+     * 
+     * @return the y-offsets of the bottom squares
+     */
+    public int[] getBottomProfile() {
+        return BOTTOM_PROFILES[index-1][rotation];
     }
     
     /**
@@ -129,13 +245,41 @@ public class Polyomino implements Cloneable, Serializable{
         return index;
     }
     
+    /**
+     * @return the largest x-offset of the current rotation
+     */
+    public int getMaxX() {
+        return MAX_X[index-1][rotation];
+    }
+    
+    /**
+     * @return the largest y-offset of the current rotation
+     */
+    public int getMaxY() {
+        return MAX_Y[index-1][rotation];
+    }
+    
+    /**
+     * @return the smallest x-offset of the current rotation
+     */
+    public int getMinX() {
+        return MIN_X[index-1][rotation];
+    }
+    
+    /**
+     * @return the smallest y-offset of the current rotation
+     */
+    public int getMinY() {
+        return MIN_Y[index-1][rotation];
+    }
+    
     /**
      * Gets the position of the current piece's squares
      * 
      * @return the piece definition
      */
     public byte[][] getPositions() {
-        return currentP;
+        return ROTATIONS[index-1][rotation];
     }
     
     /**
@@ -144,27 +288,45 @@ public class Polyomino implements Cloneable, Serializable{
      * @return the number of unique rotations
      */
     public int getRotCount() {
-        switch (index){
-        case 1:
-        case 4:
-        case 8:
-        case 9:
-        case 12:
-        case 17:
-            return 2;
-        case 7:
-            return 1;
-        default:
-            return 4;
-        }
+        return ROTATIONS[index-1].length;
     }
     
     /**
-     * Rotates the current piece by 90 degrees Rotations for piece
+     * Gets the number of times the piece has been rotated
+     * 
+     * @return the current rotation, smaller than the number of rotations
+     */
+    public int getRotation() {
+        return rotation;
+    }
+    
+    /**
+     * Gets the squares of every row of the current rotation as bitmasks, from
+     * getMinY() to getMaxY(). Bit 0 is the column at getMinX().
+     * 
+     * @return the row masks
+     */
+    public int[] getRowMasks() {
+        return ROW_MASKS[index-1][rotation];
+    }
+    
+    /**
+     * Rotates the current piece by 90 degrees
+     */
+    public void rotate() {
+        rotation=(rotation+1)%ROTATIONS[index-1].length;
+    }
+    
+    /**
+     * Applies one rotation step to a piece definition. Rotations for piece
      * 1,4,17,8,9,7,12 are special: some only need to be flipped back and forth,
      * others do not rotate at all
+     * 
+     * @param index piece number
+     * @param currentP the squares of the piece
+     * @return the squares of the rotated piece
      */
-    public void rotate() {
+    private static byte[][] rotate(int index,byte[][] currentP) {
         byte[][] store=new byte[currentP.length][2];
         switch (index){
         case 1:
@@ -174,8 +336,7 @@ public class Polyomino implements Cloneable, Serializable{
                 store[i][0]=currentP[i][1];
                 store[i][1]=currentP[i][0];
             }
-            currentP=store;
-            break;
+            return store;
         case 8:
         case 9:
             for (int i=1; i<currentP.length; i++){
@@ -184,18 +345,24 @@ public class Polyomino implements Cloneable, Serializable{
             }
             store[2][0]=(byte) (currentP[2][0]*-1);
             store[3][1]=(byte) (currentP[3][1]*-1);
-            currentP=store;
-            break;
+            return store;
         case 7:
         case 12:
-            break;
+            return currentP;
         default:
             for (int i=0; i<currentP.length; i++){
                 store[i][0]=currentP[i][1];
                 store[i][1]=(byte) (currentP[i][0]*-1);
             }
-            currentP=store;
-            break;
+            return store;
         }
     }
+    
+    /**
+     * Undoes one call to rotate()
+     */
+    public void rotateBack() {
+        int count=ROTATIONS[index-1].length;
+        rotation=(rotation+count-1)%count;
+    }
 }
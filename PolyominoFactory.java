@@ -14,22 +14,251 @@
  * details. You should have received a copy of the GNU General Public License
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.net.ProtocolException;
 import java.util.Random;
 
 /**
  * Creates random polyominoes
+ * 
+ * How the pieces are picked depends on the randomizer. The legacy randomizer
+ * is the default, it keeps drawing until it finds an allowed piece, which
+ * gives the same pieces for a seed as earlier versions; both players of a
+ * network game must use the same randomizer. The other randomizers are
+ * made once for every combination of allowed pieces and pick a piece in
+ * constant time:
+ * 
+ * WEIGHTED picks pieces with the same chances as the legacy one, from an
+ * alias table. BAG deals all allowed pieces in random order before any piece
+ * comes again. HISTORY is weighted, but draws again a few times if the piece
+ * was one of the last few pieces, to avoid long droughts and floods.
+ * 
+ * Pieces can be looked at before they are handed out with peek. They are
+ * drawn ahead into a ring buffer, so peeking never changes which pieces a
+ * seed gives. When the allowed pieces change, the pieces drawn ahead are put
+ * back: the RNG and the randomizer go back to where they were before the
+ * first of them was drawn. The pieces that follow are then the same however
+ * far anyone peeked, for example the preview, the AI or a copy of the game.
+ * The pieces can be taken and looked at from several threads, for example
+ * the AI peeks on its own thread while the game takes pieces on the EDT.
+ * 
+ * The whole state can be written to a Frame and read back field by field, to
+ * bring a game on another computer in line.
  */
 public class PolyominoFactory implements Serializable{
+    /**
+     * Picks from fixed chances with Vose's alias method: one uniform number
+     * picks a column and whether to take it or its alias
+     */
+    private static class AliasTable implements Randomizer{
+        private static final long serialVersionUID=-5217390817826571874L;
+        private int[] alias, pieces;
+        private double[] probability;
+        
+        /**
+         * Builds the table
+         * 
+         * @param chances The chance of every piece, by piece number-1
+         */
+        public AliasTable(double[] chances) {
+            int n=0;
+            for (double c : chances)
+                if (c>0)
+                    n++;
+            pieces=new int[n];
+            probability=new double[n];
+            alias=new int[n];
+            double[] scaled=new double[n];
+            n=0;
+            for (int i=0; i<chances.length; i++){
+                if (chances[i]>0){
+                    pieces[n]=i+1;
+                    scaled[n++]=chances[i];
+                }
+            }
+            double total=0;
+            for (double s : scaled)
+                total+=s;
+            int[] small=new int[n], large=new int[n];
+            int smalls=0, larges=0;
+            for (int i=0; i<n; i++){
+                scaled[i]*=n/total;
+                if (scaled[i]<1)
+                    small[smalls++]=i;
+                else
+                    large[larges++]=i;
+            }
+            while (smalls>0&&larges>0){
+                int s=small[--smalls], l=large[--larges];
+                probability[s]=scaled[s];
+                alias[s]=l;
+                scaled[l]+=scaled[s]-1;
+                if (scaled[l]<1)
+                    small[smalls++]=l;
+                else
+                    large[larges++]=l;
+            }
+            while (larges>0)
+                probability[large[--larges]]=1;
+            while (smalls>0) /* Only left over by rounding errors */
+                probability[small[--smalls]]=1;
+        }
+        
+        @Override
+        public Randomizer copy() {
+            return this; /* Never changes */
+        }
+        
+        @Override
+        public int next(Random random) {
+            double u=random.nextDouble()*pieces.length;
+            int i=(int) u;
+            return u-i<probability[i] ? pieces[i]: pieces[alias[i]];
+        }
+    }
+    
+    /**
+     * Deals the allowed pieces like cards: every piece once in random order,
+     * then the next shuffled bag
+     */
+    private static class Bag implements Randomizer{
+        private static final long serialVersionUID=4100920466414622317L;
+        private int[] bag;
+        private int dealt;
+        
+        /**
+         * @param chances Every piece with a chance above 0 goes into the bag
+         * @param copies How often every piece is in one bag
+         */
+        public Bag(double[] chances,int copies) {
+            int n=0;
+            for (double c : chances)
+                if (c>0)
+                    n++;
+            bag=new int[n*copies];
+            n=0;
+            for (int i=0; i<chances.length; i++)
+                for (int c=0; chances[i]>0&&c<copies; c++)
+                    bag[n++]=i+1;
+            dealt=bag.length;
+        }
+        
+        @Override
+        public Randomizer copy() {
+            Bag ret=new Bag(new double[0],0);
+            ret.bag=bag.clone();
+            ret.dealt=dealt;
+            return ret;
+        }
+        
+        @Override
+        public int next(Random random) {
+            if (dealt==bag.length){
+                for (int i=bag.length-1; i>0; i--){
+                    int j=random.nextInt(i+1);
+                    int t=bag[i];
+                    bag[i]=bag[j];
+                    bag[j]=t;
+                }
+                dealt=0;
+            }
+            return bag[dealt++];
+        }
+    }
+    
+    /**
+     * Weighted picks that avoid the most recent pieces
+     */
+    private static class History implements Randomizer{
+        private static final long serialVersionUID=-2771066337127592069L;
+        private int[] history; /* Ring buffer of the last pieces */
+        private int last; /* Position of the last piece in history */
+        private AliasTable table;
+        private int tries;
+        
+        /**
+         * @param chances The chance of every piece, by piece number-1
+         * @param length The number of recent pieces to avoid
+         * @param tries The number of draws before a recent piece is accepted
+         */
+        public History(double[] chances,int length,int tries) {
+            table=new AliasTable(chances);
+            history=new int[length];
+            this.tries=tries;
+        }
+        
+        @Override
+        public Randomizer copy() {
+            History ret=new History(new double[0],0,tries);
+            ret.history=history.clone();
+            ret.last=last;
+            ret.table=table;
+            return ret;
+        }
+        
+        @Override
+        public int next(Random random) {
+            int ret=table.next(random);
+            for (int t=1; t<tries&&isRecent(ret); t++)
+                ret=table.next(random);
+            last=(last+1)%history.length;
+            history[last]=ret;
+            return ret;
+        }
+        
+        /**
+         * @param piece A piece number
+         * @return true if the piece is one of the last pieces
+         */
+        private boolean isRecent(int piece) {
+            for (int h : history)
+                if (h==piece)
+                    return true;
+            return false;
+        }
+    }
     
+    /**
+     * Draws until a piece is allowed, as all versions so far
+     */
+    public static final int LEGACY=0;
+    /**
+     * Picks with the legacy chances from an alias table
+     */
+    public static final int WEIGHTED=1;
+    /**
+     * Deals every allowed piece once per shuffled bag
+     */
+    public static final int BAG=2;
+    /**
+     * Weighted, but avoids the last pieces
+     */
+    public static final int HISTORY=3;
+    
+    private static final int HISTORY_LENGTH=4, HISTORY_TRIES=4;
+    /* The most pieces drawn ahead that read accepts */
+    private static final int MAX_BUFFERED=1024;
     private static final long serialVersionUID=3823781589749354178L;
-    private Random randomGenerator;
+    /* Pieces drawn ahead, from head on, and the allowed pieces they were
+     * drawn for */
+    private Polyomino[] buffer;
+    private int buffered, bufferedSet, head;
+    private int kind=LEGACY;
+    private Random randomGenerator; /* A SeededRandom, see readObject */
+    /* One randomizer per combination of allowed pieces, made on first use */
+    private Randomizer[] randomizers=new Randomizer[8];
+    /* The state of the RNG and of the randomizer of bufferedSet before the
+     * piece at head was drawn, see rewind */
+    private Randomizer rewindRandomizer;
+    private long rewindState;
     
     /**
      * Creates a new factory with a random seed
      */
     public PolyominoFactory() {
-        randomGenerator=new Random();
+        randomGenerator=new SeededRandom();
     }
     
     /**
@@ -38,7 +267,112 @@ public class PolyominoFactory implements Serializable{
      * @param seed The seed for the RNG
      */
     public PolyominoFactory(long seed) {
-        randomGenerator=new Random(seed);
+        randomGenerator=new SeededRandom(seed);
+    }
+    
+    /**
+     * Creates a new Polyomino factory with a specified seed and randomizer
+     * 
+     * @param seed The seed for the RNG
+     * @param randomizer One of LEGACY, WEIGHTED, BAG and HISTORY
+     */
+    public PolyominoFactory(long seed,int randomizer) {
+        this(seed);
+        setRandomizer(randomizer);
+    }
+    
+    /**
+     * Creates a factory that hands out the same pieces as another one, and
+     * does not change it
+     * 
+     * @param f The factory to copy
+     */
+    public PolyominoFactory(PolyominoFactory f) {
+        synchronized (f){
+            randomGenerator=
+                    new SeededRandom((SeededRandom) f.randomGenerator);
+            kind=f.kind;
+            for (int i=0; i<randomizers.length; i++)
+                if (f.randomizers[i]!=null)
+                    randomizers[i]=f.randomizers[i].copy();
+            if (f.buffer!=null){
+                buffer=new Polyomino[f.buffer.length];
+                for (int i=0; i<f.buffered; i++){
+                    int k=(f.head+i)&buffer.length-1;
+                    buffer[k]=(Polyomino) f.buffer[k].clone();
+                }
+                buffered=f.buffered;
+                bufferedSet=f.bufferedSet;
+                head=f.head;
+                if (f.rewindRandomizer!=null)
+                    rewindRandomizer=f.rewindRandomizer.copy();
+                rewindState=f.rewindState;
+            }
+        }
+    }
+    
+    /**
+     * @param set The allowed pieces, pento 4, tetro 2 and other 1
+     * @return the chance of every piece, by piece number-1, 0 if it is not
+     *         allowed
+     */
+    private static double[] chances(int set) {
+        return Polyomino.getChances((set&4)!=0,(set&2)!=0,(set&1)!=0);
+    }
+    
+    /**
+     * Draws a new piece
+     * 
+     * @param set The allowed pieces, pento 4, tetro 2 and other 1
+     * @param random The RNG to draw from
+     * @param r The randomizer of the set, null for LEGACY
+     * @return the piece
+     */
+    private Polyomino draw(int set,Random random,Randomizer r) {
+        if (kind==LEGACY)
+            return new Polyomino((set&4)!=0,(set&2)!=0,(set&1)!=0,random);
+        return new Polyomino(r.next(random));
+    }
+    
+    /**
+     * Makes sure a number of pieces is drawn ahead. Pieces that were drawn
+     * for other allowed pieces are put back first, see rewind.
+     * 
+     * @param count The number of pieces needed in the buffer
+     * @param set The allowed pieces, pento 4, tetro 2 and other 1
+     */
+    private void fill(int count,int set) {
+        if (buffered>0&&set!=bufferedSet)
+            rewind();
+        if (buffer==null)
+            buffer=new Polyomino[4];
+        if (count>buffer.length){
+            Polyomino[] grown=
+                    new Polyomino[Integer.highestOneBit(count-1)<<1];
+            for (int i=0; i<buffered; i++)
+                grown[i]=buffer[(head+i)&buffer.length-1];
+            buffer=grown;
+            head=0;
+        }
+        if (buffered>=count)
+            return;
+        Randomizer r=randomizer(set);
+        if (buffered==0){
+            bufferedSet=set;
+            rewindState=((SeededRandom) randomGenerator).getState();
+            rewindRandomizer=r==null ? null: r.copy();
+        }
+        for (; buffered<count; buffered++)
+            buffer[(head+buffered)&buffer.length-1]=draw(set,randomGenerator,
+                    r);
+    }
+    
+    /**
+     * @return the kind of randomizer, one of LEGACY, WEIGHTED, BAG and
+     *         HISTORY
+     */
+    public synchronized int getRandomizer() {
+        return kind;
     }
     
     /**
@@ -48,8 +382,282 @@ public class PolyominoFactory implements Serializable{
      * @param allowTetro Allow the creation of a piece of 4 blocks
      * @param allowOther Allow the creation of a piece with 2 or 3 blocks
      */
-    public Polyomino next(boolean allowPento,boolean allowTetro,
+    public synchronized Polyomino next(boolean allowPento,boolean allowTetro,
+            boolean allowOther) {
+        fill(1,set(allowPento,allowTetro,allowOther));
+        Polyomino ret=buffer[head];
+        buffer[head]=null;
+        head=(head+1)&buffer.length-1;
+        if (--buffered>0){ /* Move the rewind point past the piece */
+            SeededRandom r=new SeededRandom(0);
+            r.setState(rewindState);
+            draw(bufferedSet,r,rewindRandomizer);
+            rewindState=r.getState();
+        }
+        return ret;
+    }
+    
+    /**
+     * Makes a randomizer of the current kind, in its starting state
+     * 
+     * @param set The allowed pieces, pento 4, tetro 2 and other 1
+     * @return the randomizer
+     */
+    private Randomizer newRandomizer(int set) {
+        double[] chances=chances(set);
+        switch (kind){
+        case BAG:
+            return new Bag(chances,1);
+        case HISTORY:
+            return new History(chances,HISTORY_LENGTH,HISTORY_TRIES);
+        default:
+            return new AliasTable(chances);
+        }
+    }
+    
+    /**
+     * Reads a number and checks that it is in range
+     * 
+     * @param f The frame
+     * @param min The lowest allowed value
+     * @param max The highest allowed value
+     * @return the number
+     * @throws ProtocolException if it is out of range or missing
+     */
+    private static int nextInt(Frame f,int min,int max)
+            throws ProtocolException {
+        long v=f.nextVarint();
+        if (v<min||v>max)
+            throw new ProtocolException("Bad piece factory"); //$NON-NLS-1$
+        return (int) v;
+    }
+    
+    /**
+     * Reads a piece number and checks that the piece is allowed
+     * 
+     * @param f The frame
+     * @param chances The chances of the allowed pieces, see chances
+     * @return the piece number
+     * @throws ProtocolException if it is not an allowed piece
+     */
+    private static int nextPiece(Frame f,double[] chances)
+            throws ProtocolException {
+        int ret=nextInt(f,1,Polyomino.PIECE_COUNT);
+        if (chances[ret-1]==0)
+            throw new ProtocolException("Piece not allowed"); //$NON-NLS-1$
+        return ret;
+    }
+    
+    /**
+     * Looks at a piece that next will return later
+     * 
+     * @param k The number of pieces before it, 0 for the piece next returns
+     *        first
+     * @param allowPento Allow the creation of a piece of 5 blocks
+     * @param allowTetro Allow the creation of a piece of 4 blocks
+     * @param allowOther Allow the creation of a piece with 2 or 3 blocks
+     * @return a copy of the piece
+     */
+    public synchronized Polyomino peek(int k,boolean allowPento,boolean allowTetro,
             boolean allowOther) {
-        return new Polyomino(allowPento,allowTetro,allowOther,randomGenerator);
+        fill(k+1,set(allowPento,allowTetro,allowOther));
+        return (Polyomino) buffer[(head+k)&buffer.length-1].clone();
+    }
+    
+    /**
+     * Gets the randomizer of a combination of allowed pieces, made on first
+     * use
+     * 
+     * @param set The allowed pieces, pento 4, tetro 2 and other 1
+     * @return the randomizer, null for LEGACY
+     */
+    private Randomizer randomizer(int set) {
+        if (kind==LEGACY)
+            return null;
+        if (set==0)
+            throw new IllegalArgumentException("No pieces allowed"); //$NON-NLS-1$
+        if (randomizers[set]==null)
+            randomizers[set]=newRandomizer(set);
+        return randomizers[set];
+    }
+    
+    /**
+     * Reads a factory that write wrote. Every number is checked, so the
+     * frame may come from anywhere.
+     * 
+     * @param f The frame, positioned at the factory
+     * @return the factory, in the state it was written in
+     * @throws ProtocolException if the frame does not hold a valid factory
+     */
+    public static PolyominoFactory read(Frame f) throws ProtocolException {
+        PolyominoFactory ret=new PolyominoFactory(0,nextInt(f,LEGACY,HISTORY));
+        ((SeededRandom) ret.randomGenerator).setState(f.nextLong());
+        for (int set=0; set<ret.randomizers.length; set++){
+            if (nextInt(f,0,1)==0)
+                continue;
+            if (set==0||ret.kind==LEGACY)
+                throw new ProtocolException("Bad piece factory"); //$NON-NLS-1$
+            ret.randomizers[set]=ret.readRandomizer(f,set);
+        }
+        int set=nextInt(f,0,7), count=nextInt(f,0,MAX_BUFFERED);
+        if (count>0){
+            ret.buffer=new Polyomino[Math.max(4,
+                    Integer.highestOneBit(count-1)<<1)];
+            double[] chances=chances(set);
+            for (int i=0; i<count; i++)
+                ret.buffer[i]=new Polyomino(nextPiece(f,chances));
+            ret.buffered=count;
+            ret.bufferedSet=set;
+            ret.rewindState=f.nextLong();
+            if (ret.kind!=LEGACY){
+                if (set==0)
+                    throw new ProtocolException("Bad piece factory"); //$NON-NLS-1$
+                ret.rewindRandomizer=ret.readRandomizer(f,set);
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * Reads the state of a randomizer that write wrote
+     * 
+     * @param f The frame, positioned at the randomizer
+     * @param set The allowed pieces it picks from
+     * @return the randomizer
+     * @throws ProtocolException if the frame does not hold a valid state
+     */
+    private Randomizer readRandomizer(Frame f,int set)
+            throws ProtocolException {
+        Randomizer r=newRandomizer(set);
+        if (r instanceof Bag){
+            Bag b=(Bag) r;
+            nextInt(f,b.bag.length,b.bag.length);
+            /* Every allowed piece once, in any order */
+            boolean[] left=new boolean[Polyomino.PIECE_COUNT+1];
+            for (int piece : b.bag)
+                left[piece]=true;
+            for (int i=0; i<b.bag.length; i++){
+                b.bag[i]=nextInt(f,1,Polyomino.PIECE_COUNT);
+                if (!left[b.bag[i]])
+                    throw new ProtocolException("Bad piece bag"); //$NON-NLS-1$
+                left[b.bag[i]]=false;
+            }
+            b.dealt=nextInt(f,0,b.bag.length);
+        }else if (r instanceof History){
+            History h=(History) r;
+            nextInt(f,h.history.length,h.history.length);
+            double[] chances=chances(set);
+            for (int i=0; i<h.history.length; i++){
+                h.history[i]=nextInt(f,0,Polyomino.PIECE_COUNT);
+                if (h.history[i]!=0&&chances[h.history[i]-1]==0)
+                    throw new ProtocolException("Bad piece history"); //$NON-NLS-1$
+            }
+            h.last=nextInt(f,0,h.history.length-1);
+        }
+        return r;
+    }
+    
+    /**
+     * Makes sure the RNG can be copied after deserialization
+     * 
+     * @param in the stream to read from
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        randomGenerator=SeededRandom.of(randomGenerator);
+    }
+    
+    /**
+     * Puts back the pieces drawn ahead: the RNG and the randomizer they were
+     * drawn with go back to where they were before the first of them
+     */
+    private void rewind() {
+        ((SeededRandom) randomGenerator).setState(rewindState);
+        if (rewindRandomizer!=null)
+            randomizers[bufferedSet]=rewindRandomizer;
+        rewindRandomizer=null;
+        for (int i=0; i<buffered; i++)
+            buffer[(head+i)&buffer.length-1]=null;
+        buffered=0;
+    }
+    
+    /**
+     * Gets the index of a combination of allowed pieces
+     * 
+     * @param allowPento Allow pieces of 5 blocks
+     * @param allowTetro Allow pieces of 4 blocks
+     * @param allowOther Allow pieces with 2 or 3 blocks
+     * @return pento 4, tetro 2 and other 1 added up
+     */
+    private static int set(boolean allowPento,boolean allowTetro,
+            boolean allowOther) {
+        return (allowPento ? 4: 0)|(allowTetro ? 2: 0)|(allowOther ? 1: 0);
+    }
+    
+    /**
+     * Chooses how pieces are picked from now on. Bags and histories start
+     * empty again, and pieces drawn ahead are put back, see rewind.
+     * 
+     * @param randomizer One of LEGACY, WEIGHTED, BAG and HISTORY
+     */
+    public synchronized void setRandomizer(int randomizer) {
+        if (randomizer<LEGACY||randomizer>HISTORY)
+            throw new IllegalArgumentException("Unknown randomizer " //$NON-NLS-1$
+                    +randomizer);
+        if (buffered>0)
+            rewind();
+        kind=randomizer;
+        randomizers=new Randomizer[8];
+        buffer=null;
+        head=0;
+    }
+    
+    /**
+     * Writes the whole state to a frame, see read
+     * 
+     * @param f The frame
+     */
+    public synchronized void write(Frame f) {
+        f.putVarint(kind);
+        f.putLong(((SeededRandom) randomGenerator).getState());
+        for (Randomizer r : randomizers){
+            f.putVarint(r==null ? 0: 1);
+            if (r!=null)
+                write(f,r);
+        }
+        f.putVarint(buffer==null ? 0: bufferedSet);
+        f.putVarint(buffer==null ? 0: buffered);
+        for (int i=0; buffer!=null&&i<buffered; i++)
+            f.putVarint(buffer[(head+i)&buffer.length-1].getIndex());
+        if (buffer!=null&&buffered>0){
+            f.putLong(rewindState);
+            if (kind!=LEGACY)
+                write(f,rewindRandomizer);
+        }
+    }
+    
+    /**
+     * Writes the state of a randomizer, see readRandomizer
+     * 
+     * @param f The frame
+     * @param r The randomizer
+     */
+    private static void write(Frame f,Randomizer r) {
+        if (r instanceof Bag){
+            Bag b=(Bag) r;
+            f.putVarint(b.bag.length);
+            for (int piece : b.bag)
+                f.putVarint(piece);
+            f.putVarint(b.dealt);
+        }else if (r instanceof History){
+            History h=(History) r;
+            f.putVarint(h.history.length);
+            for (int piece : h.history)
+                f.putVarint(piece);
+            f.putVarint(h.last);
+        }
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ * 
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ * 
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Picks the pieces of a game from one set of allowed pieces. A randomizer
+ * may remember what it handed out before, but it takes all of its chance
+ * from the RNG it is given, so a seed always gives the same pieces.
+ */
+public interface Randomizer extends Serializable{
+    /**
+     * @return a randomizer that picks the same pieces as this one from now
+     *         on, given the same RNG
+     */
+    public Randomizer copy();
+    
+    /**
+     * Picks the next piece
+     * 
+     * @param random The RNG of the game
+     * @return the piece number, from 1 to Polyomino.PIECE_COUNT
+     */
+    public int next(Random random);
+}
@@ -0,0 +1,106 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Random;
+
+/**
+ * A Random whose state can be read, copied and set. It uses the same linear
+ * congruential generator as java.util.Random, so a seed gives the same
+ * numbers as it always did. Unlike java.util.Random it is not safe for use
+ * by several threads at once; every game has its own.
+ *
+ * The second value nextGaussian computes is not part of the state.
+ */
+public class SeededRandom extends Random{
+    private static final long ADDEND=0xBL, MASK=(1L<<48)-1,
+            MULTIPLIER=0x5DEECE66DL;
+    private static final long serialVersionUID=-3960542520446213620L;
+
+    private long state; /* Set by setSeed, which the super constructor calls */
+
+    /**
+     * Creates a generator with a random seed
+     */
+    public SeededRandom() {
+        super();
+    }
+
+    /**
+     * Creates a generator with a seed
+     *
+     * @param seed The seed
+     */
+    public SeededRandom(long seed) {
+        super(seed);
+    }
+
+    /**
+     * Creates a generator that gives the same numbers as another one
+     *
+     * @param r The generator to copy
+     */
+    public SeededRandom(SeededRandom r) {
+        state=r.state;
+    }
+
+    /**
+     * @return the state, to be given to setState
+     */
+    public long getState() {
+        return state;
+    }
+
+    /*
+     * @see java.util.Random#next(int)
+     */
+    @Override
+    protected int next(int bits) {
+        state=state*MULTIPLIER+ADDEND&MASK;
+        return (int) (state>>>48-bits);
+    }
+
+    /**
+     * Makes sure a generator is a SeededRandom. A plain Random, for example
+     * from a game saved by an older version, is replaced by a SeededRandom
+     * seeded from it, so the same saved game always gives the same numbers.
+     *
+     * @param r A generator
+     * @return r, or a SeededRandom seeded from it
+     */
+    public static SeededRandom of(Random r) {
+        if (r instanceof SeededRandom)
+            return (SeededRandom) r;
+        return new SeededRandom(r.nextLong());
+    }
+
+    /*
+     * @see java.util.Random#setSeed(long)
+     */
+    @Override
+    public synchronized void setSeed(long seed) {
+        super.setSeed(seed);
+        state=(seed^MULTIPLIER)&MASK;
+    }
+
+    /**
+     * Sets the state, so the same numbers follow as after getState
+     *
+     * @param newState The state, only the lower 48 bits are used
+     */
+    public void setState(long newState) {
+        state=newState&MASK;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * One side of a network connection that can outlive its socket. The frames
+ * are counted in both directions, and the frames sent are kept until the
+ * other side acknowledges them. When the socket breaks, the client connects
+ * again and names the session by its token; both sides tell how many frames
+ * they received and send again what the other one missed.
+ *
+ * Frames that hold nothing but ACK messages are neither counted nor kept,
+ * so acknowledgements do not have to be acknowledged. Only a bounded number
+ * of frames is kept; a session that missed more cannot be resumed.
+ */
+public class Session{
+    /**
+     * The number of ticks between two acknowledgements
+     */
+    public static final int ACK_INTERVAL=8;
+    /**
+     * The number of frames kept for the other side
+     */
+    public static final int REPLAY_LIMIT=4096;
+    /**
+     * How long a broken connection may take to come back, in milliseconds
+     */
+    public static final int RESUME_MILLIS=15000;
+
+    private long acknowledged; /* The received count last acknowledged */
+    private long received;
+    /* The last frames sent that were not acknowledged, oldest first */
+    private ArrayDeque<byte[]> replay=new ArrayDeque<byte[]>();
+    private long sent;
+    private long token;
+
+    /**
+     * Starts a session
+     *
+     * @param token The token of the session, 0 if the other side hands it out
+     */
+    public Session(long token) {
+        this.token=token;
+    }
+
+    /**
+     * Gets the number of frames received, to acknowledge to the other side
+     *
+     * @return the number of frames received, or -1 if that was acknowledged
+     *         before
+     */
+    public synchronized long acknowledge() {
+        if (received==acknowledged)
+            return -1;
+        acknowledged=received;
+        return received;
+    }
+
+    /**
+     * Forgets the frames the other side received
+     *
+     * @param count The number of frames the other side received
+     */
+    public synchronized void acknowledged(long count) {
+        while (!replay.isEmpty()&&sent-replay.size()<count)
+            replay.poll();
+    }
+
+    /**
+     * Can the frames the other side missed still be sent?
+     *
+     * @param count The number of frames the other side received
+     * @return true if all frames after those are kept
+     */
+    public synchronized boolean canResume(long count) {
+        return count<=sent&&count>=sent-replay.size();
+    }
+
+    /**
+     * @return the number of frames received
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return the token of the session, 0 if it has none yet
+     */
+    public synchronized long getToken() {
+        return token;
+    }
+
+    /**
+     * Counts a frame received, unless it only held ACK messages
+     */
+    public synchronized void received() {
+        received++;
+    }
+
+    /**
+     * Gets the frames the other side missed
+     *
+     * @param count The number of frames the other side received, see
+     *        canResume
+     * @return the frames after those, oldest first
+     */
+    public synchronized List<byte[]> resend(long count) {
+        List<byte[]> ret=new ArrayList<byte[]>();
+        Iterator<byte[]> i=replay.iterator();
+        for (long n=sent-replay.size(); i.hasNext(); n++){
+            byte[] frame=i.next();
+            if (n>=count)
+                ret.add(frame);
+        }
+        return ret;
+    }
+
+    /**
+     * Counts and keeps a frame sent, unless it only held ACK messages
+     *
+     * @param frame The encoded frame
+     */
+    public synchronized void sent(byte[] frame) {
+        sent++;
+        replay.add(frame);
+        if (replay.size()>REPLAY_LIMIT)
+            replay.poll();
+    }
+
+    /**
+     * Sets the token handed out by the other side
+     *
+     * @param token The token
+     */
+    public synchronized void setToken(long token) {
+        this.token=token;
+    }
+}
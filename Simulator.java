@@ -0,0 +1,279 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays seeded games between AIs without a user interface and reports how
+ * fast and how well they play. Games are either solo or head-to-head, where
+ * clearing more than one line sends rubble to the opponent just like in
+ * split-screen games. Game i uses seed+i, so runs can be repeated.
+ *
+ * Usage: java Simulator [-games n] [-threads n] [-seed n] [-pieces n]
+ * [-depth n] [-lookahead n] [-randomizer legacy|weighted|bag|history]
+ * [-versus]
+ */
+public class Simulator{
+    /**
+     * The outcome of one simulated game
+     */
+    private static class Result{
+        public long cacheHits, cacheLookups;
+        public long[] latencies; /* Nanoseconds per AI move */
+        public long lines;
+        public int pieces;
+        public long[] scores; /* One per player */
+        public int winner=-1; /* Head-to-head only, -1 for a draw */
+    }
+
+    private static final int DEFAULT_GAMES=100, DEFAULT_PIECES=1000;
+
+    private int depth=2;
+    private int lookahead=1;
+    private int maxPieces=DEFAULT_PIECES;
+    private int randomizer=PolyominoFactory.LEGACY;
+    private boolean versus;
+
+    /**
+     * Runs a batch of games and prints a report
+     *
+     * @param args Command line parameters, see the class description
+     */
+    @SuppressWarnings("nls")
+    public static void main(String[] args) {
+        Simulator sim=new Simulator();
+        int games=DEFAULT_GAMES;
+        int threads=Runtime.getRuntime().availableProcessors();
+        long seed=System.currentTimeMillis();
+        try{
+            for (int i=0; i<args.length; i++){
+                if (args[i].equals("-games"))
+                    games=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-threads"))
+                    threads=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-seed"))
+                    seed=Long.parseLong(args[++i]);
+                else if (args[i].equals("-pieces"))
+                    sim.maxPieces=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-depth"))
+                    sim.depth=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-lookahead"))
+                    sim.lookahead=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-randomizer"))
+                    sim.randomizer=Arrays.asList("legacy","weighted","bag",
+                            "history").indexOf(args[++i]);
+                else if (args[i].equals("-versus"))
+                    sim.versus=true;
+                else
+                    throw new IllegalArgumentException(args[i]);
+            }
+            if (sim.randomizer<0)
+                throw new IllegalArgumentException("-randomizer");
+        }catch (RuntimeException e){
+            System.err.println("Usage: java Simulator [-games n] [-threads n]"
+                    +" [-seed n] [-pieces n] [-depth n] [-lookahead n]"
+                    +" [-randomizer legacy|weighted|bag|history] [-versus]");
+            System.exit(1);
+        }
+        /* Games are spread over the threads, each AI searches on its own */
+        AI.setSearchThreads(1);
+        System.out.println("Seed "+seed+", "+games
+                +(sim.versus ? " head-to-head": " solo")+" games on "+threads
+                +" threads");
+        long start=System.nanoTime();
+        List<Result> results=sim.run(games,threads,seed);
+        sim.report(results,(System.nanoTime()-start)/1e9);
+    }
+
+    /**
+     * Gets a percentile of sorted values
+     *
+     * @param sorted The values in ascending order
+     * @param p The percentile, from 0 to 100
+     * @return the value below which p percent of the values lie
+     */
+    private static long percentile(long[] sorted,double p) {
+        if (sorted.length==0)
+            return 0;
+        int i=(int) Math.ceil(p/100*sorted.length)-1;
+        return sorted[Math.max(0,Math.min(sorted.length-1,i))];
+    }
+
+    /**
+     * Plays one game
+     *
+     * @param seed The seed of the game
+     * @return the outcome
+     */
+    private Result play(long seed) {
+        int players=versus ? 2: 1;
+        final GameEngine[] engines=new GameEngine[players];
+        AI[] ais=new AI[players];
+        for (int i=0; i<players; i++){
+            engines[i]=new GameEngine(seed,randomizer);
+            ais[i]=new AI(engines[i]);
+            ais[i].setSearchDepth(depth);
+            ais[i].setLookahead(lookahead);
+        }
+        if (versus){
+            GameListener rubble=new GameListener(){
+                @Override
+                public void gameOver(GameEngine engine) {/* Checked below */}
+
+                @Override
+                public void pieceLocked(GameEngine engine,int lines) {
+                    GameEngine opponent=engine==engines[0] ? engines[1]
+                            : engines[0];
+                    if (lines>1)
+                        opponent.addBottomLines(lines);
+                }
+            };
+            engines[0].addListener(rubble);
+            engines[1].addListener(rubble);
+        }
+        Result ret=new Result();
+        ret.latencies=new long[maxPieces*players];
+        ret.scores=new long[players];
+        int moves=0;
+        boolean playing=true;
+        for (int round=0; playing&&round<maxPieces; round++){
+            for (int i=0; i<players; i++){
+                long start=System.nanoTime();
+                ais[i].place(engines[i].getActivePiece(),
+                        engines[i].getPreviewPiece());
+                ret.latencies[moves++]=System.nanoTime()-start;
+                while (engines[i].step(GameEngine.ACTION_DOWN)){/* lock it */}
+                if (engines[i].isGameOver()){
+                    playing=false;
+                    if (versus)
+                        ret.winner=1-i;
+                    break;
+                }
+            }
+        }
+        ret.latencies=Arrays.copyOf(ret.latencies,moves);
+        for (int i=0; i<players; i++){
+            ret.lines+=engines[i].getLines();
+            ret.scores[i]=engines[i].getScore();
+            TranspositionCache c=ais[i].getCache();
+            if (c!=null){
+                ret.cacheHits+=c.getHits();
+                ret.cacheLookups+=c.getLookups();
+            }
+        }
+        ret.pieces=moves;
+        return ret;
+    }
+
+    /**
+     * Prints statistics about a batch of games
+     *
+     * @param results The games played
+     * @param seconds The time it took to play them
+     */
+    @SuppressWarnings("nls")
+    private void report(List<Result> results,double seconds) {
+        long pieces=0, lines=0, cacheHits=0, cacheLookups=0;
+        int moves=0;
+        int[] wins=new int[3];
+        List<Long> scoreList=new ArrayList<Long>();
+        for (Result r : results){
+            pieces+=r.pieces;
+            lines+=r.lines;
+            moves+=r.latencies.length;
+            cacheHits+=r.cacheHits;
+            cacheLookups+=r.cacheLookups;
+            wins[r.winner+1]++;
+            for (long s : r.scores)
+                scoreList.add(Long.valueOf(s));
+        }
+        long[] scores=new long[scoreList.size()];
+        for (int i=0; i<scores.length; i++)
+            scores[i]=scoreList.get(i).longValue();
+        long[] latencies=new long[moves];
+        moves=0;
+        for (Result r : results){
+            System.arraycopy(r.latencies,0,latencies,moves,r.latencies.length);
+            moves+=r.latencies.length;
+        }
+        Arrays.sort(scores);
+        Arrays.sort(latencies);
+        int players=versus ? 2: 1;
+        System.out.printf("%d games in %.2f s: %.2f games/s, %.0f pieces/s%n",
+                Integer.valueOf(results.size()),Double.valueOf(seconds),
+                Double.valueOf(results.size()/seconds),
+                Double.valueOf(pieces/seconds));
+        System.out.printf("Lines per player: %.1f, pieces per player: %.1f%n",
+                Double.valueOf((double) lines/(results.size()*players)),
+                Double.valueOf((double) pieces/(results.size()*players)));
+        System.out.println("Score: min "+percentile(scores,0)+", p10 "
+                +percentile(scores,10)+", p50 "+percentile(scores,50)+", p90 "
+                +percentile(scores,90)+", max "+percentile(scores,100));
+        System.out.printf(
+                "AI latency (ms): p50 %.3f, p90 %.3f, p99 %.3f, max %.3f%n",
+                Double.valueOf(percentile(latencies,50)/1e6),
+                Double.valueOf(percentile(latencies,90)/1e6),
+                Double.valueOf(percentile(latencies,99)/1e6),
+                Double.valueOf(percentile(latencies,100)/1e6));
+        if (cacheLookups>0)
+            System.out.printf("Transposition cache hit rate: %.1f%%%n",
+                    Double.valueOf(100.0*cacheHits/cacheLookups));
+        if (versus)
+            System.out.println("Wins: first "+wins[1]+", second "+wins[2]
+                    +", undecided "+wins[0]);
+    }
+
+    /**
+     * Plays a batch of games on a thread pool
+     *
+     * @param games The number of games
+     * @param threads The number of games played at the same time
+     * @param seed The seed of the first game
+     * @return the results in order of the seeds
+     */
+    private List<Result> run(int games,int threads,long seed) {
+        ExecutorService pool=Executors.newFixedThreadPool(Math.max(1,threads));
+        List<Callable<Result>> tasks=new ArrayList<Callable<Result>>(games);
+        for (int i=0; i<games; i++){
+            final long gameSeed=seed+i;
+            tasks.add(new Callable<Result>(){
+                @Override
+                public Result call() {
+                    return play(gameSeed);
+                }
+            });
+        }
+        List<Result> ret=new ArrayList<Result>(games);
+        try{
+            for (Future<Result> f : pool.invokeAll(tasks))
+                ret.add(f.get());
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch (ExecutionException e){
+            throw new RuntimeException(e.getCause());
+        }finally{
+            pool.shutdown();
+        }
+        return ret;
+    }
+}
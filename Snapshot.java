@@ -0,0 +1,175 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ * 
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ * 
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the complete state of a game so that a copy of it on another
+ * computer can be brought back in line. Only the rows that changed since the
+ * previous snapshot on the same connection are sent, each as runs of equal
+ * squares, so a snapshot of a game that was only slightly off is small. The
+ * sender and the receiver each keep one Snapshot per direction, which
+ * remembers the squares of the last snapshot.
+ * 
+ * A snapshot is a Frame whose tick is the format version, holding the board
+ * size, the pieces, the score and the other numbers of the game, the state of
+ * its random generators and the changed rows.
+ */
+public class Snapshot{
+    /**
+     * The largest board a snapshot may hold. The Grid keeps every row in a
+     * long, so it is at most 64 squares wide.
+     */
+    public static final int MAX_HEIGHT=256, MAX_WIDTH=64;
+    private static final int FORMAT=2;
+    
+    private byte[][] base; /* The squares of the last snapshot, by x and y */
+    
+    /**
+     * Applies a snapshot to a game. The snapshot is read and checked
+     * completely before the game or the remembered squares change, so a
+     * snapshot that is not valid changes nothing.
+     * 
+     * @param data The snapshot, as made by write
+     * @param g The game to change
+     * @throws IOException if the snapshot is not valid
+     */
+    @SuppressWarnings("nls")
+    public void read(byte[] data,GameEngine g) throws IOException {
+        Frame f=Frame.read(ByteBuffer.wrap(data));
+        if (f==null||f.getTick()!=FORMAT)
+            throw new ProtocolException("Bad snapshot");
+        long w=f.nextVarint(), h=f.nextVarint();
+        if (w<=0||w>MAX_WIDTH||h<=0||h>MAX_HEIGHT)
+            throw new ProtocolException("Bad snapshot size");
+        int width=(int) w, height=(int) h;
+        Polyomino active=piece(f);
+        long x=f.nextLong(), y=f.nextLong();
+        if (x+active.getMinX()<0||x+active.getMaxX()>=width
+                ||y+active.getMinY()<0||y+active.getMaxY()>=height)
+            throw new ProtocolException("Bad snapshot position");
+        Polyomino preview=piece(f);
+        long score=f.nextVarint(), lines=f.nextVarint();
+        long rate=f.nextVarint(), rubble=f.nextVarint();
+        if (score<0||lines<0||rate<GameEngine.MINIMUM_RATE
+                ||rate>GameEngine.INITIAL_RATE||rubble<0
+                ||rubble>Integer.MAX_VALUE)
+            throw new ProtocolException("Bad snapshot numbers");
+        int flags=(int) f.nextVarint();
+        byte[] random=f.nextBytes();
+        byte[][] squares=new byte[width][];
+        for (int i=0; i<width; i++)
+            squares[i]=base==null||base.length!=width||base[0].length!=height
+                    ? new byte[height]: base[i].clone();
+        long rows=f.nextVarint();
+        if (rows<0||rows>height)
+            throw new ProtocolException("Bad snapshot rows");
+        for (; rows>0; rows--){
+            long row=f.nextVarint();
+            if (row<0||row>=height)
+                throw new ProtocolException("Bad snapshot row");
+            for (int col=0; col<width;){
+                long run=f.nextVarint(), color=f.nextVarint();
+                if (run<=0||run>width-col)
+                    throw new ProtocolException("Bad snapshot run");
+                if (color<0||color>Polyomino.PIECE_COUNT)
+                    throw new ProtocolException("Bad snapshot color");
+                for (; run>0; run--)
+                    squares[col++][(int) row]=(byte) color;
+            }
+        }
+        g.setRandomState(random); /* Checks the state before it changes g */
+        base=new byte[width][];
+        for (int i=0; i<width; i++)
+            base[i]=squares[i].clone();
+        Grid grid=g.getGrid();
+        if (grid.getLength()!=width||grid.getHeight()!=height){
+            g.setGridSize(width,height);
+            grid=g.getGrid();
+        }
+        grid.setGrid(squares);
+        g.setAllowedPieces((flags&4)!=0,(flags&2)!=0,(flags&1)!=0);
+        g.setState(active,(int) x,(int) y,preview,score,lines,(int) rate,
+                (int) rubble,(flags&8)!=0);
+    }
+    
+    /**
+     * Reads a piece
+     * 
+     * @param f The snapshot
+     * @return the piece
+     * @throws ProtocolException if it is not a valid piece
+     */
+    private static Polyomino piece(Frame f) throws ProtocolException {
+        int index=(int) f.nextVarint(), rotation=(int) f.nextVarint();
+        if (index<1||index>Polyomino.PIECE_COUNT||rotation<0)
+            throw new ProtocolException("Bad snapshot piece"); //$NON-NLS-1$
+        return new Polyomino(index,rotation);
+    }
+    
+    /**
+     * Makes a snapshot of a game, with the rows that changed since the last
+     * snapshot made by this object
+     * 
+     * @param g The game
+     * @return the snapshot
+     */
+    public byte[] write(GameEngine g) {
+        byte[][] squares=g.getGrid().getGrid();
+        int width=squares.length, height=squares[0].length;
+        if (base==null||base.length!=width||base[0].length!=height)
+            base=new byte[width][height];
+        boolean[] allowed=g.getAllowedPieces();
+        Frame f=new Frame(FORMAT);
+        f.putVarint(width).putVarint(height);
+        f.putVarint(g.getActivePiece().getIndex())
+                .putVarint(g.getActivePiece().getRotation());
+        f.putLong(g.getActiveX()).putLong(g.getActiveY());
+        f.putVarint(g.getPreviewPiece().getIndex())
+                .putVarint(g.getPreviewPiece().getRotation());
+        f.putVarint(g.getScore()).putVarint(g.getLines());
+        f.putVarint(g.getRate()).putVarint(g.getPendingRubble());
+        f.putVarint((g.isGameOver() ? 8: 0)|(allowed[0] ? 4: 0)
+                |(allowed[1] ? 2: 0)|(allowed[2] ? 1: 0));
+        f.putBytes(g.getRandomState());
+        int changed=0;
+        boolean[] rows=new boolean[height];
+        for (int y=0; y<height; y++){
+            for (int x=0; x<width&&!rows[y]; x++)
+                rows[y]=squares[x][y]!=base[x][y];
+            if (rows[y])
+                changed++;
+        }
+        f.putVarint(changed);
+        for (int y=0; y<height; y++){
+            if (!rows[y])
+                continue;
+            f.putVarint(y);
+            for (int x=0; x<width;){
+                int run=1;
+                while (x+run<width&&squares[x+run][y]==squares[x][y])
+                    run++;
+                f.putVarint(run).putVarint(squares[x][y]&255);
+                for (int i=0; i<run; i++)
+                    base[x+i][y]=squares[x][y];
+                x+=run;
+            }
+        }
+        return f.toBytes();
+    }
+}
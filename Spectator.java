@@ -0,0 +1,229 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+
+/**
+ * Watches a match on a MatchServer. Both games are shown in their own window
+ * and follow the moves of the players as the server relays them; nothing can
+ * be played. The server starts with snapshots of both games, and sends new
+ * ones when the spectator falls behind or when a state hash of a player does
+ * not match the game shown here.
+ *
+ * Usage: java Spectator host [-port n] [-match id], without a match id the
+ * newest match is watched.
+ */
+public class Spectator implements Runnable{
+    private Game[] boards=new Game[2];
+    private String host;
+    private int match;
+    private OutputStream out;
+    private int player; /* The player the next messages are about */
+    private int port;
+    private boolean resyncRequested;
+    private boolean[] shown=new boolean[2]; /* Got a snapshot */
+
+    /**
+     * Prepares a spectator
+     *
+     * @param host The host of the MatchServer
+     * @param port The port of the MatchServer
+     * @param match The id of the match, 0 for the newest one
+     */
+    public Spectator(String host,int port,int match) {
+        this.host=host;
+        this.port=port;
+        this.match=match;
+    }
+
+    /**
+     * Gets the game of the player the messages are about
+     *
+     * @return the game
+     * @throws ProtocolException if no player was named yet
+     */
+    private Game board() throws ProtocolException {
+        if (player==0)
+            throw new ProtocolException("No player"); //$NON-NLS-1$
+        return boards[player-1];
+    }
+
+    /**
+     * Responds to one message of the server
+     *
+     * @param c The message type
+     * @param frame The frame, positioned at the arguments of the message
+     * @throws IOException if the arguments cannot be read
+     */
+    @SuppressWarnings("nls")
+    private void handle(int c,Frame frame) throws IOException {
+        switch (c){
+        case NetIO.MSG_NOP:
+            break;
+        case NetIO.MSG_PLAYER:
+            player=(int) frame.nextVarint();
+            if (player<1||player>2)
+                throw new ProtocolException("Player "+player);
+            break;
+        case NetIO.MSG_MOVEDOWN:
+            board().doMoveDown(false);
+            break;
+        case NetIO.MSG_MOVERIGHT:
+            board().moveRight();
+            break;
+        case NetIO.MSG_MOVELEFT:
+            board().moveLeft();
+            break;
+        case NetIO.MSG_MOVEROTATE:
+            board().doRotate();
+            break;
+        case NetIO.MSG_OPPONENT_MARKED_RUBBLE:
+            board().addBottomLines((int) frame.nextVarint());
+            break;
+        case NetIO.MSG_HASH:
+            int pieces=(int) frame.nextVarint();
+            long hash=frame.nextLong();
+            if (hash!=board().getEngine().getStateHash()&&!resyncRequested){
+                System.out.println("Game of player "+player+" differs after "
+                        +pieces+" pieces, asking for snapshots.");
+                resyncRequested=true;
+                out.write(new Frame(0).putType(NetIO.MSG_RESYNC).toBytes());
+            }
+            break;
+        case NetIO.MSG_SNAPSHOT:
+            Game g=board();
+            /* Spectators get snapshots with all rows, see MatchServer */
+            new Snapshot().read(frame.nextBytes(),g.getEngine());
+            resyncRequested=false;
+            if (!shown[player-1]){
+                shown[player-1]=true;
+                g.unPauseGame();
+            }
+            g.getFrame().repaint();
+            break;
+        case NetIO.MSG_GAMEOVER:
+            System.out.println("Player "+player+" lost.");
+            break;
+        case NetIO.MSG_BYE:
+            System.out.println("The match is over.");
+            System.exit(0);
+            break;
+        default:
+            throw new ProtocolException("Unknown command "+c);
+        }
+    }
+
+    /**
+     * Watches a match
+     *
+     * @param args Command line parameters, see the class description
+     */
+    @SuppressWarnings("nls")
+    public static void main(String[] args) {
+        String host=null;
+        int port=30011, match=0;
+        try{
+            for (int i=0; i<args.length; i++){
+                if (args[i].equals("-port"))
+                    port=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-match"))
+                    match=Integer.parseInt(args[++i]);
+                else if (host==null&&!args[i].startsWith("-"))
+                    host=args[i];
+                else
+                    throw new IllegalArgumentException(args[i]);
+            }
+            if (host==null)
+                throw new IllegalArgumentException("host");
+        }catch (RuntimeException e){
+            System.err.println("Usage: java Spectator host [-port n]"
+                    +" [-match id]");
+            System.exit(1);
+        }
+        new Spectator(host,port,match).run();
+    }
+
+    /**
+     * Opens the window of one player's game. The game only changes by what
+     * the server sends.
+     *
+     * @param n The player, 1 or 2
+     * @return the game, once its window is shown
+     */
+    @SuppressWarnings("nls")
+    private static Game open(int n) {
+        Game g=new Game(0,"Player "+n);
+        if (n==2)
+            g.moveFrameRight();
+        g.setNoAutoMove(true);
+        g.setWatchOnly();
+        Execution.start(g,"Spectator visualisation thread");
+        synchronized (g){
+            try{
+                if (g.getFrame()==null)
+                    g.wait();
+            }catch (InterruptedException e){
+                System.exit(1);
+            }
+        }
+        return g;
+    }
+
+    /*
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    @SuppressWarnings("nls")
+    public void run() {
+        Socket socket=null;
+        InputStream in=null;
+        try{
+            socket=new Socket(host,port);
+            socket.setTcpNoDelay(true);
+            in=socket.getInputStream();
+            out=socket.getOutputStream();
+            out.write(new Frame(0).putType(NetIO.MSG_HELLO)
+                    .putVarint(NetIO.PROTOCOL_VERSION)
+                    .putVarint(NetIO.ROLE_SPECTATOR)
+                    .putType(NetIO.MSG_WATCH).putVarint(match).toBytes());
+        }catch (IOException e){
+            System.out.println("Could not connect to "+host+":"+port);
+            System.exit(1);
+        }
+        boards[0]=open(1);
+        boards[1]=open(2);
+        try{
+            Frame frame;
+            while ((frame=Frame.read(in))!=null){
+                while (frame.hasNext())
+                    handle(frame.nextType(),frame);
+            }
+            System.out.println("The server closed the connection.");
+        }catch (IOException e){
+            System.out.println("Connection error: "+e.getMessage());
+        }
+        try{
+            socket.close();
+        }catch (IOException e){
+            /* We are leaving anyway */
+        }
+        System.exit(1);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size table of search results, keyed by 64 bit hashes. A new result
+ * simply replaces the one in its slot. The table can be used by several
+ * threads without locking: every slot stores the key xor'ed with the value,
+ * so a slot that is half overwritten by another thread does not match any
+ * key and is treated as a miss.
+ */
+public class TranspositionCache{
+    private final AtomicLongArray checks, values;
+    private final LongAdder hits=new LongAdder(), lookups=new LongAdder();
+    private final int mask;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param size The number of entries, rounded up to a power of two
+     */
+    public TranspositionCache(int size) {
+        int capacity=Integer.highestOneBit(Math.max(1,size-1))<<1;
+        checks=new AtomicLongArray(capacity);
+        values=new AtomicLongArray(capacity);
+        mask=capacity-1;
+    }
+
+    /**
+     * Removes all entries and resets the statistics
+     */
+    public void clear() {
+        for (int i=0; i<=mask; i++){
+            checks.set(i,0);
+            values.set(i,0);
+        }
+        hits.reset();
+        lookups.reset();
+    }
+
+    /**
+     * Looks up a result
+     *
+     * @param key The hash of the searched position
+     * @return the stored value, or NaN if there is none
+     */
+    public double get(long key) {
+        long k=key==0 ? 1: key; /* Empty slots match key 0 */
+        int slot=(int) (k^k>>>32)&mask;
+        long value=values.get(slot);
+        lookups.increment();
+        if ((checks.get(slot)^value)!=k)
+            return Double.NaN;
+        hits.increment();
+        return Double.longBitsToDouble(value);
+    }
+
+    /**
+     * @return the fraction of lookups that found a value
+     */
+    public double getHitRate() {
+        long l=lookups.sum();
+        return l==0 ? 0: (double) hits.sum()/l;
+    }
+
+    /**
+     * @return the number of lookups that found a value
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * Scrambles the bits of a number, to make keys out of small values
+     *
+     * @param z The number
+     * @return a well mixed 64 bit value
+     */
+    public static long mix(long z) {
+        z=(z^(z>>>30))*0xBF58476D1CE4E5B9L;
+        z=(z^(z>>>27))*0x94D049BB133111EBL;
+        return z^(z>>>31);
+    }
+
+    /**
+     * Stores a result, replacing whatever was in its slot
+     *
+     * @param key The hash of the searched position
+     * @param value The result
+     */
+    public void put(long key,double value) {
+        long k=key==0 ? 1: key;
+        int slot=(int) (k^k>>>32)&mask;
+        long bits=Double.doubleToRawLongBits(value);
+        values.set(slot,bits);
+        checks.set(slot,k^bits);
+    }
+}
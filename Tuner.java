@@ -0,0 +1,231 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tunes the weights of the LinearEvaluator with the cross-entropy method.
+ * Every generation a population of weight vectors is drawn from a normal
+ * distribution, each vector plays the same seeded solo games, and the
+ * distribution is moved to the best vectors. Games are played on all cores.
+ * A vector is scored by the average number of lines it clears before the game
+ * ends or the piece limit is reached. The best vector found is written to the
+ * weights file that the AI reads at startup.
+ *
+ * Usage: java Tuner [-generations n] [-population n] [-elite n] [-games n]
+ * [-pieces n] [-threads n] [-seed n] [-out file]
+ */
+public class Tuner{
+    private static final double INITIAL_DEVIATION=2, NOISE=0.5;
+
+    private int elite=10;
+    private int games=8;
+    private int generations=10;
+    private int maxPieces=500;
+    private int population=40;
+
+    /**
+     * Gets the average score of the best vectors of a generation
+     *
+     * @param scores The scores of all vectors
+     * @param order The vectors, best first
+     * @return the average score of the elite
+     */
+    private double eliteMean(double[] scores,Integer[] order) {
+        double ret=0;
+        for (int e=0; e<elite; e++)
+            ret+=scores[order[e].intValue()]/elite;
+        return ret;
+    }
+
+    /**
+     * Runs the tuner
+     *
+     * @param args Command line parameters, see the class description
+     */
+    @SuppressWarnings("nls")
+    public static void main(String[] args) {
+        Tuner tuner=new Tuner();
+        int threads=Runtime.getRuntime().availableProcessors();
+        long seed=System.currentTimeMillis();
+        String out=LinearEvaluator.WEIGHTS_FILE;
+        try{
+            for (int i=0; i<args.length; i++){
+                if (args[i].equals("-generations"))
+                    tuner.generations=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-population"))
+                    tuner.population=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-elite"))
+                    tuner.elite=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-games"))
+                    tuner.games=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-pieces"))
+                    tuner.maxPieces=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-threads"))
+                    threads=Integer.parseInt(args[++i]);
+                else if (args[i].equals("-seed"))
+                    seed=Long.parseLong(args[++i]);
+                else if (args[i].equals("-out"))
+                    out=args[++i];
+                else
+                    throw new IllegalArgumentException(args[i]);
+            }
+            if (tuner.elite<1||tuner.elite>tuner.population)
+                throw new IllegalArgumentException("-elite");
+        }catch (RuntimeException e){
+            System.err.println("Usage: java Tuner [-generations n]"
+                    +" [-population n] [-elite n] [-games n] [-pieces n]"
+                    +" [-threads n] [-seed n] [-out file]");
+            System.exit(1);
+        }
+        AI.setSearchThreads(1);
+        ExecutorService pool=Executors.newFixedThreadPool(Math.max(1,threads));
+        try{
+            double[] best=tuner.tune(pool,seed);
+            new LinearEvaluator(best).writeWeights(out);
+            System.out.println("Wrote "+Arrays.toString(best)+" to "+out);
+        }catch (IOException e){
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }finally{
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Plays one solo game
+     *
+     * @param weights The weights of the evaluator
+     * @param seed The seed of the game
+     * @return the number of lines cleared
+     */
+    private long play(double[] weights,long seed) {
+        GameEngine engine=new GameEngine(seed);
+        AI ai=new AI(engine);
+        ai.setEvaluator(new LinearEvaluator(weights));
+        ai.setCacheSize(0);
+        for (int piece=0; piece<maxPieces&&!engine.isGameOver(); piece++){
+            ai.place(engine.getActivePiece(),engine.getPreviewPiece());
+            while (engine.step(GameEngine.ACTION_DOWN)){/* lock it */}
+        }
+        return engine.getLines();
+    }
+
+    /**
+     * Scores weight vectors by letting each play the same games
+     *
+     * @param pool The threads to play on
+     * @param candidates The weight vectors
+     * @param seed The seed of the first game
+     * @return the average number of lines, per vector
+     */
+    private double[] score(ExecutorService pool,double[][] candidates,
+            long seed) {
+        List<Callable<Long>> tasks=new ArrayList<Callable<Long>>();
+        for (final double[] w : candidates){
+            for (int g=0; g<games; g++){
+                final long gameSeed=seed+g;
+                tasks.add(new Callable<Long>(){
+                    @Override
+                    public Long call() {
+                        return Long.valueOf(play(w,gameSeed));
+                    }
+                });
+            }
+        }
+        double[] ret=new double[candidates.length];
+        try{
+            List<Future<Long>> results=pool.invokeAll(tasks);
+            for (int i=0; i<results.size(); i++)
+                ret[i/games]+=results.get(i).get().doubleValue()/games;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch (ExecutionException e){
+            throw new RuntimeException(e.getCause());
+        }
+        return ret;
+    }
+
+    /**
+     * Runs the cross-entropy method, starting around the current weights
+     *
+     * @param pool The threads to play on
+     * @param seed The seed of the weight sampling and the games
+     * @return the best weights found
+     */
+    @SuppressWarnings("nls")
+    private double[] tune(ExecutorService pool,long seed) {
+        Random random=new Random(seed);
+        double[] mean=LinearEvaluator.getDefault().getWeights();
+        double[] deviation=new double[mean.length];
+        Arrays.fill(deviation,INITIAL_DEVIATION);
+        double[] best=mean.clone();
+        double bestScore=Double.NEGATIVE_INFINITY;
+        for (int gen=0; gen<generations; gen++){
+            double[][] candidates=new double[population][mean.length];
+            candidates[0]=mean.clone(); /* Keep the current mean in the race */
+            for (int i=1; i<population; i++)
+                for (int j=0; j<mean.length; j++)
+                    candidates[i][j]=mean[j]+deviation[j]*random.nextGaussian();
+            long start=System.nanoTime();
+            final double[] scores=score(pool,candidates,random.nextLong());
+            Integer[] order=new Integer[population];
+            for (int i=0; i<population; i++)
+                order[i]=Integer.valueOf(i);
+            Arrays.sort(order,new Comparator<Integer>(){
+                @Override
+                public int compare(Integer a,Integer b) {
+                    return Double.compare(scores[b.intValue()],
+                            scores[a.intValue()]);
+                }
+            });
+            double noise=NOISE*(generations-gen)/generations;
+            for (int j=0; j<mean.length; j++){
+                double sum=0, squares=0;
+                for (int e=0; e<elite; e++){
+                    double w=candidates[order[e].intValue()][j];
+                    sum+=w;
+                    squares+=w*w;
+                }
+                mean[j]=sum/elite;
+                deviation[j]=
+                        Math.sqrt(Math.max(0,squares/elite-mean[j]*mean[j]))
+                                +noise;
+            }
+            int top=order[0].intValue();
+            if (scores[top]>bestScore){
+                bestScore=scores[top];
+                best=candidates[top].clone();
+            }
+            System.out.printf("Generation %d: best %.1f lines, elite mean "
+                    +"%.1f lines, %.1f s%n",Integer.valueOf(gen+1),
+                    Double.valueOf(scores[top]),
+                    Double.valueOf(eliteMean(scores,order)),
+                    Double.valueOf((System.nanoTime()-start)/1e9));
+        }
+        return best;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro benchmarks of the Grid, Polyomino and AI hot paths on all three board
+ * sizes. Every benchmark is warmed up first and then measured in several
+ * timed iterations; the mean and standard deviation of the throughput are
+ * printed. Results of every operation are summed into a volatile field, so
+ * the JIT cannot remove the work.
+ *
+ * The boards are empty boards and mid-game boards reached by letting the AI
+ * play a seeded game with some rubble until half the board is used, so runs
+ * are comparable between versions.
+ *
+ * Usage: java Benchmarks [filter], only benchmarks whose name contains the
+ * filter are run.
+ */
+public class Benchmarks{
+    /**
+     * One measured operation
+     */
+    private static abstract class Benchmark{
+        public String name;
+
+        public Benchmark(String name) {
+            this.name=name;
+        }
+
+        /**
+         * Runs the operation once
+         *
+         * @return some result of the operation
+         */
+        public abstract long run();
+    }
+
+    private static final int BATCH=64;
+    private static final long ITERATION_NANOS=500000000L;
+    private static final int MEASUREMENTS=5, WARMUPS=3;
+    private static final long SEED=20080601L;
+    private static final int[][] SIZES={
+            {Game.SMALL_GRID_WIDTH, Game.SMALL_GRID_HEIGHT},
+            {Game.MEDIUM_GRID_WIDTH, Game.MEDIUM_GRID_HEIGHT},
+            {Game.LARGE_GRID_WIDTH, Game.LARGE_GRID_HEIGHT}};
+    private static final int PIECE_COUNT=28;
+
+    private static volatile long sink;
+
+    /**
+     * Adds all benchmarks for one board size
+     *
+     * @param width The width of the board
+     * @param height The height of the board
+     * @param into The list to add the benchmarks to
+     */
+    @SuppressWarnings("nls")
+    private static void addBenchmarks(int width,int height,
+            List<Benchmark> into) {
+        String size=" "+width+"x"+height;
+        final Grid empty=new Grid(width,height);
+        final GameEngine midGame=midGame(width,height);
+        final Grid mid=midGame.getGrid();
+        final Grid clearing=mid.clone();
+        for (int x=0; x<width; x++)
+            if (clearing.getGrid()[x][height-1]==0)
+                clearing.getGrid()[x][height-1]=1;
+        clearing.setGrid(clearing.getGrid());
+        final Polyomino[] pieces=new Polyomino[PIECE_COUNT];
+        for (int i=0; i<PIECE_COUNT; i++)
+            pieces[i]=new Polyomino(i+1);
+        final GameEngine scratch=new GameEngine(SEED);
+        scratch.setGridSize(width,height);
+        final AI ai=new AI(scratch);
+
+        into.add(new Benchmark("Grid.canPlacePiece empty"+size){
+            @Override
+            public long run() {
+                return canPlaceAll(empty,pieces);
+            }
+        });
+        into.add(new Benchmark("Grid.canPlacePiece midgame"+size){
+            @Override
+            public long run() {
+                return canPlaceAll(mid,pieces);
+            }
+        });
+        into.add(new Benchmark("Grid.hasCompleteLine midgame"+size){
+            @Override
+            public long run() {
+                return mid.hasCompleteLine();
+            }
+        });
+        into.add(new Benchmark("Grid.clone midgame"+size){
+            @Override
+            public long run() {
+                return mid.clone().getLength();
+            }
+        });
+        into.add(new Benchmark("Grid.clone+clearCompleteLines midgame"+size){
+            @Override
+            public long run() {
+                return clearing.clone().clearCompleteLines();
+            }
+        });
+        into.add(new Benchmark("Grid.dropRow midgame"+size){
+            @Override
+            public long run() {
+                long ret=0;
+                for (int x=0; x<mid.getLength(); x++)
+                    for (Polyomino p : pieces)
+                        if (mid.canPlacePiece(p,x,2))
+                            ret+=mid.dropRow(p,x,2);
+                return ret;
+            }
+        });
+        into.add(new Benchmark("AI.place midgame"+size){
+            @Override
+            public long run() {
+                scratch.copyFrom(midGame);
+                ai.place(scratch.getActivePiece(),scratch.getPreviewPiece());
+                return scratch.getActiveX();
+            }
+        });
+    }
+
+    /**
+     * Tries every piece in every column near the top of a board
+     *
+     * @param g The board
+     * @param pieces The pieces to try
+     * @return the number of positions that fit
+     */
+    private static long canPlaceAll(Grid g,Polyomino[] pieces) {
+        long ret=0;
+        for (int x=0; x<g.getLength(); x++)
+            for (Polyomino p : pieces)
+                if (g.canPlacePiece(p,x,2))
+                    ret++;
+        return ret;
+    }
+
+    /**
+     * Runs the benchmarks
+     *
+     * @param args An optional filter on the benchmark names
+     */
+    @SuppressWarnings("nls")
+    public static void main(String[] args) {
+        String filter=args.length>0 ? args[0]: "";
+        List<Benchmark> all=new ArrayList<Benchmark>();
+        all.add(new Benchmark("Polyomino.rotate"){
+            private Polyomino[] pieces=new Polyomino[PIECE_COUNT];
+            {
+                for (int i=0; i<PIECE_COUNT; i++)
+                    pieces[i]=new Polyomino(i+1);
+            }
+
+            @Override
+            public long run() {
+                long ret=0;
+                for (Polyomino p : pieces){
+                    p.rotate();
+                    ret+=p.getPositions().length;
+                }
+                return ret;
+            }
+        });
+        for (int[] size : SIZES)
+            addBenchmarks(size[0],size[1],all);
+        System.out.printf("%-46s %14s %12s%n","Benchmark","ops/s","error");
+        for (Benchmark b : all){
+            if (b.name.contains(filter))
+                measure(b);
+        }
+    }
+
+    /**
+     * Plays a seeded game with rubble until half of the board is used
+     *
+     * @param width The width of the board
+     * @param height The height of the board
+     * @return the game, with a new piece ready at the top
+     */
+    private static GameEngine midGame(int width,int height) {
+        GameEngine engine=new GameEngine(SEED);
+        engine.setGridSize(width,height);
+        engine.restart();
+        AI ai=new AI(engine);
+        for (int piece=0; piece<1000; piece++){
+            int top=height;
+            for (int x=0; x<width; x++)
+                top=Math.min(top,engine.getGrid().getColumnTop(x));
+            if (top<=height/2)
+                break;
+            if (piece%3==0)
+                engine.addBottomLines(1);
+            ai.place(engine.getActivePiece(),engine.getPreviewPiece());
+            while (engine.moveDown()){/* lock the piece */}
+            if (engine.isGameOver())
+                throw new IllegalStateException("No mid-game board found"); //$NON-NLS-1$
+        }
+        return engine;
+    }
+
+    /**
+     * Measures and prints the throughput of one benchmark
+     *
+     * @param b The benchmark
+     */
+    @SuppressWarnings("nls")
+    private static void measure(Benchmark b) {
+        for (int i=0; i<WARMUPS; i++)
+            runIteration(b);
+        double[] rates=new double[MEASUREMENTS];
+        double mean=0;
+        for (int i=0; i<MEASUREMENTS; i++){
+            rates[i]=runIteration(b);
+            mean+=rates[i]/MEASUREMENTS;
+        }
+        double variance=0;
+        for (double r : rates)
+            variance+=(r-mean)*(r-mean)/(MEASUREMENTS-1);
+        System.out.printf("%-46s %14.0f %12.0f%n",b.name,Double.valueOf(mean),
+                Double.valueOf(Math.sqrt(variance)));
+    }
+
+    /**
+     * Runs a benchmark for one iteration
+     *
+     * @param b The benchmark
+     * @return the number of operations per second
+     */
+    private static double runIteration(Benchmark b) {
+        long ops=0, result=0;
+        long start=System.nanoTime(), elapsed;
+        do{
+            for (int i=0; i<BATCH; i++)
+                result+=b.run();
+            ops+=BATCH;
+            elapsed=System.nanoTime()-start;
+        }while (elapsed<ITERATION_NANOS);
+        sink+=result;
+        return ops*1e9/elapsed;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the encoding of network frames. Frames with random messages are
+ * encoded and read back, from a stream and from a buffer that gets the bytes
+ * in random pieces, and every number must come back as it was put. Numbers
+ * around the 7 bit boundaries of the varints and the extremes of longs are
+ * always among them. Frames that are cut short, too long or hold a varint of
+ * more than 64 bits must be refused.
+ *
+ * Usage: java FrameCheck [-frames n] [-seed n], exits with status 1 if a
+ * frame does not come back.
+ */
+public class FrameCheck{
+    private static final int BYTES=3, LONG=2, TYPE=0, VARINT=1;
+
+    /**
+     * Stops the check if something is wrong
+     *
+     * @param ok Is it right
+     * @param what What is wrong otherwise
+     */
+    private static void check(boolean ok,String what) {
+        if (!ok){
+            System.out.println(what);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks that bytes are refused as a frame
+     *
+     * @param bytes The encoded frame
+     * @param what What is wrong with it
+     */
+    @SuppressWarnings("nls")
+    private static void checkRefused(byte[] bytes,String what) {
+        try{
+            Frame f=Frame.read(ByteBuffer.wrap(bytes));
+            while (f!=null&&f.hasNext())
+                f.nextVarint();
+        }catch (ProtocolException e){
+            return;
+        }
+        check(false,"A frame with "+what+" was accepted");
+    }
+
+    /**
+     * Runs the check
+     *
+     * @param args The options
+     */
+    @SuppressWarnings("nls")
+    public static void main(String[] args) {
+        int frames=20000;
+        long seed=20080601L;
+        for (int i=0; i+1<args.length; i+=2){
+            if (args[i].equals("-frames"))
+                frames=Integer.parseInt(args[i+1]);
+            else if (args[i].equals("-seed"))
+                seed=Long.parseLong(args[i+1]);
+            else{
+                System.err.println("Usage: java FrameCheck [-frames n] [-seed n]");
+                System.exit(2);
+            }
+        }
+        Random r=new Random(seed);
+        for (int n=0; n<frames; n++){
+            int tick=n%4==0 ? (int) number(r): r.nextInt(1<<20);
+            int messages=r.nextInt(n%100==0 ? 2000: 20);
+            int[] kinds=new int[messages];
+            long[] values=new long[messages];
+            byte[][] arrays=new byte[messages][];
+            Frame f=new Frame(tick);
+            for (int i=0; i<messages; i++){
+                kinds[i]=r.nextInt(4);
+                switch (kinds[i]){
+                case TYPE:
+                    values[i]=r.nextInt(256);
+                    f.putType((int) values[i]);
+                    break;
+                case VARINT:
+                    values[i]=number(r);
+                    f.putVarint(values[i]);
+                    break;
+                case LONG:
+                    values[i]=number(r);
+                    f.putLong(values[i]);
+                    break;
+                case BYTES:
+                    arrays[i]=new byte[r.nextInt(r.nextInt(10)==0 ? 3000: 4)];
+                    r.nextBytes(arrays[i]);
+                    f.putBytes(arrays[i]);
+                }
+            }
+            check(f.isEmpty()==(messages==0),"Frame "+n+" is empty wrongly");
+            byte[] bytes=f.toBytes();
+            try{
+                Frame streamed=Frame.read(new ByteArrayInputStream(bytes));
+                compare(streamed,tick,kinds,values,arrays,
+                        "Frame "+n+" from a stream");
+                compare(trickle(r,bytes),tick,kinds,values,arrays,
+                        "Frame "+n+" from a buffer");
+                Frame cut=Frame.read(ByteBuffer.wrap(bytes,0,bytes.length-1));
+                check(cut==null,"Frame "+n
+                        +" is complete without its last byte");
+            }catch (IOException e){
+                check(false,"Frame "+n+" was refused: "+e.getMessage());
+            }
+        }
+        /* A varint of 11 bytes, a message cut short and bad lengths */
+        byte[] tooLong=new byte[13];
+        tooLong[0]=12;
+        Arrays.fill(tooLong,2,13,(byte) 128);
+        checkRefused(tooLong,"a varint of 11 bytes");
+        byte[] cut=new Frame(0).putVarint(1L<<40).toBytes();
+        cut[0]--;
+        checkRefused(Arrays.copyOf(cut,cut.length-1),"a varint cut short");
+        checkRefused(new byte[] {0},"length 0");
+        byte[] huge=new Frame(0).putVarint(Frame.MAX_LENGTH+1).toBytes();
+        checkRefused(Arrays.copyOfRange(huge,2,huge.length),"a length above "
+                +Frame.MAX_LENGTH);
+        System.out.println(frames+" frames, no differences");
+    }
+
+    /**
+     * Reads back the messages of a frame and compares them
+     *
+     * @param f The frame as read
+     * @param tick The tick it was made with
+     * @param kinds The kind of every message
+     * @param values The numbers put
+     * @param arrays The byte arrays put
+     * @param name The frame, for the message
+     * @throws ProtocolException if the frame cannot be read
+     */
+    @SuppressWarnings("nls")
+    private static void compare(Frame f,int tick,int[] kinds,long[] values,
+            byte[][] arrays,String name) throws ProtocolException {
+        check(f!=null,name+" is missing");
+        check(f.getTick()==tick,name+" has tick "+f.getTick()+" instead of "
+                +tick);
+        for (int i=0; i<kinds.length; i++){
+            switch (kinds[i]){
+            case TYPE:
+                check(f.nextType()==values[i],name+", type "+i+" differs");
+                break;
+            case VARINT:
+                long v=f.nextVarint();
+                check(v==values[i],name+", varint "+i+" is "+v+" instead of "
+                        +values[i]);
+                break;
+            case LONG:
+                long l=f.nextLong();
+                check(l==values[i],name+", long "+i+" is "+l+" instead of "
+                        +values[i]);
+                break;
+            case BYTES:
+                check(Arrays.equals(f.nextBytes(),arrays[i]),name+", bytes "+i
+                        +" differ");
+            }
+        }
+        check(!f.hasNext(),name+" holds more than was put");
+    }
+
+    /**
+     * Picks a number to encode, often near a boundary of the encoding
+     *
+     * @param r The random numbers
+     * @return the number
+     */
+    private static long number(Random r) {
+        switch (r.nextInt(4)){
+        case 0:
+            return r.nextLong();
+        case 1:
+            return r.nextInt(300)-150;
+        default:
+            long edge=1L<<7*(1+r.nextInt(9));
+            return (r.nextBoolean() ? edge: -edge)+r.nextInt(3)-1;
+        }
+    }
+
+    /**
+     * Reads a frame from a buffer that gets the bytes in random pieces, the
+     * way the MatchServer gets them from a channel
+     *
+     * @param r The random numbers
+     * @param bytes The encoded frame
+     * @return the frame
+     * @throws ProtocolException if it is refused
+     */
+    @SuppressWarnings("nls")
+    private static Frame trickle(Random r,byte[] bytes)
+            throws ProtocolException {
+        ByteBuffer buffer=ByteBuffer.allocate(bytes.length);
+        ByteArrayInputStream in=new ByteArrayInputStream(bytes);
+        byte[] piece=new byte[1+r.nextInt(bytes.length)];
+        for (;;){
+            buffer.flip();
+            Frame ret=Frame.read(buffer);
+            if (ret!=null)
+                return ret;
+            check(buffer.position()==0,"An incomplete frame was consumed");
+            buffer.compact();
+            int n=in.read(piece,0,1+r.nextInt(piece.length));
+            check(n>0,"A complete frame was not found");
+            buffer.put(piece,0,n);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Random;
+
+/**
+ * Checks the gravity of the Grid against the recursive version it replaced.
+ * Random boards of random sizes and densities get a line deleted or a line
+ * of rubble added, once by the Grid and once by the old algorithm, and the
+ * results are compared square by square. The row masks, column tops and
+ * hash the Grid keeps up to date are compared with those of a grid built
+ * from scratch from the same squares.
+ *
+ * The old algorithm is kept as it was, except that groups are marked with
+ * ints instead of negative bytes, which ran out after 128 groups.
+ *
+ * Usage: java GravityCheck [-boards n] [-seed n], exits with status 1 if a
+ * board differs.
+ */
+public class GravityCheck{
+    private static final int MAX_COLOR=12;
+    private static final int[][] SIZES={
+            {Game.SMALL_GRID_WIDTH, Game.SMALL_GRID_HEIGHT},
+            {Game.MEDIUM_GRID_WIDTH, Game.MEDIUM_GRID_HEIGHT},
+            {Game.LARGE_GRID_WIDTH, Game.LARGE_GRID_HEIGHT}};
+
+    /**
+     * Check if a block can move down a line.
+     *
+     * @param mark The mark value of the block
+     * @param g The marked squares
+     * @return true if the current block can move down a line
+     */
+    private static boolean blockCanMoveDown(int mark,int[][] g) {
+        for (int i=0; i<g.length; i++){
+            for (int j=0; j<g[0].length; j++){
+                if (g[i][j]==mark){
+                    if (j+1>=g[i].length)
+                        return false;
+                    if (g[i][j+1]!=0&&g[i][j+1]!=mark)
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares a board changed by the Grid with the expected squares
+     *
+     * @param actual The Grid after the change
+     * @param expected The squares after the old algorithm
+     * @return a description of the first difference, or null if none
+     */
+    @SuppressWarnings("nls")
+    private static String compare(Grid actual,byte[][] expected) {
+        byte[][] g=actual.getGrid();
+        for (int x=0; x<g.length; x++){
+            for (int y=0; y<g[x].length; y++){
+                if (g[x][y]!=expected[x][y])
+                    return "square "+x+","+y+" is "+g[x][y]+" instead of "
+                            +expected[x][y];
+            }
+        }
+        Grid fresh=new Grid(g.length,g[0].length);
+        fresh.setGrid(copy(expected));
+        for (int y=0; y<g[0].length; y++){
+            if (actual.getRowMask(y)!=fresh.getRowMask(y))
+                return "row mask "+y+" is wrong";
+        }
+        for (int x=0; x<g.length; x++){
+            if (actual.getColumnTop(x)!=fresh.getColumnTop(x))
+                return "column top "+x+" is wrong";
+        }
+        if (actual.getHash()!=fresh.getHash())
+            return "hash is wrong";
+        return null;
+    }
+
+    /**
+     * @param g Some squares
+     * @return a copy of the squares
+     */
+    private static byte[][] copy(byte[][] g) {
+        byte[][] ret=g.clone();
+        for (int i=0; i<ret.length; i++)
+            ret[i]=g[i].clone();
+        return ret;
+    }
+
+    /**
+     * Lets unsupported squares fall down, the way the Grid did before
+     *
+     * @param grid The squares, changed in place
+     */
+    private static void gravity(byte[][] grid) {
+        int[][] tmpGrid=new int[grid.length][];
+        int mark=-1;
+        for (int i=0; i<grid.length; i++){
+            tmpGrid[i]=new int[grid[i].length];
+            for (int j=0; j<grid[i].length; j++)
+                tmpGrid[i][j]=grid[i][j];
+        }
+        for (int i=0; i<grid.length; i++){
+            for (int j=0; j<grid[i].length; j++){
+                if (tmpGrid[i][j]>0){
+                    markConnectedSquares(mark,tmpGrid,i,j);
+                    while (blockCanMoveDown(mark,tmpGrid))
+                        moveDownBlockMarked(mark,grid,tmpGrid);
+                    mark--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the check
+     *
+     * @param args The options
+     */
+    @SuppressWarnings("nls")
+    public static void main(String[] args) {
+        int boards=20000;
+        long seed=20080601L;
+        for (int i=0; i+1<args.length; i+=2){
+            if (args[i].equals("-boards"))
+                boards=Integer.parseInt(args[i+1]);
+            else if (args[i].equals("-seed"))
+                seed=Long.parseLong(args[i+1]);
+            else{
+                System.err.println("Usage: java GravityCheck [-boards n] [-seed n]");
+                System.exit(2);
+            }
+        }
+        Random r=new Random(seed);
+        for (int n=0; n<boards; n++){
+            int width, height;
+            if (n%4==0){
+                width=SIZES[n/4%SIZES.length][0];
+                height=SIZES[n/4%SIZES.length][1];
+            }else{
+                width=1+r.nextInt(16);
+                height=1+r.nextInt(33);
+            }
+            byte[][] squares=randomSquares(r,width,height);
+            Grid grid=new Grid(width,height);
+            grid.setGrid(copy(squares));
+            String change;
+            if (r.nextBoolean()){
+                int line=r.nextInt(height);
+                change="deleting line "+line;
+                grid.deleteLine(line);
+                for (int x=0; x<width; x++){
+                    /* The top row stays, as it always did */
+                    squares[x][line]=0;
+                    System.arraycopy(squares[x],0,squares[x],1,line);
+                }
+            }else{
+                int open=r.nextInt(width);
+                change="adding rubble open at "+open;
+                grid.addBottomLine(open);
+                for (int x=0; x<width; x++){
+                    System.arraycopy(squares[x],1,squares[x],0,height-1);
+                    squares[x][height-1]=(byte) (x==open ? 0: 1);
+                }
+            }
+            gravity(squares);
+            String difference=compare(grid,squares);
+            if (difference!=null){
+                System.out.println("Board "+n+" ("+width+"x"+height+"), "
+                        +change+": "+difference);
+                System.exit(1);
+            }
+        }
+        System.out.println(boards+" boards, no differences");
+    }
+
+    /**
+     * Attaches marks to connected squares
+     *
+     * @param mark The mark value of the block
+     * @param g The marked squares
+     * @param x
+     * @param y
+     */
+    private static void markConnectedSquares(int mark,int[][] g,int x,int y) {
+        if (g[x][y]>0){
+            g[x][y]=mark;
+            if (x+1<g.length)
+                markConnectedSquares(mark,g,x+1,y);
+            if (x>0)
+                markConnectedSquares(mark,g,x-1,y);
+            if (y+1<g[0].length)
+                markConnectedSquares(mark,g,x,y+1);
+            if (y>0)
+                markConnectedSquares(mark,g,x,y-1);
+        }
+    }
+
+    /**
+     * Drop a marked block a line
+     *
+     * @param mark The mark value of the block to move
+     * @param grid The squares
+     * @param markedGrid The grid with the block marked
+     */
+    private static void moveDownBlockMarked(int mark,byte[][] grid,
+            int[][] markedGrid) {
+        for (int i=0; i<grid.length; i++){
+            for (int j=grid[0].length-1; j>=0; j--){
+                if (markedGrid[i][j]==mark){
+                    grid[i][j+1]=grid[i][j];
+                    grid[i][j]=0;
+                    markedGrid[i][j+1]=mark;
+                    markedGrid[i][j]=0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills a board at random, denser towards the bottom
+     *
+     * @param r The random numbers
+     * @param width The width of the board
+     * @param height The height of the board
+     * @return the squares
+     */
+    private static byte[][] randomSquares(Random r,int width,int height) {
+        byte[][] ret=new byte[width][height];
+        double density=r.nextDouble();
+        for (int x=0; x<width; x++){
+            for (int y=0; y<height; y++){
+                if (r.nextDouble()<density*(y+1)/height)
+                    ret[x][y]=(byte) (1+r.nextInt(MAX_COLOR));
+            }
+        }
+        return ret;
+    }
+}
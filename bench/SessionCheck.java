@@ -0,0 +1,195 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the counting of sessions. A sender sends numbered frames over a
+ * connection that delivers them late and breaks now and then, losing the
+ * frames on their way, and a receiver acknowledges what it got. After a
+ * break the receiver tells how many frames it received, as when it
+ * connects again. The sender must be able to resume exactly when it still
+ * keeps all frames after those, and must send again exactly the missing
+ * frames in order, so that the receiver gets every frame once. A session
+ * that missed more than Session.REPLAY_LIMIT frames must not resume.
+ *
+ * Usage: java SessionCheck [-steps n] [-seed n], exits with status 1 if the
+ * counts differ.
+ */
+public class SessionCheck{
+    private static Session receiver, sender;
+    /* The frames on their way */
+    private static ArrayDeque<byte[]> connection=new ArrayDeque<byte[]>();
+    /* The number of frames sent and the first frame the sender still keeps */
+    private static long kept, sent;
+
+    /**
+     * Stops the check if something is wrong
+     *
+     * @param ok Is it right
+     * @param what What is wrong otherwise
+     */
+    private static void check(boolean ok,String what) {
+        if (!ok){
+            System.out.println(what);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks that the sender can resume from a count exactly when it keeps
+     * all frames after it
+     *
+     * @param count The number of frames received
+     */
+    @SuppressWarnings("nls")
+    private static void checkResume(long count) {
+        check(sender.canResume(count)==(count>=kept&&count<=sent),
+                "Resuming after "+count+" of "+sent+" frames, with frames "
+                        +kept+" and on kept, is "
+                        +(sender.canResume(count) ? "": "not ")+"possible");
+    }
+
+    /**
+     * Delivers frames to the receiver
+     *
+     * @param count The number of frames to deliver
+     * @throws ProtocolException if a frame cannot be read
+     */
+    @SuppressWarnings("nls")
+    private static void deliver(int count) throws ProtocolException {
+        for (; count>0&&!connection.isEmpty(); count--){
+            long number=Frame.read(ByteBuffer.wrap(connection.poll()))
+                    .nextVarint();
+            check(number==receiver.getReceived(),"Frame "+number
+                    +" arrived after "+receiver.getReceived()+" frames");
+            receiver.received();
+        }
+    }
+
+    /**
+     * Runs the check
+     *
+     * @param args The options
+     * @throws ProtocolException if a frame cannot be read
+     */
+    @SuppressWarnings("nls")
+    public static void main(String[] args) throws ProtocolException {
+        int steps=200000;
+        long seed=20080601L;
+        for (int i=0; i+1<args.length; i+=2){
+            if (args[i].equals("-steps"))
+                steps=Integer.parseInt(args[i+1]);
+            else if (args[i].equals("-seed"))
+                seed=Long.parseLong(args[i+1]);
+            else{
+                System.err.println("Usage: java SessionCheck [-steps n] "
+                        +"[-seed n]");
+                System.exit(2);
+            }
+        }
+        Random r=new Random(seed);
+        int resumed=0, refused=0;
+        start(r);
+        for (int n=0; n<steps; n++){
+            switch (r.nextInt(8)){
+            case 0:
+                /* The receiver acknowledges, the acknowledgement may get
+                 * lost */
+                long received=receiver.getReceived(),
+                        count=receiver.acknowledge();
+                check(count==-1||count==received,"Acknowledged "+count
+                        +" of "+received+" frames");
+                check(receiver.acknowledge()==-1,"Acknowledged twice");
+                if (count>=0&&r.nextInt(4)!=0){
+                    sender.acknowledged(count);
+                    kept=Math.max(kept,count);
+                }
+                break;
+            case 1:
+                deliver(r.nextInt(8));
+                break;
+            default:
+                send(r.nextInt(4));
+            }
+            if (r.nextInt(1000)!=0)
+                continue;
+            /* The connection breaks, frames on their way are lost and
+             * sometimes too many are sent before it comes back */
+            connection.clear();
+            send(r.nextInt(4)==0 ? r.nextInt(2*Session.REPLAY_LIMIT)
+                    : r.nextInt(20));
+            connection.clear();
+            long count=receiver.getReceived();
+            checkResume(count);
+            checkResume(kept-1);
+            checkResume(kept);
+            checkResume(sent);
+            checkResume(sent+1);
+            checkResume(count+r.nextInt(3)-1);
+            if (!sender.canResume(count)){
+                check(sent-count>Session.REPLAY_LIMIT,"Resuming after "
+                        +count+" of "+sent+" frames was refused");
+                refused++;
+                start(r);
+                continue;
+            }
+            sender.acknowledged(count);
+            kept=count;
+            checkResume(count-1);
+            List<byte[]> missed=sender.resend(count);
+            check(missed.size()==sent-count,"Sent "+missed.size()
+                    +" frames again instead of "+(sent-count));
+            connection.addAll(missed);
+            resumed++;
+        }
+        deliver(Integer.MAX_VALUE);
+        check(receiver.getReceived()==sent,"Received "+receiver.getReceived()
+                +" of "+sent+" frames in the end");
+        System.out.println(steps+" steps, "+resumed+" sessions resumed, "
+                +refused+" refused, no differences");
+    }
+
+    /**
+     * Sends frames
+     *
+     * @param count The number of frames
+     */
+    private static void send(int count) {
+        for (; count>0; count--){
+            byte[] frame=new Frame(0).putVarint(sent++).toBytes();
+            sender.sent(frame);
+            connection.add(frame);
+            kept=Math.max(kept,sent-Session.REPLAY_LIMIT);
+        }
+    }
+
+    /**
+     * Starts new sessions on an empty connection
+     *
+     * @param r The random numbers
+     */
+    private static void start(Random r) {
+        sender=new Session(r.nextLong());
+        receiver=new Session(0);
+        connection.clear();
+        kept=sent=0;
+    }
+}
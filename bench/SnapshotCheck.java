@@ -0,0 +1,253 @@
+/*
+ * Pentris: A 'Tetris'-like Puzzle Game featuring Pentominoes
+ *
+ * Copyright (C) 2008 Group 5, Project 1.2 BA KECS University of Maastricht, NL
+ *
+ * SVN Repository and details available at http://code.google.com/p/pentominoes/
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version. This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details. You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the snapshots that bring a copy of a game back in line. Games of
+ * random sizes and randomizers are played with random moves, and a mirror
+ * game mostly gets the same moves, but not always, so it drifts off. Every
+ * few moves a snapshot of the game is applied to the mirror, which must then
+ * be in the same state, squares and random generators included, and must
+ * stay in it when both get the same moves. Games that end are restarted,
+ * both of them. The snapshots are made and read by one Snapshot each, as on
+ * a connection, so only the changed rows are sent.
+ *
+ * Snapshots with a square of a color that is not a piece, that are cut short
+ * or that have bytes changed must be refused without changing the mirror or
+ * the rows the reading Snapshot remembers.
+ *
+ * Usage: java SnapshotCheck [-games n] [-seed n], exits with status 1 if a
+ * mirror differs.
+ */
+public class SnapshotCheck{
+    private static final int[][] SIZES={
+            {GameEngine.SMALL_GRID_WIDTH, GameEngine.SMALL_GRID_HEIGHT},
+            {GameEngine.MEDIUM_GRID_WIDTH, GameEngine.MEDIUM_GRID_HEIGHT},
+            {GameEngine.LARGE_GRID_WIDTH, GameEngine.LARGE_GRID_HEIGHT},
+            {Snapshot.MAX_WIDTH, GameEngine.LARGE_GRID_HEIGHT}};
+    private static final int SNAPSHOTS=40;
+
+    /**
+     * Stops the check if something is wrong
+     *
+     * @param ok Is it right
+     * @param what What is wrong otherwise
+     */
+    private static void check(boolean ok,String what) {
+        if (!ok){
+            System.out.println(what);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks that a snapshot is refused and changes nothing
+     *
+     * @param in The Snapshot that reads it
+     * @param data The snapshot
+     * @param mirror The game to apply it to
+     * @param what What is wrong with it
+     */
+    @SuppressWarnings("nls")
+    private static void checkRefused(Snapshot in,byte[] data,
+            GameEngine mirror,String what) {
+        long hash=mirror.getStateHash();
+        byte[] random=mirror.getRandomState();
+        try{
+            in.read(data,mirror);
+        }catch (IOException e){
+            check(mirror.getStateHash()==hash
+                    &&Arrays.equals(mirror.getRandomState(),random),
+                    "A snapshot with "+what+" changed the game");
+            return;
+        }
+        check(false,"A snapshot with "+what+" was accepted");
+    }
+
+    /**
+     * Checks that a mirror is in the same state as the game
+     *
+     * @param g The game
+     * @param mirror The mirror
+     * @param what When, for the message
+     */
+    @SuppressWarnings("nls")
+    private static void compare(GameEngine g,GameEngine mirror,String what) {
+        byte[][] squares=g.getGrid().getGrid(),
+                copy=mirror.getGrid().getGrid();
+        check(squares.length==copy.length&&squares[0].length==copy[0].length,
+                "The mirror has another size "+what);
+        for (int x=0; x<squares.length; x++)
+            check(Arrays.equals(squares[x],copy[x]),"Column "+x+" differs "
+                    +what);
+        check(mirror.getStateHash()==g.getStateHash(),
+                "The mirror is in another state "+what);
+        check(Arrays.equals(randomState(mirror),randomState(g)),
+                "The random generators differ "+what);
+        check(Arrays.equals(mirror.getAllowedPieces(),g.getAllowedPieces()),
+                "Other pieces are allowed "+what);
+    }
+
+    /**
+     * Runs the check
+     *
+     * @param args The options
+     */
+    @SuppressWarnings("nls")
+    public static void main(String[] args) {
+        int games=100;
+        long seed=20080601L;
+        for (int i=0; i+1<args.length; i+=2){
+            if (args[i].equals("-games"))
+                games=Integer.parseInt(args[i+1]);
+            else if (args[i].equals("-seed"))
+                seed=Long.parseLong(args[i+1]);
+            else{
+                System.err.println("Usage: java SnapshotCheck [-games n] "
+                        +"[-seed n]");
+                System.exit(2);
+            }
+        }
+        Random r=new Random(seed);
+        long bytes=0, snapshots=0;
+        for (int n=0; n<games; n++){
+            int[] size=SIZES[r.nextInt(SIZES.length)];
+            GameEngine g=new GameEngine(r.nextLong(),r.nextInt(4));
+            g.setGridSize(size[0],size[1]);
+            if (r.nextBoolean()){
+                boolean pents=r.nextBoolean(), tets=r.nextBoolean();
+                g.setAllowedPieces(pents,tets,!pents&&!tets||r.nextBoolean());
+            }
+            g.restart();
+            /* The mirror starts as another game, on a medium grid */
+            GameEngine mirror=new GameEngine(r.nextLong(),r.nextInt(4));
+            Snapshot out=new Snapshot(), in=new Snapshot();
+            for (int s=0; s<SNAPSHOTS; s++){
+                String what="in game "+n+" after snapshot "+s;
+                byte[] data=out.write(g);
+                try{
+                    in.read(data,mirror);
+                }catch (IOException e){
+                    check(false,"Snapshot "+s+" of game "+n+" was refused: "
+                            +e.getMessage());
+                }
+                compare(g,mirror,what);
+                bytes+=data.length;
+                snapshots++;
+                refuse(r,g,data,mirror,in);
+                if (g.isGameOver()){
+                    g.restart();
+                    mirror.restart();
+                }
+                /* Both get the same moves and then the mirror drifts off */
+                for (int i=r.nextInt(30); i>0&&!g.isGameOver(); i--){
+                    int action=step(r,g);
+                    mirror.step(action);
+                }
+                compare(g,mirror,"with the same moves "+what);
+                for (int i=r.nextInt(30); i>0&&!g.isGameOver(); i--){
+                    if (r.nextInt(20)==0)
+                        g.addBottomLines(1+r.nextInt(3));
+                    if (r.nextBoolean())
+                        mirror.step(r.nextInt(5));
+                    step(r,g);
+                }
+            }
+        }
+        System.out.println(games+" games, "+snapshots+" snapshots of "
+                +(snapshots==0 ? 0: bytes/snapshots)
+                +" bytes on average, no differences");
+    }
+
+    /**
+     * Gets the state of the random generators of a game. The same state may
+     * be encoded in more than one way, so it is read back and encoded again.
+     *
+     * @param g The game
+     * @return the state
+     */
+    @SuppressWarnings("nls")
+    private static byte[] randomState(GameEngine g) {
+        GameEngine copy=new GameEngine(0);
+        try{
+            copy.setRandomState(g.getRandomState());
+        }catch (IOException e){
+            check(false,"The random generators were refused: "+e.getMessage());
+        }
+        return copy.getRandomState();
+    }
+
+    /**
+     * Checks that broken snapshots are refused by a Snapshot that read the
+     * last one, and that a snapshot with the changed rows is read correctly
+     * afterwards
+     *
+     * @param r The random numbers
+     * @param g The game
+     * @param data The last snapshot of it
+     * @param mirror The game the snapshots are applied to
+     * @param in The Snapshot that reads them
+     */
+    @SuppressWarnings("nls")
+    private static void refuse(Random r,GameEngine g,byte[] data,
+            GameEngine mirror,Snapshot in) {
+        byte[][] squares=g.getGrid().getGrid();
+        GameEngine bad=new GameEngine(0);
+        bad.setGridSize(squares.length,squares[0].length);
+        bad.copyFrom(g);
+        int color=Polyomino.PIECE_COUNT+1+r.nextInt(255-Polyomino.PIECE_COUNT);
+        bad.getGrid().getGrid()[r.nextInt(squares.length)][r
+                .nextInt(squares[0].length)]=(byte) color;
+        checkRefused(in,new Snapshot().write(bad),mirror,"color "+color);
+        checkRefused(in,Arrays.copyOf(data,r.nextInt(data.length)),mirror,
+                "the end cut off");
+        /* A changed byte may still make a valid snapshot, but of another
+         * game, so it is read by a Snapshot of its own */
+        GameEngine copy=new GameEngine(0);
+        Snapshot alone=new Snapshot();
+        try{
+            alone.read(new Snapshot().write(g),copy);
+        }catch (IOException e){
+            check(false,"A snapshot of all rows was refused: "+e.getMessage());
+        }
+        compare(g,copy,"after a snapshot of all rows");
+        byte[] broken=data.clone();
+        broken[r.nextInt(broken.length)]^=1+r.nextInt(255);
+        long hash=copy.getStateHash();
+        try{
+            alone.read(broken,copy);
+        }catch (IOException e){
+            check(copy.getStateHash()==hash,
+                    "A snapshot with a changed byte changed the game");
+        }
+    }
+
+    /**
+     * Makes a random move, mostly dropping the piece after a few others
+     *
+     * @param r The random numbers
+     * @param g The game
+     * @return the action
+     */
+    private static int step(Random r,GameEngine g) {
+        int action=r.nextInt(3)==0 ? GameEngine.ACTION_DROP: r.nextInt(5);
+        g.step(action);
+        return action;
+    }
+}